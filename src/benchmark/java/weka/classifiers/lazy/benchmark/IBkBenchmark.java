@@ -0,0 +1,94 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright 2015 University of Waikato
+ */
+
+package weka.classifiers.lazy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import weka.classifiers.lazy.IBk;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+/**
+ * Times IBk predicting the test instances of each grid point with each
+ * nearest neighbour search. The search structure is built in the setup, so
+ * only the queries are timed.
+ * The tree searches cannot handle missing values, so for them the missing
+ * values are replaced by the means and modes of the training data first.
+ *
+ * @version $Revision$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IBkBenchmark extends LazyDataGrid {
+
+  /** the nearest neighbour search, a class in weka.core.neighboursearch */
+  @Param({ "LinearNNSearch", "KDTree", "BallTree", "CoverTree" })
+  public String search;
+
+  /** the number of neighbours */
+  @Param({ "1", "10" })
+  public int k;
+
+  /** the model */
+  protected IBk m_IBk;
+
+  /**
+   * Builds the model.
+   *
+   * @throws Exception if the model cannot be built
+   */
+  @Setup(Level.Trial)
+  public void buildModel() throws Exception {
+    if (!search.equals("LinearNNSearch")) { // the trees reject missing values
+      replaceMissingValues();
+    }
+    m_IBk = new IBk(k);
+    m_IBk.setNearestNeighbourSearchAlgorithm((NearestNeighbourSearch) Class
+      .forName("weka.core.neighboursearch." + search).newInstance());
+    m_IBk.buildClassifier(m_Train);
+  }
+
+  /**
+   * Predicts the test instances one by one.
+   *
+   * @param blackhole consumes the distributions
+   * @throws Exception if a prediction fails
+   */
+  @Benchmark
+  public void predict(Blackhole blackhole) throws Exception {
+    for (int i = 0; i < m_Test.numInstances(); i++) {
+      blackhole.consume(m_IBk.distributionForInstance(m_Test.instance(i)));
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright 2015 University of Waikato
+ */
+
+package weka.classifiers.lazy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import weka.classifiers.lazy.KStar;
+
+/**
+ * Times the serial KStar predicting the test instances of each grid point.
+ * The caches of the scale factors persist across operations, as they do
+ * when a model predicts a stream of instances.
+ *
+ * @version $Revision$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KStarBenchmark extends LazyDataGrid {
+
+  /** the model */
+  protected KStar m_KStar;
+
+  /**
+   * Builds the model.
+   *
+   * @throws Exception if the model cannot be built
+   */
+  @Setup(Level.Trial)
+  public void buildModel() throws Exception {
+    m_KStar = new KStar();
+    m_KStar.buildClassifier(m_Train);
+  }
+
+  /**
+   * Predicts the test instances one by one.
+   *
+   * @param blackhole consumes the distributions
+   * @throws Exception if a prediction fails
+   */
+  @Benchmark
+  public void predict(Blackhole blackhole) throws Exception {
+    for (int i = 0; i < m_Test.numInstances(); i++) {
+      blackhole.consume(m_KStar.distributionForInstance(m_Test.instance(i)));
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright 2015 University of Waikato
+ */
+
+package weka.classifiers.lazy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.classifiers.lazy.kstar.parallel.KStarAttributeParameters;
+import weka.classifiers.lazy.kstar.parallel.KStarComputationUnit;
+import weka.classifiers.lazy.kstar.parallel.KStarKernel;
+import weka.classifiers.lazy.kstar.parallel.KStarTrainingData;
+import weka.core.Attribute;
+
+/**
+ * Times the transformation probability kernel of ParallelKStar over all the
+ * training instances, block by block, for one test instance with fixed
+ * parameters. Run it with the allocation profiler, -prof gc: the pair loop
+ * allocates nothing, so gc.alloc.rate.norm should stay at about 0 B/op.
+ *
+ * @version $Revision$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KStarKernelBenchmark extends LazyDataGrid {
+
+  /** whether to use the log space kernel */
+  @Param({ "false", "true" })
+  public boolean logSpace;
+
+  /** the columnar training data */
+  protected KStarTrainingData m_Data;
+
+  /** the configuration of the kernel */
+  protected KStarComputationUnit.KStarConfig m_Config;
+
+  /** the parameters of the test instance */
+  protected KStarAttributeParameters m_Parameters;
+
+  /** receives the probabilities of a block */
+  protected double[] m_TransProb = new double[KStarComputationUnit.BLOCK_SIZE];
+
+  /**
+   * Sets up the kernel input for the first test instance.
+   */
+  @Setup(Level.Trial)
+  public void prepare() {
+    m_Data = new KStarTrainingData(m_Train);
+    int numAttributes = m_Train.numAttributes();
+    m_Config = new KStarComputationUnit.KStarConfig();
+    m_Config.m_TotalInstances = m_Train.numInstances();
+    m_Config.m_LogSpace = logSpace;
+    m_Config.m_ClassIndex = m_Train.classIndex();
+    m_Config.m_AttributeTypes = new int[numAttributes];
+    m_Config.m_NumValues = new int[numAttributes];
+    m_Parameters = new KStarAttributeParameters(numAttributes);
+    for (int i = 0; i < numAttributes; i++) {
+      m_Config.m_AttributeTypes[i] = m_Train.attribute(i).type();
+      m_Config.m_NumValues[i] = m_Train.attribute(i).numValues();
+      m_Parameters.testValue[i] = m_Test.instance(0).value(i);
+      m_Parameters.testMissing[i] = m_Test.instance(0).isMissing(i);
+      m_Parameters.parameter[i] = 0.5;
+      m_Parameters.missingProbability[i] = 0.1;
+      if (i != m_Train.classIndex()
+        && m_Train.attribute(i).type() == Attribute.NOMINAL
+        && !m_Parameters.testMissing[i]) {
+        m_Parameters.nominalTransProb[i] = KStarKernel.nominalTransProbTable(0.5,
+          m_Config.m_NumValues[i], m_Parameters.testValue[i]);
+        m_Parameters.nominalLogTransProb[i] =
+          KStarKernel.logTable(m_Parameters.nominalTransProb[i]);
+      }
+    }
+  }
+
+  /**
+   * Computes the transformation probabilities of every training instance.
+   *
+   * @return the sum of the probabilities
+   */
+  @Benchmark
+  public double scorePairs() {
+    double sum = 0.0;
+    for (int start = 0; start < m_Data.numInstances;
+      start += KStarComputationUnit.BLOCK_SIZE) {
+      int length = Math.min(KStarComputationUnit.BLOCK_SIZE,
+        m_Data.numInstances - start);
+      if (logSpace) {
+        KStarKernel.blockLogTransformationProbability(m_Config, m_Parameters,
+          m_Data, start, length, m_TransProb);
+      } else {
+        KStarKernel.blockTransformationProbability(m_Config, m_Parameters,
+          m_Data, start, length, m_TransProb);
+      }
+      sum += m_TransProb[0];
+    }
+    return sum;
+  }
+}
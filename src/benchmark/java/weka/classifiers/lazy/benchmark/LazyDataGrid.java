@@ -0,0 +1,174 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright 2015 University of Waikato
+ */
+
+package weka.classifiers.lazy.benchmark;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.TestInstances;
+import weka.datagenerators.classifiers.classification.RDG1;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+
+/**
+ * The grid of datasets the lazy learner benchmarks run on: the number of
+ * training rows and attributes, the fraction of nominal attributes, the rate
+ * of missing values and the generator. The data is generated once per trial
+ * with a fixed seed, so every run of a release scores the same instances.
+ * Override the grid on the command line with JMH's -p, e.g.
+ * <pre>
+ * -p rows=100000 -p attributes=40 -p generator=RDG1
+ * </pre>
+ *
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+public abstract class LazyDataGrid {
+
+  /** the number of test instances predicted by each operation */
+  public static final int NUM_TEST = 100;
+
+  /** the seed of the generators and of the missing values */
+  public static final int SEED = 1;
+
+  /** the number of training instances */
+  @Param({ "1000", "10000" })
+  public int rows;
+
+  /** the number of attributes, without the class */
+  @Param({ "10", "40" })
+  public int attributes;
+
+  /** the fraction of the attributes that are nominal */
+  @Param({ "0.0", "0.5" })
+  public double nominalFraction;
+
+  /** the fraction of the attribute values replaced by missing values */
+  @Param({ "0.0", "0.05" })
+  public double missingRate;
+
+  /** TestInstances for random data, RDG1 for data with a rule structure */
+  @Param({ "TestInstances", "RDG1" })
+  public String generator;
+
+  /** the training instances */
+  protected Instances m_Train;
+
+  /** the test instances */
+  protected Instances m_Test;
+
+  /**
+   * Generates the training and test instances of the grid point.
+   *
+   * @throws Exception if the data cannot be generated
+   */
+  @Setup(Level.Trial)
+  public void generateData() throws Exception {
+    Instances data = generate(generator, rows + NUM_TEST, attributes,
+      nominalFraction, missingRate, getClassType());
+    m_Train = new Instances(data, 0, rows);
+    m_Test = new Instances(data, rows, NUM_TEST);
+  }
+
+  /**
+   * Replaces the missing values of the training and test instances by the
+   * means and modes of the training instances, for the searches that cannot
+   * handle missing values.
+   *
+   * @throws Exception if the filter fails
+   */
+  protected void replaceMissingValues() throws Exception {
+    ReplaceMissingValues filter = new ReplaceMissingValues();
+    filter.setInputFormat(m_Train);
+    m_Train = Filter.useFilter(m_Train, filter);
+    m_Test = Filter.useFilter(m_Test, filter);
+  }
+
+  /**
+   * Returns the type of the class attribute of the generated data.
+   *
+   * @return Attribute.NOMINAL by default
+   */
+  protected int getClassType() {
+    return Attribute.NOMINAL;
+  }
+
+  /**
+   * Generates a dataset.
+   *
+   * @param generator TestInstances or RDG1; RDG1 generates a nominal class
+   * @param numInstances the number of instances
+   * @param numAttributes the number of attributes, without the class
+   * @param nominalFraction the fraction of the attributes that are nominal
+   * @param missingRate the fraction of attribute values set missing
+   * @param classType the type of the class attribute, for TestInstances
+   * @return the instances, with the class set
+   * @throws Exception if the generator fails or is unknown
+   */
+  public static Instances generate(String generator, int numInstances,
+    int numAttributes, double nominalFraction, double missingRate,
+    int classType) throws Exception {
+
+    int numNominal = (int) Math.round(numAttributes * nominalFraction);
+    Instances data;
+    if (generator.equals("TestInstances")) {
+      TestInstances test = new TestInstances();
+      test.setSeed(SEED);
+      test.setClassType(classType);
+      test.setNumClasses(3);
+      test.setNumNominal(numNominal);
+      test.setNumNominalValues(3);
+      test.setNumNumeric(numAttributes - numNominal);
+      test.setNumInstances(numInstances);
+      test.setClassIndex(TestInstances.CLASS_IS_LAST);
+      data = test.generate();
+    } else if (generator.equals("RDG1")) {
+      RDG1 rdg = new RDG1();
+      rdg.setSeed(SEED);
+      rdg.setNumExamples(numInstances);
+      rdg.setNumAttributes(numAttributes);
+      rdg.setNumNumeric(numAttributes - numNominal);
+      rdg.setNumClasses(3);
+      rdg.setDatasetFormat(rdg.defineDataFormat());
+      data = rdg.generateExamples();
+    } else {
+      throw new IllegalArgumentException("Unknown generator: " + generator);
+    }
+
+    if (missingRate > 0.0) {
+      Random random = new Random(SEED);
+      for (int i = 0; i < data.numInstances(); i++) {
+        for (int j = 0; j < data.numAttributes(); j++) {
+          if (j != data.classIndex() && random.nextDouble() < missingRate) {
+            data.instance(i).setMissing(j);
+          }
+        }
+      }
+    }
+    return data;
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright 2015 University of Waikato
+ */
+
+package weka.classifiers.lazy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import weka.classifiers.lazy.ParallelKStar;
+import weka.core.SelectedTag;
+
+/**
+ * Times ParallelKStar predicting the test instances of each grid point, one
+ * by one and as a batch, with each execution plan: serial in the calling
+ * thread, split over the training data on the thread pool, split over the
+ * test instances of the batch, and chosen automatically.
+ *
+ * @version $Revision$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelKStarBenchmark extends LazyDataGrid {
+
+  /** the execution plan, as for the -plan option */
+  @Param({ "s", "i", "b", "a" })
+  public String plan;
+
+  /** the number of threads, 0 for the number of processors */
+  @Param({ "0" })
+  public int threads;
+
+  /** the model */
+  protected ParallelKStar m_KStar;
+
+  /**
+   * Builds the model.
+   *
+   * @throws Exception if the model cannot be built
+   */
+  @Setup(Level.Trial)
+  public void buildModel() throws Exception {
+    m_KStar = new ParallelKStar();
+    m_KStar.setNumThreads(threads);
+    int id = plan.equals("s") ? ParallelKStar.PLAN_SERIAL
+      : plan.equals("i") ? ParallelKStar.PLAN_INTRA
+        : plan.equals("b") ? ParallelKStar.PLAN_BATCH : ParallelKStar.PLAN_AUTO;
+    m_KStar.setExecutionPlan(new SelectedTag(id, ParallelKStar.TAGS_PLAN));
+    m_KStar.buildClassifier(m_Train);
+  }
+
+  /**
+   * Stops the worker threads of the model.
+   */
+  @TearDown(Level.Trial)
+  public void shutdown() {
+    m_KStar.shutdownExecutorPool();
+  }
+
+  /**
+   * Predicts the test instances one by one.
+   *
+   * @param blackhole consumes the distributions
+   * @throws Exception if a prediction fails
+   */
+  @Benchmark
+  public void predict(Blackhole blackhole) throws Exception {
+    for (int i = 0; i < m_Test.numInstances(); i++) {
+      blackhole.consume(m_KStar.distributionForInstance(m_Test.instance(i)));
+    }
+  }
+
+  /**
+   * Predicts the test instances as one batch.
+   *
+   * @return the distributions
+   * @throws Exception if a prediction fails
+   */
+  @Benchmark
+  public double[][] predictBatch() throws Exception {
+    return m_KStar.distributionsForInstances(m_Test);
+  }
+}
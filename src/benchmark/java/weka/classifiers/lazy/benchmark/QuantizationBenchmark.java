@@ -0,0 +1,111 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright 2015 University of Waikato
+ */
+
+package weka.classifiers.lazy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.classifiers.lazy.ParallelKStar;
+
+/**
+ * Times ParallelKStar predicting the test instances as a batch from cold
+ * caches, with the numeric values quantized to a grid relative to the range
+ * of each attribute. Every iteration builds a new model, so each operation
+ * pays for the root findings of its distinct values. The number of root
+ * findings is reported as the secondary result rootFindings, the total over
+ * the measurement iterations. The accuracy side of the trade-off is reported
+ * by QuantizationTradeOff.
+ *
+ * @version $Revision$
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class QuantizationBenchmark extends LazyDataGrid {
+
+  /** the grid spacing relative to the attribute ranges, 0 for exact values */
+  @Param({ "0", "0.001", "0.01", "0.05" })
+  public double resolution;
+
+  /** the model of the current iteration */
+  protected ParallelKStar m_KStar;
+
+  /**
+   * Counts the root findings of the predictions.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class RootFindings {
+
+    /** the number of scale factors and stop parameters computed */
+    public long rootFindings;
+  }
+
+  /**
+   * Builds a model with empty caches.
+   *
+   * @throws Exception if the model cannot be built
+   */
+  @Setup(Level.Iteration)
+  public void buildModel() throws Exception {
+    m_KStar = new ParallelKStar();
+    m_KStar.setQuantizeResolution(resolution);
+    m_KStar.setQuantizeRelative(true);
+    m_KStar.buildClassifier(m_Train);
+  }
+
+  /**
+   * Stops the worker threads of the model of the iteration.
+   */
+  @TearDown(Level.Iteration)
+  public void shutdown() {
+    m_KStar.shutdownExecutorPool();
+  }
+
+  /**
+   * Predicts the test instances as one batch.
+   *
+   * @param counters receives the number of root findings
+   * @return the distributions
+   * @throws Exception if a prediction fails
+   */
+  @Benchmark
+  public double[][] predictCold(RootFindings counters) throws Exception {
+    double[][] distributions = m_KStar.distributionsForInstances(m_Test);
+    counters.rootFindings += m_KStar.getCacheMisses();
+    return distributions;
+  }
+}
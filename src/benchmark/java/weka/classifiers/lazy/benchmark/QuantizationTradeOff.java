@@ -0,0 +1,130 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright 2015 University of Waikato
+ */
+
+package weka.classifiers.lazy.benchmark;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import weka.classifiers.lazy.ParallelKStar;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Reports the accuracy side of the quantization trade-off timed by
+ * QuantizationBenchmark: for each grid spacing it predicts the test
+ * instances of a numeric class dataset with exact and with quantized scale
+ * factors, and writes the number of root findings and the error of the
+ * quantized predictions, relative to the range of the exact predictions, as
+ * a JSON array.
+ * <p/>
+ * Usage: QuantizationTradeOff [-rows n] [-attributes n] [-missing rate]
+ * [-generator name] [-resolutions r1,r2,...] [-o file.json]
+ *
+ * @version $Revision$
+ */
+public class QuantizationTradeOff {
+
+  /**
+   * Runs the report.
+   *
+   * @param args the options, see the class description
+   * @throws Exception if the data cannot be generated or a prediction fails
+   */
+  public static void main(String[] args) throws Exception {
+    String rowsStr = Utils.getOption("rows", args);
+    int rows = rowsStr.length() == 0 ? 10000 : Integer.parseInt(rowsStr);
+    String attributesStr = Utils.getOption("attributes", args);
+    int attributes = attributesStr.length() == 0 ? 10 : Integer
+      .parseInt(attributesStr);
+    String missingStr = Utils.getOption("missing", args);
+    double missing = missingStr.length() == 0 ? 0.0 : Double
+      .parseDouble(missingStr);
+    String generator = Utils.getOption("generator", args);
+    if (generator.length() == 0) {
+      generator = "TestInstances";
+    }
+    String resolutionsStr = Utils.getOption("resolutions", args);
+    if (resolutionsStr.length() == 0) {
+      resolutionsStr = "0.001,0.01,0.05";
+    }
+    String output = Utils.getOption('o', args);
+
+    Instances data = LazyDataGrid.generate(generator,
+      rows + LazyDataGrid.NUM_TEST, attributes, 0.0, missing,
+      Attribute.NUMERIC);
+    Instances train = new Instances(data, 0, rows);
+    Instances test = new Instances(data, rows, LazyDataGrid.NUM_TEST);
+
+    ParallelKStar exact = new ParallelKStar();
+    exact.buildClassifier(train);
+    double[][] expected = exact.distributionsForInstances(test);
+    long exactRootFindings = exact.getCacheMisses();
+    exact.shutdownExecutorPool();
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (double[] prediction : expected) {
+      min = Math.min(min, prediction[0]);
+      max = Math.max(max, prediction[0]);
+    }
+    double range = max > min ? max - min : 1.0;
+
+    StringBuilder json = new StringBuilder("[\n");
+    String[] resolutions = resolutionsStr.split(",");
+    for (int r = 0; r < resolutions.length; r++) {
+      double resolution = Double.parseDouble(resolutions[r].trim());
+      ParallelKStar quantized = new ParallelKStar();
+      quantized.setQuantizeResolution(resolution);
+      quantized.setQuantizeRelative(true);
+      quantized.buildClassifier(train);
+      double[][] actual = quantized.distributionsForInstances(test);
+      long rootFindings = quantized.getCacheMisses();
+      quantized.shutdownExecutorPool();
+
+      double sum = 0.0;
+      double worst = 0.0;
+      for (int i = 0; i < actual.length; i++) {
+        double error = Math.abs(actual[i][0] - expected[i][0]) / range;
+        sum += error;
+        worst = Math.max(worst, error);
+      }
+      json.append(String.format(Locale.US, "  {\"generator\": \"%s\", "
+        + "\"rows\": %d, \"attributes\": %d, \"missingRate\": %s, "
+        + "\"resolution\": %s, \"rootFindings\": %d, "
+        + "\"exactRootFindings\": %d, \"meanRelativeError\": %.6g, "
+        + "\"maxRelativeError\": %.6g}%s\n", generator, rows, attributes,
+        missing, resolution, rootFindings, exactRootFindings,
+        sum / actual.length, worst, r < resolutions.length - 1 ? "," : ""));
+    }
+    json.append("]\n");
+
+    if (output.length() == 0) {
+      System.out.print(json);
+    } else {
+      PrintWriter writer = new PrintWriter(new FileWriter(output));
+      try {
+        writer.print(json);
+      } finally {
+        writer.close();
+      }
+    }
+  }
+}
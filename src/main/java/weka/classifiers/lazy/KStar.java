@@ -27,7 +27,9 @@ import java.util.Random;
 import java.util.Vector;
 
 import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Evaluation;
 import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.lazy.kstar.KStarAttributeDistribution;
 import weka.classifiers.lazy.kstar.KStarCache;
 import weka.classifiers.lazy.kstar.KStarConstants;
 import weka.classifiers.lazy.kstar.KStarNominalAttribute;
@@ -118,6 +120,9 @@ public class KStar
   /** Table of random class value colomns */
   protected int [][] m_RandClassCols;
 
+  /** The distributions of the nominal attribute values in the training set */
+  protected KStarAttributeDistribution m_Distribution;
+
   /** Flag turning on and off the computation of random class colomns */
   protected int m_ComputeRandomCols = ON;
 
@@ -226,6 +231,7 @@ public class KStar
     instances.deleteWithMissingClass();
     
     m_Train = new Instances(instances, 0, instances.numInstances());
+    m_Distribution = new KStarAttributeDistribution(m_Train);
 
     // initializes class attributes ** java-speaking! :-) **
     init_m_Attributes();
@@ -244,6 +250,9 @@ public class KStar
     if ( instance.classIsMissing() )
       return;
     m_Train.add(instance);
+    if (m_Distribution != null) {
+      m_Distribution.add(instance);
+    }
     // update relevant attributes ...
     update_m_Attributes();
   }
@@ -257,6 +266,59 @@ public class KStar
    */
   public double [] distributionForInstance(Instance instance) throws Exception {
 
+    return distributionExcluding(instance, -1);
+  }
+
+  /**
+   * Predicts every training instance from all the other training instances.
+   * The row of each instance is left out of its own sums; the scale factors
+   * and stop parameters are those of the whole training data, so they
+   * differ from those of a model built without the instance by the one
+   * instance in the sphere sizes.
+   *
+   * @return the distribution of each training instance, in training order
+   * @throws Exception if an error occurred during the prediction
+   */
+  public double [][] leaveOneOutDistributions() throws Exception {
+
+    double [][] distributions = new double[m_Train.numInstances()][];
+    for (int i = 0; i < distributions.length; i++) {
+      distributions[i] = distributionExcluding(m_Train.instance(i), i);
+    }
+    return distributions;
+  }
+
+  /**
+   * Evaluates the model by leave-one-out cross-validation on its training
+   * data, without building a model per instance.
+   *
+   * @return the evaluation of the leave-one-out predictions
+   * @throws Exception if an error occurred during the prediction
+   */
+  public Evaluation leaveOneOut() throws Exception {
+
+    double [][] distributions = leaveOneOutDistributions();
+    Evaluation evaluation = new Evaluation(m_Train);
+    for (int i = 0; i < distributions.length; i++) {
+      evaluation.evaluateModelOnceAndRecordPrediction(distributions[i], 
+						      m_Train.instance(i));
+    }
+    return evaluation;
+  }
+
+  /**
+   * Calculates the class membership probabilities for the given test 
+   * instance, leaving one training instance out of the sums.
+   *
+   * @param instance the instance to be classified
+   * @param excluded the index of the training instance to leave out, -1 
+   * to use all of them
+   * @return predicted class probability distribution
+   * @throws Exception if an error occurred during the prediction
+   */
+  private double [] distributionExcluding(Instance instance, int excluded) 
+    throws Exception {
+
     double transProb = 0.0, temp = 0.0;
     double [] classProbability = new double[m_NumClasses];
     double [] predictedValue = new double[1];
@@ -272,6 +334,9 @@ public class KStar
       if (m_BlendMethod == B_ENTROPY) {
 	generateRandomClassColomns();
       }
+      if (m_Distribution == null) {
+	m_Distribution = new KStarAttributeDistribution(m_Train);
+      }
       m_Cache = new KStarCache[m_NumAttributes];
       for (int i=0; i<m_NumAttributes;i++) {
 	m_Cache[i] = new KStarCache();
@@ -281,9 +346,11 @@ public class KStar
     }
     // init done.
     Instance trainInstance;
-    Enumeration<Instance> enu = m_Train.enumerateInstances();
-    while ( enu.hasMoreElements() ) {
-      trainInstance = (Instance)enu.nextElement();
+    for (int j = 0; j < m_Train.numInstances(); j++) {
+      if (j == excluded) {
+	continue;
+      }
+      trainInstance = m_Train.instance(j);
       transProb = instanceTransformationProbability(instance, trainInstance);      
       switch ( m_ClassType )
 	{
@@ -367,6 +434,7 @@ public class KStar
 						  m_RandClassCols, 
 						  m_Cache[col]);
 	ksNominalAttr.setOptions(m_MissingMode, m_BlendMethod, m_GlobalBlend);
+	ksNominalAttr.setAttributeDistribution(m_Distribution);
 	transProb = ksNominalAttr.transProb();
 	ksNominalAttr = null;
 	break;
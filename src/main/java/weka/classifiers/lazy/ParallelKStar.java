@@ -24,21 +24,40 @@ package weka.classifiers.lazy;
 
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
 import weka.classifiers.UpdateableClassifier;
-import weka.classifiers.lazy.kstar.KStarCache;
+import weka.classifiers.lazy.kstar.KStarAttributeDistribution;
+import weka.classifiers.lazy.kstar.KStarCacheSidecar;
+import weka.classifiers.lazy.kstar.KStarConcurrentCache;
 import weka.classifiers.lazy.kstar.KStarConstants;
 import weka.classifiers.lazy.kstar.KStarNominalAttribute;
 import weka.classifiers.lazy.kstar.KStarNumericAttribute;
 import weka.classifiers.lazy.kstar.gpu.KStarOpenCLProxy;
+import weka.classifiers.lazy.kstar.parallel.KStarAttributeParameters;
+import weka.classifiers.lazy.kstar.parallel.KStarCandidateIndex;
+import weka.classifiers.lazy.kstar.parallel.KStarChunkWorker;
 import weka.classifiers.lazy.kstar.parallel.KStarComputationResults;
 import weka.classifiers.lazy.kstar.parallel.KStarComputationUnit;
+import weka.classifiers.lazy.kstar.parallel.KStarExecutionPlanner;
+import weka.classifiers.lazy.kstar.parallel.KStarMetrics;
+import weka.classifiers.lazy.kstar.parallel.KStarKernel;
+import weka.classifiers.lazy.kstar.parallel.KStarRandomClassColumns;
+import weka.classifiers.lazy.kstar.parallel.KStarShardClient;
+import weka.classifiers.lazy.kstar.parallel.KStarSlidingWindow;
+import weka.classifiers.lazy.kstar.parallel.KStarTrainingData;
+import weka.classifiers.lazy.kstar.parallel.KStarWorkQueue;
 import weka.core.*;
 import weka.core.Capabilities.Capability;
 import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
+import weka.core.neighboursearch.KDTree;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+import weka.gui.ProgrammaticProperty;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <!-- globalinfo-start -->
@@ -100,6 +119,36 @@ public class ParallelKStar
      */
     protected Instances m_Train;
 
+    /**
+     * The training instances in columnar form, read by the computation units.
+     * Rebuilt from m_Train when missing, e.g. after deserialization.
+     */
+    protected transient KStarTrainingData m_TrainData;
+
+    /**
+     * The distributions of the nominal attribute values in the training set,
+     * shared by the parameter computation and the OpenCL kernel.
+     */
+    protected KStarAttributeDistribution m_Distribution;
+
+    /**
+     * The search for the training instances worth scoring in approximate
+     * mode. Rebuilt from m_Train when missing.
+     */
+    protected transient KStarCandidateIndex m_CandidateIndex;
+
+    /**
+     * The connections to the shards holding the training data in sharded
+     * mode. Opened again when missing, e.g. after deserialization.
+     */
+    protected transient KStarShardClient[] m_Shards;
+
+    /** The precomputed attribute parameters read from the sidecar file, if any */
+    protected transient KStarCacheSidecar m_Sidecar;
+
+    /** Whether the sidecar file was looked for since the model was created or deserialized */
+    protected transient boolean m_SidecarChecked;
+
     /**
      * The number of instances in the dataset
      */
@@ -125,6 +174,13 @@ public class ParallelKStar
      */
     protected int[][] m_RandClassCols;
 
+    /**
+     * The permutations behind the random class colomns, so they can be
+     * updated with the training data. Recovered from m_RandClassCols when
+     * missing, e.g. in a model serialized by an older version.
+     */
+    protected KStarRandomClassColumns m_RandomColumns;
+
     /**
      * Flag turning on and off the computation of random class colomns
      */
@@ -137,9 +193,15 @@ public class ParallelKStar
 
     /**
      * A custom data structure for caching distinct attribute values
-     * and their scale factor or stop parameter.
+     * and their scale factor or stop parameter. Safe for concurrent
+     * predictions.
+     */
+    protected KStarConcurrentCache[] m_Cache;
+
+    /**
+     * The model configuration shared by the computation units
      */
-    protected KStarCache[] m_Cache;
+    protected KStarComputationUnit.KStarConfig m_Config;
 
     /**
      * missing value treatment
@@ -156,10 +218,55 @@ public class ParallelKStar
      */
     protected int m_GlobalBlend = 20;
 
-    /** Number of simultaneous threads to use in computation (0 = autodetect | CPU + 1). */
+    /** Number of simultaneous threads to use in computation (0 = autodetect | CPU). */
     protected int m_NumThreads = 0;
+
+    /** Whether to accumulate the transformation probabilities in log space */
+    protected boolean m_LogSpace = false;
+
+    /** Relative tolerance for pruning the sphere size sums of numeric attributes, 0 = exact */
+    protected double m_PruneTolerance = 0.0;
+
+    /** Maximum number of values cached per attribute, 0 = unbounded */
+    protected int m_CacheCapacity = 0;
+
+    /** Grid spacing for quantizing numeric attribute values, 0 = exact values */
+    protected double m_QuantizeResolution = 0.0;
+
+    /** Whether the grid spacing is relative to the range of the attribute */
+    protected boolean m_QuantizeRelative = false;
+
+    /** Whether to hold the columnar training data in single precision */
+    protected boolean m_SinglePrecision = false;
+
+    /** Largest neglected probability mass relative to the sums, 0 = exact */
+    protected double m_ApproximationTolerance = 0.0;
+
+    /** The nearest neighbour search used to find the candidates in approximate mode */
+    protected NearestNeighbourSearch m_CandidateSearch = new KDTree();
+
+    /** The largest bound of the neglected mass of the approximated predictions */
+    protected double m_MaxNeglectedMass = 0.0;
+
+    /** The comma separated host:port endpoints of the shard servers, empty = not sharded */
+    protected String m_ShardEndpoints = "";
+
+    /** The file holding precomputed attribute parameters, empty = none */
+    protected String m_CacheSidecar = "";
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
+    /** Number of test instances scored together against each block of training data. */
+    private static final int BATCH_TILE_SIZE = 32;
+    /** Number of training instances predicted together by leave-one-out, bounds the partial sums held. */
+    private static final int LEAVE_ONE_OUT_BATCH_SIZE = 1024;
+
+    /**
+     * The pool of worker threads shared by all predictions of this model.
+     * Created lazily on first use, so a deserialized model recreates it too.
+     */
+    protected transient ExecutorService m_ExecutorPool;
+
+    /** The number of threads the current worker pool was created with */
+    protected transient int m_ExecutorPoolSize;
 
     /* Open CL mode*/
     public static final int NO_OPENCL = 0;
@@ -174,6 +281,64 @@ public class ParallelKStar
 
     protected int m_OpenCLMode = NO_OPENCL;
 
+    /* Execution plans */
+    public static final int PLAN_AUTO = 0;
+    public static final int PLAN_SERIAL = KStarExecutionPlanner.SERIAL;
+    public static final int PLAN_INTRA = KStarExecutionPlanner.INTRA;
+    public static final int PLAN_BATCH = KStarExecutionPlanner.BATCH;
+
+    public static final Tag[] TAGS_PLAN = {
+            new Tag(PLAN_AUTO, "Choose from the estimated cost of each prediction"),
+            new Tag(PLAN_SERIAL, "Serial, in the calling thread"),
+            new Tag(PLAN_INTRA, "Split the training data of each instance across the threads"),
+            new Tag(PLAN_BATCH, "Split the instances of a batch across the threads")
+    };
+
+    /** How the predictions are executed */
+    protected int m_ExecutionPlan = PLAN_AUTO;
+
+    /** Chooses the plan of each prediction in automatic mode, calibrated when the model is built */
+    protected transient KStarExecutionPlanner m_Planner;
+
+    /** The plan of the last prediction */
+    protected transient int m_LastPlan;
+
+    /** Whether the timings and counters of the predictions are collected */
+    protected volatile boolean m_CollectMetrics = false;
+
+    /** Receives the timings and counters, created on demand when they are collected */
+    protected transient volatile KStarMetrics m_Metrics;
+
+    /** The number of most recent training instances kept, 0 = all */
+    protected int m_WindowSize = 0;
+
+    /** The attribute holding the time of the instances, empty = none */
+    protected String m_WindowTimeAttribute = "";
+
+    /** The time span of the window, in the units of the time attribute, 0 = unlimited */
+    protected double m_WindowSpan = 0.0;
+
+    /** The arrival order of the training instances in a sliding window, rebuilt from m_Train when missing */
+    protected KStarSlidingWindow m_Window;
+
+    /** The index of the time attribute of the window, -1 for none */
+    protected int m_TimeIndex = -1;
+
+    /** The newest time seen by the window */
+    protected double m_NewestTime;
+
+    /** The comma separated global blend settings tuned by buildClassifier, empty = no tuning */
+    protected String m_BlendGrid = "";
+
+    /** The blend settings evaluated by the last tuning, null if there was none */
+    protected int[] m_TunedBlends;
+
+    /** The global blend setting chosen by the last tuning, used instead of m_GlobalBlend if m_TunedBlends is set */
+    protected int m_TunedBlend;
+
+    /** The leave-one-out error rate, or root mean squared error, of each tuned blend setting */
+    protected double[] m_TunedErrors;
+
     /**
      * Define possible missing value handling methods
      */
@@ -265,28 +430,391 @@ public class ParallelKStar
         instances = new Instances(instances);
         instances.deleteWithMissingClass();
 
+        if (isSharded()) {
+            buildFromShards(instances);
+            return;
+        }
+
         m_Train = new Instances(instances, 0, instances.numInstances());
+        m_Window = null;
+        m_RandomColumns = null;
+        if (isWindowed()) { // keep the instances the window would hold after adding them one by one
+            KStarSlidingWindow window = window();
+            int first = 0;
+            while (window.size() > 0 && ((m_WindowSize > 0 && window.size() > m_WindowSize)
+                    || isExpired(window.oldest()))) {
+                window.removeOldest();
+                first++;
+            }
+            if (first > 0) {
+                m_Train = new Instances(m_Train, first, m_Train.numInstances() - first);
+                m_Window = null;
+                window();
+            }
+        }
+        m_TrainData = new KStarTrainingData(m_Train, m_SinglePrecision);
+        m_Distribution = new KStarAttributeDistribution(m_Train);
 
         // initializes class attributes ** java-speaking! :-) **
         init_m_Attributes();
+
+        // calibrates the automatic execution plan on this data
+        m_Planner = null;
+        if (m_ExecutionPlan == PLAN_AUTO && m_OpenCLMode == NO_OPENCL) {
+            long start = System.nanoTime();
+            planner();
+            record(KStarMetrics.INITIALISATION, start);
+        }
+
+        m_TunedBlends = null;
+        m_TunedErrors = null;
+        if (m_BlendGrid.trim().length() > 0 && m_BlendMethod == B_SPHERE && m_NumInstances > 1) {
+            tuneGlobalBlend(parseBlendGrid(m_BlendGrid));
+        }
+    }
+
+    /**
+     * Generates the classifier from the training data held by the shard
+     * servers. The given instances only provide the header; the parameters of
+     * the attributes are computed over the merged distributions of the shards.
+     *
+     * @param instances the header of the training data
+     * @throws Exception if a shard cannot be reached or has another header
+     */
+    private synchronized void buildFromShards(Instances instances) throws Exception {
+        if (m_BlendMethod == B_ENTROPY) {
+            throw new Exception("Sharded scoring only supports the sphere blend method.");
+        }
+        closeShards();
+        KStarShardClient[] shards = connectShards();
+        KStarAttributeDistribution distribution = null;
+        int numInstances = 0;
+        for (KStarShardClient shard : shards) {
+            if (!instances.equalHeaders(shard.getHeader())) {
+                closeShards(shards);
+                throw new Exception("Shard header differs from the training header: "
+                        + instances.equalHeadersMsg(shard.getHeader()));
+            }
+            if (distribution == null) {
+                distribution = shard.getDistribution();
+            } else {
+                distribution.merge(shard.getDistribution());
+            }
+            numInstances += shard.getNumInstances();
+        }
+        m_Shards = shards;
+
+        m_Train = new Instances(instances, 0);
+        m_TrainData = new KStarTrainingData(m_Train, m_SinglePrecision);
+        m_Distribution = distribution;
+        init_m_Attributes();
+        m_NumInstances = numInstances;
+    }
+
+    /**
+     * Opens a connection to each shard server.
+     *
+     * @return the connections, in the order of the endpoints
+     * @throws Exception if a shard cannot be reached
+     */
+    private KStarShardClient[] connectShards() throws Exception {
+        String[] endpoints = m_ShardEndpoints.split(",");
+        KStarShardClient[] shards = new KStarShardClient[endpoints.length];
+        try {
+            for (int i = 0; i < endpoints.length; i++) {
+                shards[i] = new KStarShardClient(endpoints[i].trim());
+            }
+        } catch (Exception e) {
+            closeShards(shards);
+            throw e;
+        }
+        return shards;
+    }
+
+    /**
+     * Closes connections to shard servers.
+     *
+     * @param shards the connections, may contain nulls
+     */
+    private static void closeShards(KStarShardClient[] shards) {
+        for (KStarShardClient shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the connections to the shard servers. They are opened again on
+     * demand by the next prediction.
+     */
+    public synchronized void closeShards() {
+        if (m_Shards != null) {
+            closeShards(m_Shards);
+            m_Shards = null;
+        }
+    }
+
+    /**
+     * Sums the transformation probabilities of the test instances on the
+     * shard servers. The request is sent to every shard before the replies are
+     * read, so the shards compute at the same time; the partial sums are added
+     * in shard order.
+     *
+     * @param parameters the parameters of the test instances
+     * @return the sums of each test instance
+     * @throws Exception if a shard failed
+     */
+    private synchronized KStarComputationResults[] computeOnShards(KStarAttributeParameters[] parameters)
+            throws Exception {
+        if (m_Shards == null) {
+            m_Shards = connectShards();
+        }
+        try {
+            for (KStarShardClient shard : m_Shards) { // scatter
+                shard.sendScore(m_Config, parameters);
+            }
+            KStarComputationResults[] results = new KStarComputationResults[parameters.length];
+            for (int t = 0; t < results.length; t++) {
+                results[t] = new KStarComputationResults(m_NumClasses, m_Config.m_LogSpace);
+            }
+            for (KStarShardClient shard : m_Shards) { // gather
+                KStarComputationResults[] partial = shard.receiveScore();
+                for (int t = 0; t < results.length; t++) {
+                    results[t].add(partial[t]);
+                }
+            }
+            return results;
+        } catch (Exception e) {
+            closeShards(); // the streams are out of step
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether the training data is held by shard servers.
+     *
+     * @return true if shard endpoints are set
+     */
+    public boolean isSharded() {
+        return m_ShardEndpoints != null && m_ShardEndpoints.trim().length() > 0;
     }
 
     /**
-     * Adds the supplied instance to the training set
+     * Adds the supplied instance to the training set. In a sliding window the
+     * oldest instance is overwritten once the window is full, and the
+     * instances older than the time span are removed. The columnar data, the
+     * distributions and the random class colomns are updated in place, and
+     * only the cached parameters of the attributes whose values changed are
+     * dropped; in entropic blend mode the parameters depend on every class
+     * value, so all of them are dropped.
+     * <p>
+     * The exact parameters of an attribute depend on every training value it
+     * holds, so any instance added, expired or removed with a value for an
+     * attribute drops the whole cache of that attribute. An update therefore
+     * drops nearly every cache, and the next predictions compute their
+     * parameters again. Only a window of fixed size that overwrites an
+     * instance with one holding the same values for some attributes keeps the
+     * caches of those attributes.
      *
      * @param instance the instance to add
      * @throws Exception if instance could not be incorporated successfully
      */
-    public void updateClassifier(Instance instance) throws Exception {
+    public synchronized void updateClassifier(Instance instance) throws Exception {
         String debug = "(KStar.updateClassifier) ";
 
+        if (isSharded())
+            throw new Exception("Instances cannot be added in sharded mode, they belong to the shard servers");
+
         if (m_Train.equalHeaders(instance.dataset()) == false)
             throw new Exception("Incompatible instance types");
         if (instance.classIsMissing())
             return;
+        if (m_InitFlag == ON) {
+            m_RandomColumns = null; // generated again by initComputation
+        } else if (m_BlendMethod == B_ENTROPY && m_RandomColumns == null) {
+            m_RandomColumns = new KStarRandomClassColumns(m_RandClassCols, m_NumInstances, new Random(42));
+        }
+        boolean[] changed = new boolean[m_NumAttributes];
+        if (isWindowed()) {
+            KStarSlidingWindow window = window();
+            while (m_WindowSize > 0 && window.size() > m_WindowSize) { // the window was made smaller
+                removeInstance(window.removeOldest(), changed);
+            }
+            double time = arrivalTime(instance);
+            if (m_WindowSize > 0 && window.size() == m_WindowSize) {
+                int row = window.removeOldest();
+                replaceInstance(row, instance, changed);
+                window.added(row, time);
+            } else {
+                addInstance(instance, changed);
+                window.added(m_Train.numInstances() - 1, time);
+            }
+            while (window.size() > 0 && isExpired(window.oldest())) {
+                removeInstance(window.removeOldest(), changed);
+            }
+        } else {
+            addInstance(instance, changed);
+        }
+        m_NumInstances = m_Train.numInstances();
+        m_CandidateIndex = null;
+        if (m_InitFlag == OFF) {
+            if (m_RandomColumns != null) {
+                m_RandClassCols = m_RandomColumns.columns();
+            }
+            m_Config = createConfig();
+            m_Sidecar = null; // computed on other training data
+            for (int i = 0; i < m_NumAttributes; i++) {
+                if (changed[i] || m_BlendMethod == B_ENTROPY) {
+                    m_Cache[i].clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends an instance to the training data.
+     *
+     * @param instance the instance to add
+     * @param changed  set for the attributes whose values changed
+     */
+    private void addInstance(Instance instance, boolean[] changed) {
         m_Train.add(instance);
-        // update relevant attributes ...
-        update_m_Attributes();
+        if (m_TrainData != null) {
+            m_TrainData.add(instance);
+        }
+        if (m_Distribution != null) {
+            m_Distribution.add(instance);
+        }
+        if (m_RandomColumns != null) {
+            m_RandomColumns.add((int) instance.classValue());
+        }
+        for (int i = 0; i < m_NumAttributes; i++) {
+            changed[i] |= !instance.isMissing(i);
+        }
+    }
+
+    /**
+     * Overwrites a training instance with another one.
+     *
+     * @param row      the row of the training instance
+     * @param instance the instance to put in its place
+     * @param changed  set for the attributes whose values changed
+     */
+    private void replaceInstance(int row, Instance instance, boolean[] changed) {
+        Instance old = m_Train.instance(row);
+        for (int i = 0; i < m_NumAttributes; i++) {
+            changed[i] |= old.isMissing(i) != instance.isMissing(i)
+                    || (!instance.isMissing(i) && old.value(i) != instance.value(i));
+        }
+        if (m_Distribution != null) {
+            m_Distribution.remove(old);
+            m_Distribution.add(instance);
+        }
+        m_Train.set(row, instance);
+        if (m_TrainData != null) {
+            m_TrainData.replace(row, instance);
+        }
+        if (m_RandomColumns != null) {
+            m_RandomColumns.setClass(row, (int) instance.classValue());
+        }
+    }
+
+    /**
+     * Removes a training instance; the last training instance takes its row.
+     *
+     * @param row     the row of the training instance
+     * @param changed set for the attributes whose values changed
+     */
+    private void removeInstance(int row, boolean[] changed) {
+        Instance old = m_Train.instance(row);
+        for (int i = 0; i < m_NumAttributes; i++) {
+            changed[i] |= !old.isMissing(i);
+        }
+        if (m_Distribution != null) {
+            m_Distribution.remove(old);
+        }
+        if (m_RandomColumns != null) {
+            m_RandomColumns.remove(row);
+        }
+        int last = m_Train.numInstances() - 1;
+        if (row != last) {
+            m_Train.set(row, m_Train.instance(last));
+            if (m_TrainData != null) {
+                m_TrainData.move(last, row);
+            }
+            m_Window.moved(last, row);
+        }
+        m_Train.delete(last);
+        if (m_TrainData != null) {
+            m_TrainData.removeLast();
+        }
+    }
+
+    /**
+     * Checks whether instances leave the training set as new ones arrive.
+     *
+     * @return true if the window has a size or a time span
+     */
+    public boolean isWindowed() {
+        return m_WindowSize > 0 || (m_WindowTimeAttribute.length() > 0 && m_WindowSpan > 0.0);
+    }
+
+    /**
+     * Returns the arrival order of the training instances, recording the
+     * current ones in row order when it is missing.
+     *
+     * @return the window
+     * @throws Exception if the time attribute is not numeric or a date
+     */
+    private KStarSlidingWindow window() throws Exception {
+        if (m_Window == null) {
+            m_TimeIndex = -1;
+            if (m_WindowTimeAttribute.length() > 0) {
+                SingleIndex index = new SingleIndex(m_WindowTimeAttribute);
+                index.setUpper(m_Train.numAttributes() - 1);
+                m_TimeIndex = index.getIndex();
+                if (!m_Train.attribute(m_TimeIndex).isNumeric() || m_TimeIndex == m_Train.classIndex()) {
+                    throw new Exception("The time attribute of the window must be a numeric or date attribute "
+                            + "other than the class");
+                }
+            }
+            m_NewestTime = Double.NEGATIVE_INFINITY;
+            KStarSlidingWindow window = new KStarSlidingWindow();
+            for (int row = 0; row < m_Train.numInstances(); row++) {
+                window.added(row, arrivalTime(m_Train.instance(row)));
+            }
+            m_Window = window;
+        }
+        return m_Window;
+    }
+
+    /**
+     * Returns the time of an instance entering the window and advances the
+     * newest time. An instance without a time gets the newest time seen.
+     *
+     * @param instance the instance
+     * @return its time, 0 without a time attribute
+     */
+    private double arrivalTime(Instance instance) {
+        if (m_TimeIndex < 0) {
+            return 0.0;
+        }
+        if (!instance.isMissing(m_TimeIndex)) {
+            m_NewestTime = Math.max(m_NewestTime, instance.value(m_TimeIndex));
+        }
+        return m_NewestTime;
+    }
+
+    /**
+     * Checks whether a training instance is older than the time span of the
+     * window before the newest instance.
+     *
+     * @param row the row of the training instance
+     * @return true if it leaves the window
+     */
+    private boolean isExpired(int row) {
+        return m_TimeIndex >= 0 && m_WindowSpan > 0.0 && m_Window.time(row) <= m_NewestTime - m_WindowSpan;
     }
 
     public double[] distributionForInstanceInOpenCL(Instance instance) throws Exception {
@@ -300,30 +828,13 @@ public class ParallelKStar
             classProbability[i] = 0.0;
         }
         predictedValue[0] = 0.0;
-        if (m_InitFlag == ON) {
-            // need to compute them only once and will be used for all instances.
-            // We are doing this because the evaluation module controls the calls.
-            if (m_BlendMethod == B_ENTROPY) {
-                generateRandomClassColomns();
-            }
-            m_Cache = new KStarCache[m_NumAttributes];
-            for (int i = 0; i < m_NumAttributes; i++) {
-                m_Cache[i] = new KStarCache();
-            }
-            m_InitFlag = OFF;
-            //      System.out.println("Computing...");
-        }
+        initComputation();
         // init done.
 
 
 
-            KStarComputationUnit.KStarConfig threadConfig = new KStarComputationUnit.KStarConfig();
-            threadConfig.m_TotalInstances = m_NumInstances;
-            threadConfig.m_BlendMethod = m_BlendMethod;
-            threadConfig.m_GlobalBlend = m_GlobalBlend;
-            threadConfig.m_MissingMode = m_MissingMode;
-            threadConfig.m_RandClassCols = m_RandClassCols;
-            KStarOpenCLProxy openClProxy = new KStarOpenCLProxy(instance, m_Train, m_NumClasses, m_NumAttributes, m_Train.numInstances(), threadConfig, m_OpenCLMode);
+            KStarOpenCLProxy openClProxy = new KStarOpenCLProxy(instance, m_Train, m_NumClasses, m_NumAttributes, m_Train.numInstances(), m_Config, m_Distribution, m_OpenCLMode);
+            openClProxy.setMetrics(metrics());
 
 
 
@@ -359,78 +870,676 @@ public class ParallelKStar
     // parallel variables end
 
     public double[] distributionForInstance(Instance instance) throws Exception {
+        if (isSharded()) {
+            initComputation();
+            return distributionFromResults(computeOnShards(
+                    new KStarAttributeParameters[]{computeAttributeParameters(instance)})[0]);
+        }
         if( m_OpenCLMode != NO_OPENCL ) { // OpenCL for now..
             return distributionForInstanceInOpenCL(instance);
         }
 
-        String debug = "(KStar.distributionForInstance) ";
-        double transProb = 0.0, temp = 0.0;
-        double[] classProbability = new double[m_NumClasses];
-        double[] predictedValue = new double[1];
+        initComputation();
+        int plan = choosePlan(1);
 
-        // initialization ...
-        for (int i = 0; i < classProbability.length; i++) {
-            classProbability[i] = 0.0;
-        }
-        predictedValue[0] = 0.0;
-        if (m_InitFlag == ON) {
-            // need to compute them only once and will be used for all instances.
-            // We are doing this because the evaluation module controls the calls.
-            if (m_BlendMethod == B_ENTROPY) {
-                generateRandomClassColomns();
-            }
-            m_Cache = new KStarCache[m_NumAttributes];
-            for (int i = 0; i < m_NumAttributes; i++) {
-                m_Cache[i] = new KStarCache();
-            }
-            m_InitFlag = OFF;
-            //      System.out.println("Computing...");
+        // phase one: scale/stop parameters over the whole training set
+        long start = System.nanoTime();
+        long misses = getCacheMisses();
+        KStarAttributeParameters parameters = computeAttributeParameters(instance);
+        observeMisses(System.nanoTime() - start, getCacheMisses() - misses);
+
+        KStarComputationResults results = approximate(instance, parameters);
+        if (results == null) {
+            results = computeInParallel(new KStarAttributeParameters[]{parameters}, workers(plan, 1))[0];
         }
-        // init done.
-        Instance trainInstance;
-        Enumeration enu = m_Train.enumerateInstances();
 
+        return distributionFromResults(results);
+    }
 
-        if( m_Debug ) { // non parallel
-            KStarComputationResults results = computeDirectly(instance);
-            classProbability = results.classProbability;
-            predictedValue = results.predictedValue;
-        } else {
-            int threads = getNumThreads() == 0 ?  CORE_POOL_SIZE : getNumThreads();
-            ExecutorService sExecutor = Executors.newFixedThreadPool(threads);
+    /**
+     * Batch scoring method. Scores the test instances in tiles: each work
+     * item scores one tile of test instances against one chunk of the
+     * training data, so every block of training data is loaded once per
+     * tile. The chunks are the ones used by distributionForInstance, hence the
+     * predictions are the same as for single instances.
+     *
+     * @param insts the instances to get predictions for
+     * @return an array of probability distributions, one for each instance
+     * @throws Exception if an error occurred during the prediction
+     */
+    @Override
+    public double[][] distributionsForInstances(Instances insts) throws Exception {
+        if (!isSharded() && m_OpenCLMode != NO_OPENCL) {
+            return super.distributionsForInstances(insts);
+        }
 
-            List<Instances> threadSplitInstances = getInstancesForEachThread(threads);
-            List<Callable<KStarComputationResults>> computationUnits = new ArrayList<Callable<KStarComputationResults>>();
+        initComputation();
+
+        int numTests = insts.numInstances();
+        int plan = isSharded() ? PLAN_SERIAL : choosePlan(numTests);
+        KStarAttributeParameters[] parameters = computeAttributeParameters(insts,
+                plan == PLAN_BATCH ? workers(plan, numTests) : 1);
+        if (isSharded()) {
+            KStarComputationResults[] results = computeOnShards(parameters);
+            double[][] distributions = new double[numTests][];
+            for (int t = 0; t < numTests; t++) {
+                distributions[t] = distributionFromResults(results[t]);
+            }
+            return distributions;
+        }
 
-            KStarComputationUnit.KStarConfig threadConfig = new KStarComputationUnit.KStarConfig();
-            threadConfig.m_TotalInstances = m_NumInstances;
-            threadConfig.m_BlendMethod = m_BlendMethod;
-            threadConfig.m_GlobalBlend = m_GlobalBlend;
-            threadConfig.m_MissingMode = m_MissingMode;
-            threadConfig.m_RandClassCols = m_RandClassCols;
-            for(Instances computationData : threadSplitInstances) { // scatter
-                computationUnits.add(new KStarComputationUnit(instance, computationData, threadConfig, m_Cache.clone()));
+        KStarComputationResults[] results = approximate(insts, parameters,
+                plan == PLAN_SERIAL ? 1 : workers(PLAN_BATCH, numTests));
+        List<KStarAttributeParameters> exact = new ArrayList<KStarAttributeParameters>();
+        for (int t = 0; t < numTests; t++) {
+            if (results[t] == null) {
+                exact.add(parameters[t]);
+            }
+        }
+        KStarComputationResults[] exactResults = computeInParallel(exact.toArray(new KStarAttributeParameters[0]),
+                workers(plan, exact.size()));
+        for (int t = 0, e = 0; t < numTests; t++) {
+            if (results[t] == null) {
+                results[t] = exactResults[e++];
             }
+        }
+        double[][] distributions = new double[numTests][];
+        for (int t = 0; t < numTests; t++) {
+            distributions[t] = distributionFromResults(results[t]);
+        }
+        return distributions;
+    }
 
+    /**
+     * Predicts every training instance from all the other training instances.
+     * KStar needs no training, so instead of building N models the training
+     * instances are scored in batches against the columnar training data,
+     * with the row of each instance left out of its own sums. The scale
+     * factors and stop parameters are those of the whole training data: they
+     * differ from those of a model built without the instance by the one
+     * instance in the sphere sizes.
+     *
+     * @return the distribution of each training instance, in training order
+     * @throws Exception if the model is sharded or a worker failed
+     */
+    public double[][] leaveOneOutDistributions() throws Exception {
+        if (isSharded()) {
+            throw new Exception("Leave-one-out needs the training data of the shards.");
+        }
+        initComputation();
+
+        double[][] distributions = new double[m_NumInstances][];
+        for (int first = 0; first < m_NumInstances; first += LEAVE_ONE_OUT_BATCH_SIZE) {
+            int count = Math.min(LEAVE_ONE_OUT_BATCH_SIZE, m_NumInstances - first);
+            int plan = choosePlan(count);
+            KStarAttributeParameters[] parameters = computeAttributeParameters(new Instances(m_Train, first, count),
+                    plan == PLAN_BATCH ? workers(plan, count) : 1);
+            int[] excluded = new int[count];
+            for (int t = 0; t < count; t++) {
+                excluded[t] = first + t;
+            }
+            KStarComputationResults[] results = computeInParallel(parameters, excluded, workers(plan, count));
+            for (int t = 0; t < count; t++) {
+                distributions[first + t] = distributionFromResults(results[t]);
+            }
+        }
+        return distributions;
+    }
 
+    /**
+     * Evaluates the model by leave-one-out cross-validation on its training
+     * data, see leaveOneOutDistributions().
+     *
+     * @return the evaluation of the leave-one-out predictions
+     * @throws Exception if the model is sharded or a worker failed
+     */
+    public Evaluation leaveOneOut() throws Exception {
+        return evaluate(leaveOneOutDistributions());
+    }
 
-            List<Future<KStarComputationResults>> results = sExecutor.invokeAll(computationUnits);
-            sExecutor.shutdown();
-            sExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); // "gather wait"
-            for(Future<KStarComputationResults> result : results) {
-                KStarComputationResults threadComputationResult = result.get();
-                predictedValue[0] += threadComputationResult.predictedValue[0];
-                temp += threadComputationResult.temp;
+    /**
+     * Evaluates predictions of the training instances.
+     *
+     * @param distributions the distribution of each training instance, in training order
+     * @return the evaluation of the predictions
+     * @throws Exception if a prediction cannot be recorded
+     */
+    private Evaluation evaluate(double[][] distributions) throws Exception {
+        Evaluation evaluation = new Evaluation(m_Train);
+        for (int i = 0; i < distributions.length; i++) {
+            evaluation.evaluateModelOnceAndRecordPrediction(distributions[i], m_Train.instance(i));
+        }
+        return evaluation;
+    }
 
-                for (int i = 0; i < classProbability.length; i++) {
-                    classProbability[i] += threadComputationResult.classProbability[i];
+    /**
+     * Chooses the global blend setting with the smallest leave-one-out error
+     * rate, or root mean squared error for a numeric class, and keeps its
+     * caches. The global blend option itself is left as it is. The parameters
+     * of every distinct training value are computed first for all the
+     * settings at once, in parallel over the attributes: the distances of a
+     * value to the training values are taken once, and the root finders of
+     * the settings share the sphere sizes of the scale factors they have in
+     * common, such as their brackets. Each setting gets its own caches, filled
+     * from those parameters. The settings are then scored in a single
+     * leave-one-out sweep: every training row is scored once per setting in
+     * the same work items, so each chunk of the training data is loaded once
+     * for all of them, and every held-out row accumulates one sum per
+     * setting. The sums are those of leaveOneOutDistributions() with the
+     * setting given. Ties go to the first setting.
+     *
+     * @param blends the global blend settings to evaluate
+     * @throws Exception if a computation fails
+     */
+    private void tuneGlobalBlend(final int[] blends) throws Exception {
+        initComputation();
+        final double[][] keys = new double[m_NumAttributes][];
+        final double[][][] values = new double[m_NumAttributes][][];
+        final double[][][] pmiss = new double[m_NumAttributes][][];
+        boolean prefill = m_QuantizeResolution <= 0.0; // the caches of quantized values hold grid points
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < m_NumAttributes && prefill; i++) {
+            int type = m_Train.attribute(i).type();
+            if (i == m_Train.classIndex() || (type != Attribute.NOMINAL && type != Attribute.NUMERIC)) {
+                continue;
+            }
+            if (type == Attribute.NOMINAL) {
+                keys[i] = new double[m_Train.attribute(i).numValues()];
+                for (int v = 0; v < keys[i].length; v++) {
+                    keys[i][v] = v;
                 }
+            } else {
+                keys[i] = m_Distribution.getDistinctValues(i);
             }
-
+            values[i] = new double[keys[i].length][blends.length];
+            pmiss[i] = new double[keys[i].length][blends.length];
+            final int attribute = i;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Instance template = new DenseInstance(m_NumAttributes);
+                    template.setDataset(m_Train);
+                    for (int k = 0; k < keys[attribute].length; k++) {
+                        template.setValue(attribute, keys[attribute][k]);
+                        if (m_Train.attribute(attribute).type() == Attribute.NOMINAL) {
+                            KStarNominalAttribute ksNominalAttr = new KStarNominalAttribute(template, null,
+                                    attribute, m_Train, m_RandClassCols, null);
+                            ksNominalAttr.setOptions(m_MissingMode, m_BlendMethod, blend());
+                            ksNominalAttr.setAttributeDistribution(m_Distribution);
+                            ksNominalAttr.computeParameters(blends, values[attribute][k], pmiss[attribute][k]);
+                        } else {
+                            KStarNumericAttribute ksNumericAttr = new KStarNumericAttribute(template, null,
+                                    attribute, m_Train, m_RandClassCols, null);
+                            ksNumericAttr.setOptions(m_MissingMode, m_BlendMethod, blend());
+                            ksNumericAttr.setAttributeDistribution(sortedDistribution());
+                            ksNumericAttr.setPruneTolerance(m_PruneTolerance);
+                            ksNumericAttr.computeParameters(blends, values[attribute][k], pmiss[attribute][k]);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Future<Object> result : getExecutorPool(threads()).invokeAll(tasks)) {
+            result.get();
         }
+        record(KStarMetrics.PARAMETERS, start);
 
+        int numBlends = blends.length;
+        KStarConcurrentCache[][] caches = new KStarConcurrentCache[numBlends][m_NumAttributes];
+        for (int b = 0; b < numBlends; b++) {
+            for (int i = 0; i < m_NumAttributes; i++) {
+                caches[b][i] = new KStarConcurrentCache(m_CacheCapacity);
+                for (int k = 0; keys[i] != null && k < keys[i].length; k++) {
+                    caches[b][i].store(keys[i][k], values[i][k][b], pmiss[i][k][b]);
+                }
+            }
+        }
 
+        // the parameters of the sidecar file are those of one setting only
+        KStarCacheSidecar sidecar = m_Sidecar;
+        m_Sidecar = null;
+        m_TunedBlends = blends;
+        double[][][] distributions = new double[numBlends][m_NumInstances][];
+        try {
+            for (int first = 0; first < m_NumInstances; first += LEAVE_ONE_OUT_BATCH_SIZE) {
+                int count = Math.min(LEAVE_ONE_OUT_BATCH_SIZE, m_NumInstances - first);
+                int plan = choosePlan(count * numBlends);
+                Instances batch = new Instances(m_Train, first, count);
+                KStarAttributeParameters[] parameters = new KStarAttributeParameters[count * numBlends];
+                int[] excluded = new int[count * numBlends];
+                for (int b = 0; b < numBlends; b++) {
+                    m_TunedBlend = blends[b];
+                    m_Cache = caches[b];
+                    KStarAttributeParameters[] blendParameters = computeAttributeParameters(batch,
+                            plan == PLAN_BATCH ? workers(plan, count) : 1);
+                    for (int t = 0; t < count; t++) { // the settings of a row fall into the same tile
+                        parameters[t * numBlends + b] = blendParameters[t];
+                        excluded[t * numBlends + b] = first + t;
+                    }
+                }
+                KStarComputationResults[] results = computeInParallel(parameters, excluded,
+                        workers(plan, parameters.length));
+                for (int t = 0; t < count; t++) {
+                    for (int b = 0; b < numBlends; b++) {
+                        distributions[b][first + t] = distributionFromResults(results[t * numBlends + b]);
+                    }
+                }
+            }
+        } finally {
+            m_Sidecar = sidecar;
+        }
+
+        double[] errors = new double[numBlends];
+        int best = 0;
+        for (int b = 0; b < numBlends; b++) {
+            errors[b] = evaluate(distributions[b]).errorRate();
+            if (errors[b] < errors[best]) {
+                best = b;
+            }
+        }
+        m_TunedBlend = blends[best];
+        m_TunedErrors = errors;
+        m_InitFlag = ON; // the configuration and the sidecar fingerprint depend on the setting
+        initComputation();
+        m_Cache = caches[best];
+    }
+
+    /**
+     * Returns the global blend setting the parameters are computed with.
+     *
+     * @return the setting chosen by the last tuning, or the global blend
+     * option if the model was not tuned
+     */
+    private int blend() {
+        return m_TunedBlends != null ? m_TunedBlend : m_GlobalBlend;
+    }
+
+    /**
+     * Parses a list of global blend settings.
+     *
+     * @param grid the comma separated settings
+     * @return the settings, each restricted to [0,100]
+     * @throws Exception if a setting is not an integer
+     */
+    private static int[] parseBlendGrid(String grid) throws Exception {
+        String[] parts = grid.split(",");
+        int[] blends = new int[parts.length];
+        for (int b = 0; b < parts.length; b++) {
+            try {
+                blends[b] = Math.max(0, Math.min(100, Integer.parseInt(parts[b].trim())));
+            } catch (NumberFormatException e) {
+                throw new Exception("Invalid global blend setting: " + parts[b]);
+            }
+        }
+        return blends;
+    }
+
+    /**
+     * Sums the transformation probabilities of the test instances of a batch
+     * over the training instances found by the candidate search, in
+     * approximate mode, split into contiguous ranges over the worker pool
+     * when more than one thread is given.
+     *
+     * @param insts      the test instances
+     * @param parameters the parameters of the test instances
+     * @param threads    the number of workers, 1 to work in the calling thread
+     * @return the sums of each test instance, null for those that must be
+     * scored exactly
+     * @throws Exception if the search failed
+     */
+    private KStarComputationResults[] approximate(final Instances insts, final KStarAttributeParameters[] parameters,
+                                                  int threads) throws Exception {
+        final KStarComputationResults[] results = new KStarComputationResults[parameters.length];
+        if (m_ApproximationTolerance <= 0.0 || m_CandidateIndex == null) {
+            return results;
+        }
+        if (threads <= 1 || parameters.length <= 1) {
+            for (int t = 0; t < parameters.length; t++) {
+                results[t] = approximate(insts.instance(t), parameters[t]);
+            }
+            return results;
+        }
+
+        int ranges = Math.min(threads, parameters.length);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int r = 0; r < ranges; r++) {
+            final int first = (int) ((long) parameters.length * r / ranges);
+            final int last = (int) ((long) parameters.length * (r + 1) / ranges);
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for (int t = first; t < last; t++) {
+                        results[t] = approximate(insts.instance(t), parameters[t]);
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<Object> result : getExecutorPool(threads()).invokeAll(tasks)) {
+            result.get();
+        }
+        return results;
+    }
+
+    /**
+     * Sums the transformation probabilities of a test instance over the
+     * training instances found by the candidate search, in approximate mode.
+     *
+     * @param instance   the test instance
+     * @param parameters the parameters of the test instance
+     * @return the sums, or null if the instance must be scored exactly
+     * @throws Exception if the search failed
+     */
+    private KStarComputationResults approximate(Instance instance, KStarAttributeParameters parameters)
+            throws Exception {
+        KStarCandidateIndex index = m_CandidateIndex;
+        if (m_ApproximationTolerance <= 0.0 || index == null
+                || !index.canScore(parameters, m_Train.classIndex())) {
+            return null;
+        }
+        KStarComputationResults results = index.score(instance, parameters, m_TrainData, m_Config, m_ClassType,
+                m_ApproximationTolerance);
+        if (results != null) {
+            synchronized (this) {
+                m_MaxNeglectedMass = Math.max(m_MaxNeglectedMass, results.neglectedMass);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sums the transformation probabilities of the test instances over the
+     * training data on the worker pool. The work is split into items, a tile
+     * of test instances against a chunk of training instances, which the
+     * workers take from a shared queue. The partial sums of the chunks are
+     * added in chunk order, so the result does not depend on the scheduling
+     * or on the number of threads.
+     *
+     * @param parameters the parameters of the test instances
+     * @param threads    the largest number of workers, 1 to work in the calling thread
+     * @return the sums of each test instance
+     * @throws Exception if a worker failed
+     */
+    private KStarComputationResults[] computeInParallel(KStarAttributeParameters[] parameters, int threads)
+            throws Exception {
+        return computeInParallel(parameters, null, threads);
+    }
+
+    /**
+     * Sums the transformation probabilities of the test instances over the
+     * training data on the worker pool, leaving one training row out of the
+     * sums of each test instance.
+     *
+     * @param parameters the parameters of the test instances
+     * @param excluded   the training row to leave out for each test instance,
+     *                   null to keep every row
+     * @param threads    the largest number of workers, 1 to work in the calling thread
+     * @return the sums of each test instance
+     * @throws Exception if a worker failed
+     */
+    private KStarComputationResults[] computeInParallel(KStarAttributeParameters[] parameters, int[] excluded,
+                                                        int threads) throws Exception {
+        int numTests = parameters.length;
+        int tileSize = Math.min(BATCH_TILE_SIZE, Math.max(1, numTests));
+        KStarAttributeParameters[][] tiles = new KStarAttributeParameters[(numTests + tileSize - 1) / tileSize][];
+        int[][] excludedTiles = excluded == null ? null : new int[tiles.length][];
+        for (int tile = 0; tile < tiles.length; tile++) {
+            tiles[tile] = new KStarAttributeParameters[Math.min(tileSize, numTests - tile * tileSize)];
+            System.arraycopy(parameters, tile * tileSize, tiles[tile], 0, tiles[tile].length);
+            if (excluded != null) {
+                excludedTiles[tile] = new int[tiles[tile].length];
+                System.arraycopy(excluded, tile * tileSize, excludedTiles[tile], 0, tiles[tile].length);
+            }
+        }
+
+        KStarWorkQueue queue = new KStarWorkQueue(m_NumInstances, valuesPerPair(), tiles.length);
+        KStarComputationResults[][] chunkResults = new KStarComputationResults[numTests][queue.numChunks()];
+
+        KStarMetrics metrics = metrics();
+        int workers = Math.min(threads, queue.numItems());
+        long start = System.nanoTime();
+        if (workers > 1) {
+            ExecutorService sExecutor = getExecutorPool(threads());
+            List<Callable<Integer>> computationUnits = new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < workers; i++) { // scatter
+                computationUnits.add(new KStarChunkWorker(queue, m_TrainData, m_ClassType, m_NumClasses,
+                        m_Config, tiles, excludedTiles, chunkResults, metrics));
+            }
+            for (Future<Integer> result : sExecutor.invokeAll(computationUnits)) { // "gather wait"
+                result.get();
+            }
+        } else if (workers == 1) { // not worth a hand-over
+            new KStarChunkWorker(queue, m_TrainData, m_ClassType, m_NumClasses, m_Config, tiles, excludedTiles,
+                    chunkResults, metrics).call();
+        }
+        if (metrics != null && workers > 0) {
+            long nanos = System.nanoTime() - start;
+            metrics.record(KStarMetrics.SCATTER_GATHER, nanos);
+            metrics.count(KStarMetrics.WORKER_NANOS, nanos * workers);
+        }
+
+        start = System.nanoTime();
+        KStarComputationResults[] results = new KStarComputationResults[numTests];
+        for (int t = 0; t < numTests; t++) {
+            results[t] = new KStarComputationResults(m_NumClasses, m_Config.m_LogSpace);
+            for (int chunk = 0; chunk < queue.numChunks(); chunk++) {
+                results[t].add(chunkResults[t][chunk]);
+            }
+        }
+        record(KStarMetrics.MERGE, start);
+        return results;
+    }
+
+    /**
+     * Computes the parameters of the test instances of a batch, split into
+     * contiguous ranges over the worker pool when more than one thread is
+     * given. The caches are shared, so a value missed by two workers at once
+     * may be computed twice, but with the same result.
+     *
+     * @param insts   the test instances
+     * @param threads the number of workers, 1 to work in the calling thread
+     * @return the parameters of each test instance
+     * @throws Exception if a worker failed
+     */
+    private KStarAttributeParameters[] computeAttributeParameters(final Instances insts, int threads)
+            throws Exception {
+        final KStarAttributeParameters[] parameters = new KStarAttributeParameters[insts.numInstances()];
+        long misses = getCacheMisses();
+        if (threads <= 1 || parameters.length <= 1) {
+            long start = System.nanoTime();
+            for (int t = 0; t < parameters.length; t++) {
+                parameters[t] = computeAttributeParameters(insts.instance(t));
+            }
+            observeMisses(System.nanoTime() - start, getCacheMisses() - misses);
+            return parameters;
+        }
+
+        int ranges = Math.min(threads, parameters.length);
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (int r = 0; r < ranges; r++) {
+            final int first = (int) ((long) parameters.length * r / ranges);
+            final int last = (int) ((long) parameters.length * (r + 1) / ranges);
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    long start = System.nanoTime();
+                    for (int t = first; t < last; t++) {
+                        parameters[t] = computeAttributeParameters(insts.instance(t));
+                    }
+                    return System.nanoTime() - start;
+                }
+            });
+        }
+        long nanos = 0;
+        for (Future<Long> result : getExecutorPool(threads()).invokeAll(tasks)) {
+            nanos += result.get();
+        }
+        observeMisses(nanos, getCacheMisses() - misses);
+        return parameters;
+    }
+
+    /**
+     * Returns the number of threads of the worker pool.
+     *
+     * @return the numThreads option, or the number of processors if it is 0
+     */
+    private int threads() {
+        return getNumThreads() == 0 ? CPU_COUNT : getNumThreads();
+    }
+
+    /**
+     * Returns the planner of the automatic execution plan, calibrating it
+     * first if the model was deserialized or the number of threads changed.
+     *
+     * @return the calibrated planner
+     * @throws Exception if the calibration run failed
+     */
+    private synchronized KStarExecutionPlanner planner() throws Exception {
+        if (m_Planner == null || m_Planner.getThreads() != threads()) {
+            if (m_TrainData == null) { // not serialized
+                m_TrainData = new KStarTrainingData(m_Train, m_SinglePrecision);
+            }
+            m_Planner = new KStarExecutionPlanner(m_TrainData, createConfig(), m_ClassType, m_NumClasses,
+                    threads() > 1 ? getExecutorPool(threads()) : null, threads());
+        }
+        return m_Planner;
+    }
+
+    /**
+     * Chooses how a prediction is executed, from the executionPlan option or,
+     * in automatic mode, from the estimated cost of the prediction.
+     *
+     * @param numTests the number of test instances to predict
+     * @return PLAN_SERIAL, PLAN_INTRA or PLAN_BATCH
+     * @throws Exception if the planner could not be calibrated
+     */
+    private int choosePlan(int numTests) throws Exception {
+        int plan = m_ExecutionPlan;
+        if (plan == PLAN_AUTO) {
+            plan = planner().plan(numTests, m_NumInstances, valuesPerPair(), cacheHitRatio());
+        }
+        m_LastPlan = plan;
+        return plan;
+    }
+
+    /**
+     * Returns the number of workers of a prediction.
+     *
+     * @param plan     the plan of the prediction
+     * @param numTests the number of test instances to score
+     * @return the number of workers, 1 for the serial plan
+     */
+    private int workers(int plan, int numTests) {
+        if (plan == PLAN_SERIAL) {
+            return 1;
+        }
+        KStarExecutionPlanner planner = m_Planner;
+        if (m_ExecutionPlan == PLAN_AUTO && planner != null) {
+            return planner.workers(numTests, m_NumInstances, valuesPerPair(), cacheHitRatio());
+        }
+        return threads();
+    }
+
+    /**
+     * Returns the number of attribute values the kernel evaluates per pair of
+     * test and training instance, which sizes the chunks and the estimates.
+     *
+     * @return the attributes without the class, or the average number of
+     * non-zero values per training instance if the data is sparse
+     */
+    private int valuesPerPair() {
+        KStarTrainingData data = m_TrainData;
+        if (data == null) {
+            return m_NumAttributes - 1;
+        }
+        return (int) Math.ceil(data.valuesPerRow());
+    }
+
+    /**
+     * Returns the fraction of the parameter lookups answered by the caches.
+     *
+     * @return the hit ratio, 0 before the first lookup
+     */
+    private double cacheHitRatio() {
+        long hits = getCacheHits();
+        long lookups = hits + getCacheMisses();
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    /**
+     * Passes the measured time of a computation of parameters to the planner.
+     *
+     * @param nanos  the time of the computation
+     * @param misses the cache misses during the computation
+     */
+    private void observeMisses(long nanos, long misses) {
+        KStarExecutionPlanner planner = m_Planner;
+        if (planner != null) {
+            planner.observeMisses(nanos, misses, m_NumInstances);
+        }
+    }
+
+    /**
+     * Returns the metrics the predictions record into, creating them when
+     * they are collected but were not created yet, e.g. after
+     * deserialization. Called for every parameter lookup, so it only takes
+     * the lock when the metrics have to be created.
+     *
+     * @return the metrics, null if they are not collected
+     */
+    private KStarMetrics metrics() {
+        if (!m_CollectMetrics) {
+            return null;
+        }
+        KStarMetrics metrics = m_Metrics;
+        if (metrics == null) {
+            synchronized (this) {
+                metrics = m_Metrics;
+                if (metrics == null && m_CollectMetrics) {
+                    metrics = new KStarMetrics();
+                    m_Metrics = metrics;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Records the time of a phase since the given start, if the metrics are
+     * collected.
+     *
+     * @param phase the phase
+     * @param start the System.nanoTime() the phase started at
+     */
+    private void record(int phase, long start) {
+        KStarMetrics metrics = metrics();
+        if (metrics != null) {
+            metrics.record(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns true, batches are scored in tiles by distributionsForInstances.
+     *
+     * @return true
+     */
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction() {
+        return true;
+    }
+
+    /**
+     * Turns the sums over the training data into the class distribution
+     * (nominal class) or the predicted value (numeric class).
+     *
+     * @param results the sums over all training instances
+     * @return predicted class probability distribution
+     */
+    private double[] distributionFromResults(KStarComputationResults results) {
         if (m_ClassType == Attribute.NOMINAL) {
+            double[] classProbability = results.classProbability;
             double sum = Utils.sum(classProbability);
             if (sum <= 0.0)
                 for (int i = 0; i < classProbability.length; i++)
@@ -438,128 +1547,1002 @@ public class ParallelKStar
             else Utils.normalize(classProbability, sum);
             return classProbability;
         } else {
-            predictedValue[0] = (temp != 0) ? predictedValue[0] / temp : 0.0;
+            double[] predictedValue = results.predictedValue;
+            predictedValue[0] = (results.temp != 0) ? predictedValue[0] / results.temp : 0.0;
             return predictedValue;
         }
     }
 
     //// Parallel start
 
-    private KStarComputationResults computeDirectly(Instance instance) {
-        KStarComputationResults result = new KStarComputationResults(m_NumClasses);
+    /**
+     * Sets up the columnar training data, the random class columns, the
+     * configuration of the computation units and the attribute caches, once
+     * for all the instances to predict.
+     * We are doing this because the evaluation module controls the calls.
+     */
+    private synchronized void initComputation() throws Exception {
+        if (m_TrainData == null) { // not serialized
+            m_TrainData = new KStarTrainingData(m_Train, m_SinglePrecision);
+        }
+        if (m_Distribution == null) { // serialized by an older version
+            m_Distribution = new KStarAttributeDistribution(m_Train);
+        }
+        if (m_ApproximationTolerance > 0.0 && m_CandidateIndex == null) {
+            m_CandidateIndex = new KStarCandidateIndex(m_Train, m_Distribution, m_CandidateSearch);
+            m_MaxNeglectedMass = 0.0;
+        }
+        if (m_InitFlag == ON || !m_SidecarChecked) { // also after deserialization
+            m_Sidecar = null;
+            if (m_CacheSidecar.length() > 0 && new File(m_CacheSidecar).exists()) {
+                m_Sidecar = new KStarCacheSidecar(new File(m_CacheSidecar), cacheFingerprint());
+            }
+            m_SidecarChecked = true;
+        }
+        if (m_InitFlag == ON) {
+            long start = System.nanoTime();
+            if (m_BlendMethod == B_ENTROPY) {
+                if (m_Sidecar != null && m_Sidecar.getRandClassCols() != null) {
+                    m_RandomColumns = new KStarRandomClassColumns(m_Sidecar.getRandClassCols(), m_NumInstances,
+                            new Random(42));
+                    m_RandClassCols = m_RandomColumns.columns();
+                } else {
+                    generateRandomClassColomns();
+                }
+            }
+            m_Config = createConfig();
+            KStarConcurrentCache[] cache = new KStarConcurrentCache[m_NumAttributes];
+            for (int i = 0; i < m_NumAttributes; i++) {
+                cache[i] = new KStarConcurrentCache(m_CacheCapacity);
+            }
+            m_Cache = cache;
+            m_InitFlag = OFF;
+            record(KStarMetrics.INITIALISATION, start);
+        }
+    }
 
-        double transProb = 0.0, temp = 0.0;
-        Instance trainInstance;
-        Enumeration enu = m_Train.enumerateInstances();
-        while (enu.hasMoreElements()) {
-            trainInstance = (Instance) enu.nextElement();
-            transProb = instanceTransformationProbability(instance, trainInstance);
-            switch (m_ClassType) {
-                case Attribute.NOMINAL:
-                    result.classProbability[(int) trainInstance.classValue()] += transProb;
-                    break;
-                case Attribute.NUMERIC:
-                    result.predictedValue[0] += transProb * trainInstance.classValue();
-                    temp += transProb;
-                    break;
+    /**
+     * Creates the configuration of the computation units from the options
+     * and the training data.
+     *
+     * @return the configuration
+     */
+    private KStarComputationUnit.KStarConfig createConfig() {
+        KStarComputationUnit.KStarConfig config = new KStarComputationUnit.KStarConfig();
+        config.m_TotalInstances = m_NumInstances;
+        config.m_BlendMethod = m_BlendMethod;
+        config.m_GlobalBlend = blend();
+        config.m_MissingMode = m_MissingMode;
+        config.m_LogSpace = m_LogSpace;
+        config.m_RandClassCols = m_RandClassCols;
+        config.m_ClassIndex = m_Train.classIndex();
+        config.m_AttributeTypes = new int[m_NumAttributes];
+        config.m_NumValues = new int[m_NumAttributes];
+        for (int i = 0; i < m_NumAttributes; i++) {
+            config.m_AttributeTypes[i] = m_Train.attribute(i).type();
+            config.m_NumValues[i] = m_Train.attribute(i).numValues();
+        }
+        return config;
+    }
+
+    /**
+     * Computes the scale factor or stop parameter, and the probability of
+     * transforming into a missing value, of every attribute value of the test
+     * instance. The parameters are computed over the whole training set,
+     * exactly as the serial KStar does, and cached per attribute value; the
+     * computation units only ever read them. Quantized numeric values are
+     * interpolated between grid points instead. On sparse training data the
+     * test instance is prepared for the sparse kernel as well.
+     *
+     * @param instance the test instance
+     * @return the parameters of the test instance
+     */
+    private KStarAttributeParameters computeAttributeParameters(Instance instance) {
+        long start = System.nanoTime();
+        KStarAttributeParameters parameters = new KStarAttributeParameters(m_NumAttributes);
+        double[] cached = new double[2];
+        for (int i = 0; i < m_NumAttributes; i++) {
+            parameters.testValue[i] = instance.value(i);
+            parameters.testMissing[i] = instance.isMissing(i);
+            if (i == m_Train.classIndex() || parameters.testMissing[i]) {
+                continue;
+            }
+            int type = m_Train.attribute(i).type();
+            if (type != Attribute.NOMINAL && type != Attribute.NUMERIC) {
+                continue;
+            }
+            if (type == Attribute.NUMERIC && m_QuantizeResolution > 0.0) {
+                quantizedParameters(instance, i, cached);
+            } else {
+                lookupParameters(instance, i, instance.value(i), cached);
+            }
+            parameters.parameter[i] = cached[KStarConcurrentCache.VALUE];
+            parameters.missingProbability[i] = cached[KStarConcurrentCache.PMISS];
+            if (m_Train.attribute(i).type() == Attribute.NOMINAL) {
+                parameters.nominalTransProb[i] = KStarKernel.nominalTransProbTable(parameters.parameter[i],
+                        m_Train.attribute(i).numValues(), parameters.testValue[i]);
+                if (m_LogSpace) {
+                    parameters.nominalLogTransProb[i] = KStarKernel.logTable(parameters.nominalTransProb[i]);
+                }
             }
         }
+        KStarTrainingData data = m_TrainData;
+        if (data != null && data.isSparse()) {
+            KStarKernel.sparseBaseline(m_Config, parameters);
+        }
+        record(KStarMetrics.PARAMETERS, start);
+        return parameters;
+    }
 
-        return result;
+    /**
+     * Returns the distributions over whose sorted values the scale factors of
+     * numeric attributes are searched. The search only replaces the scan of
+     * the training set when the sphere sizes are pruned, or when the rows are
+     * held by shard servers and cannot be scanned: it adds the terms in
+     * another order and groups ties differently, so the exact scale factors
+     * of the serial KStar need the scan.
+     *
+     * @return the distributions, or null to scan the training set
+     */
+    private KStarAttributeDistribution sortedDistribution() {
+        return m_PruneTolerance > 0.0 || isSharded() ? m_Distribution : null;
+    }
+
+    /**
+     * Reads the parameters of an attribute value from the cache, or computes
+     * them over the whole training set and stores them in the cache.
+     *
+     * @param instance the test instance
+     * @param i        the index of a nominal or numeric attribute
+     * @param key      the attribute value, may differ from the value of the
+     *                 test instance
+     * @param cached   receives the parameters
+     */
+    private void lookupParameters(Instance instance, int i, double key, double[] cached) {
+        KStarMetrics metrics = metrics();
+        if (m_Cache[i].lookup(key, cached)) {
+            if (metrics != null) {
+                metrics.count(KStarMetrics.CACHE_HITS, 1);
+            }
+            return;
+        }
+        KStarCacheSidecar sidecar = m_Sidecar;
+        if (sidecar != null && sidecar.lookup(i, key, cached)) {
+            m_Cache[i].store(key, cached[KStarConcurrentCache.VALUE], cached[KStarConcurrentCache.PMISS]);
+            if (metrics != null) {
+                metrics.count(KStarMetrics.SIDECAR_HITS, 1);
+            }
+            return;
+        }
+        if (metrics != null) {
+            metrics.count(KStarMetrics.CACHE_MISSES, 1);
+        }
+        if (instance.value(i) != key) {
+            instance = (Instance) instance.copy();
+            instance.setValue(i, key);
+        }
+        if (m_Train.attribute(i).type() == Attribute.NOMINAL) {
+            KStarNominalAttribute ksNominalAttr = new KStarNominalAttribute(instance, null, i,
+                    m_Train, m_RandClassCols, null);
+            ksNominalAttr.setOptions(m_MissingMode, m_BlendMethod, blend());
+            ksNominalAttr.setAttributeDistribution(m_Distribution);
+            ksNominalAttr.computeParameters();
+            cached[KStarConcurrentCache.VALUE] = ksNominalAttr.getStop();
+            cached[KStarConcurrentCache.PMISS] = ksNominalAttr.getMissingProb();
+        } else {
+            KStarNumericAttribute ksNumericAttr = new KStarNumericAttribute(instance, null, i,
+                    m_Train, m_RandClassCols, null);
+            ksNumericAttr.setOptions(m_MissingMode, m_BlendMethod, blend());
+            ksNumericAttr.setAttributeDistribution(sortedDistribution());
+            ksNumericAttr.setPruneTolerance(m_PruneTolerance);
+            ksNumericAttr.computeParameters();
+            cached[KStarConcurrentCache.VALUE] = ksNumericAttr.getScale();
+            cached[KStarConcurrentCache.PMISS] = ksNumericAttr.getMissingProb();
+        }
+        m_Cache[i].store(key, cached[KStarConcurrentCache.VALUE], cached[KStarConcurrentCache.PMISS]);
+    }
+
+    /**
+     * Identifies the training data and the options the attribute parameters
+     * depend on, so that a sidecar file is only used with the model it was
+     * written for.
+     *
+     * @return the fingerprint
+     */
+    private long cacheFingerprint() {
+        long hash = m_Distribution.checksum();
+        hash = 31 * hash + m_NumInstances;
+        hash = 31 * hash + m_BlendMethod;
+        hash = 31 * hash + blend();
+        hash = 31 * hash + m_MissingMode;
+        hash = 31 * hash + Double.doubleToLongBits(m_PruneTolerance);
+        for (int row = 0; row < m_TrainData.numInstances; row++) {
+            hash = 31 * hash + Double.doubleToLongBits(m_TrainData.classValues[row]);
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the parameters of every nominal value and every distinct
+     * numeric training value of each attribute, in parallel, and writes them
+     * with the random class columns to a sidecar file. A model with the
+     * cacheSidecar option pointing to the file, e.g. after being deserialized
+     * in another JVM, then looks the parameters up in the file instead of
+     * computing them again.
+     *
+     * @param file the file to write
+     * @throws Exception if a computation fails or the file cannot be written
+     */
+    public void writeCacheSidecar(File file) throws Exception {
+        initComputation();
+        final double[][] keys = new double[m_NumAttributes][];
+        final double[][] values = new double[m_NumAttributes][];
+        final double[][] pmiss = new double[m_NumAttributes][];
+        final Instance template = new DenseInstance(m_NumAttributes);
+        template.setDataset(m_Train);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < m_NumAttributes; i++) {
+            int type = m_Train.attribute(i).type();
+            if (i == m_Train.classIndex() || (type != Attribute.NOMINAL && type != Attribute.NUMERIC)) {
+                continue;
+            }
+            if (type == Attribute.NOMINAL) {
+                keys[i] = new double[m_Train.attribute(i).numValues()];
+                for (int v = 0; v < keys[i].length; v++) {
+                    keys[i][v] = v;
+                }
+            } else {
+                keys[i] = m_Distribution.getDistinctValues(i);
+            }
+            values[i] = new double[keys[i].length];
+            pmiss[i] = new double[keys[i].length];
+            final int attribute = i;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    double[] cached = new double[2];
+                    for (int k = 0; k < keys[attribute].length; k++) {
+                        lookupParameters(template, attribute, keys[attribute][k], cached);
+                        values[attribute][k] = cached[KStarConcurrentCache.VALUE];
+                        pmiss[attribute][k] = cached[KStarConcurrentCache.PMISS];
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<Object> result : getExecutorPool(threads()).invokeAll(tasks)) {
+            result.get();
+        }
+        int[][] randClassCols = null;
+        if (m_BlendMethod == B_ENTROPY) {
+            randClassCols = m_RandomColumns != null ? m_RandomColumns.toArray() : m_RandClassCols;
+        }
+        KStarCacheSidecar.write(file, cacheFingerprint(), keys, values, pmiss, randClassCols);
+    }
+
+    /**
+     * Computes the parameters of a numeric attribute value by linear
+     * interpolation between the parameters of the two surrounding grid points
+     * of the quantization. Only grid points are computed and cached, so close
+     * test values share their root finding.
+     *
+     * @param instance the test instance
+     * @param i        the index of a numeric attribute
+     * @param cached   receives the parameters
+     */
+    private void quantizedParameters(Instance instance, int i, double[] cached) {
+        double step = m_QuantizeRelative ? m_QuantizeResolution * m_Distribution.getRange(i) : m_QuantizeResolution;
+        double value = instance.value(i);
+        if (!(step > 0.0)) { // constant attribute
+            lookupParameters(instance, i, value, cached);
+            return;
+        }
+        double lower = Math.floor(value / step) * step;
+        double weight = (value - lower) / step;
+        lookupParameters(instance, i, lower, cached);
+        if (weight > 0.0) {
+            double lowerScale = cached[KStarConcurrentCache.VALUE];
+            double lowerMissingProb = cached[KStarConcurrentCache.PMISS];
+            lookupParameters(instance, i, lower + step, cached);
+            cached[KStarConcurrentCache.VALUE] = lowerScale
+                    + weight * (cached[KStarConcurrentCache.VALUE] - lowerScale);
+            cached[KStarConcurrentCache.PMISS] = lowerMissingProb
+                    + weight * (cached[KStarConcurrentCache.PMISS] - lowerMissingProb);
+        }
+    }
+
+    /**
+     * Returns the worker pool, starting it if it does not exist yet or if it
+     * was created for a different number of threads.
+     *
+     * @param threads the number of worker threads required
+     * @return the shared worker pool
+     */
+    protected synchronized ExecutorService getExecutorPool(int threads) {
+        if (m_ExecutorPool == null || m_ExecutorPool.isShutdown() || m_ExecutorPoolSize != threads) {
+            shutdownExecutorPool();
+            m_ExecutorPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger m_Count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ParallelKStar-worker-" + m_Count.getAndIncrement());
+                    // idle workers must never keep the JVM alive
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            m_ExecutorPoolSize = threads;
+        }
+        return m_ExecutorPool;
+    }
+
+    /**
+     * Stops the worker threads of this model. The pool is started again on
+     * demand by the next prediction.
+     */
+    public synchronized void shutdownExecutorPool() {
+        if (m_ExecutorPool != null) {
+            m_ExecutorPool.shutdown();
+            m_ExecutorPool = null;
+            m_ExecutorPoolSize = 0;
+        }
+        closeShards();
+    }
+
+    //// Parallel end
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String missingModeTipText() {
+        return "Determines how missing attribute values are treated.";
+    }
+
+    /**
+     * Gets the method to use for handling missing values. Will be one of
+     * M_NORMAL, M_AVERAGE, M_MAXDIFF or M_DELETE.
+     *
+     * @return the method used for handling missing values.
+     */
+    public SelectedTag getMissingMode() {
+
+        return new SelectedTag(m_MissingMode, TAGS_MISSING);
+    }
+
+    /**
+     * Sets the method to use for handling missing values. Values other than
+     * M_NORMAL, M_AVERAGE, M_MAXDIFF and M_DELETE will be ignored.
+     *
+     * @param newMode the method to use for handling missing values.
+     */
+    public void setMissingMode(SelectedTag newMode) {
+
+        if (newMode.getTags() == TAGS_MISSING) {
+            if (newMode.getSelectedTag().getID() != m_MissingMode) {
+                m_InitFlag = ON; // the cached parameters depend on it
+            }
+            m_MissingMode = newMode.getSelectedTag().getID();
+        }
+    }
+
+    /**
+     * Returns an enumeration describing the available options.
+     *
+     * @return an enumeration of all the available options.
+     */
+    public Enumeration listOptions() {
+
+        Vector optVector = new Vector(3);
+        optVector.addElement(new Option(
+                "\tManual blend setting (default 20%)\n",
+                "B", 1, "-B <num>"));
+        optVector.addElement(new Option(
+                "\tEnable entropic auto-blend setting (symbolic class only)\n",
+                "E", 0, "-E"));
+        optVector.addElement(new Option(
+                "\tSpecify the missing value treatment mode (default a)\n"
+                        + "\tValid options are: a(verage), d(elete), m(axdiff), n(ormal)\n",
+                "M", 1, "-M <char>"));
+        optVector.addElement(new Option(
+                "\tThe number of simultaneous threads to use for computation, 0 for autodetect.\n"
+                        + "\t(default 0)",
+                "threads", 1, "-threads <num>"));
+        optVector.addElement(new Option(
+                "\tUse of OpenCL Parallel computation mode. 0 = No OpenCL (defualt), 1 = OpenCL GPU, 2 = OpenCL CPU\n"
+                        + "\t(default 0)",
+                "opencl", 1, "-opencl <char>"));
+        optVector.addElement(new Option(
+                "\tExecution plan of the predictions: a(uto), s(erial), i(ntra-instance\n"
+                        + "\tparallel) or b(atch parallel). Auto chooses from a cost estimate\n"
+                        + "\tcalibrated when the model is built.\n"
+                        + "\t(default a)",
+                "plan", 1, "-plan <char>"));
+        optVector.addElement(new Option(
+                "\tAccumulate the transformation probabilities in log space,\n"
+                        + "\tavoids underflow on data with many attributes.",
+                "log", 0, "-log"));
+        optVector.addElement(new Option(
+                "\tRelative tolerance below which the smallest terms of the sphere size\n"
+                        + "\tof numeric attributes are pruned, 0 for the exact sum.\n"
+                        + "\t(default 0)",
+                "prune", 1, "-prune <tolerance>"));
+        optVector.addElement(new Option(
+                "\tMaximum number of attribute values whose parameters are cached\n"
+                        + "\tper attribute, 0 for unbounded.\n"
+                        + "\t(default 0)",
+                "cache", 1, "-cache <entries>"));
+        optVector.addElement(new Option(
+                "\tGrid spacing for numeric attribute values: scale factors are only\n"
+                        + "\tcomputed at grid points and interpolated in between, 0 for exact values.\n"
+                        + "\t(default 0)",
+                "quantize", 1, "-quantize <resolution>"));
+        optVector.addElement(new Option(
+                "\tThe grid spacing is a fraction of the range of each attribute.",
+                "quantize-relative", 0, "-quantize-relative"));
+        optVector.addElement(new Option(
+                "\tHold the training data used to score the instances in single\n"
+                        + "\tprecision, the sums are still accumulated in double precision.",
+                "float", 0, "-float"));
+        optVector.addElement(new Option(
+                "\tScore only the training instances found by a nearest neighbour search\n"
+                        + "\tover the numeric attributes, until the neglected probability mass is\n"
+                        + "\tbounded by this fraction of the sum, 0 for exact scoring.\n"
+                        + "\t(default 0)",
+                "approx", 1, "-approx <tolerance>"));
+        optVector.addElement(new Option(
+                "\tThe nearest neighbour search used in approximate mode.\n"
+                        + "\t(default: weka.core.neighboursearch.KDTree)",
+                "approx-search", 1, "-approx-search <classname and options>"));
+        optVector.addElement(new Option(
+                "\tScore on the shard servers (KStarShardServer) at these comma separated\n"
+                        + "\thost:port endpoints; the training data only provides the header.\n"
+                        + "\tSphere blend only.",
+                "shards", 1, "-shards <host:port,...>"));
+        optVector.addElement(new Option(
+                "\tFile with the attribute parameters precomputed by writeCacheSidecar(),\n"
+                        + "\tmemory-mapped and used when it matches the model.",
+                "sidecar", 1, "-sidecar <file>"));
+        optVector.addElement(new Option(
+                "\tCollect timings and counters of the predictions and print them\n"
+                        + "\twith the model.",
+                "metrics", 0, "-metrics"));
+        optVector.addElement(new Option(
+                "\tThe number of most recent training instances kept as instances\n"
+                        + "\tare added, 0 for all.\n"
+                        + "\t(default 0)",
+                "window", 1, "-window <instances>"));
+        optVector.addElement(new Option(
+                "\tThe attribute holding the time of the instances (first, last or\n"
+                        + "\tan index), for a window over a time span.",
+                "window-time", 1, "-window-time <index>"));
+        optVector.addElement(new Option(
+                "\tThe time span of the window, in the units of the time attribute\n"
+                        + "\t(milliseconds for dates), 0 for unlimited.\n"
+                        + "\t(default 0)",
+                "window-span", 1, "-window-span <span>"));
+        optVector.addElement(new Option(
+                "\tComma separated global blend settings, the one with the smallest\n"
+                        + "\tleave-one-out error is chosen when the model is built.\n"
+                        + "\tSphere blend only.",
+                "tune-blend", 1, "-tune-blend <blend,...>"));
+
+        return optVector.elements();
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String globalBlendTipText() {
+        return "The parameter for global blending. Values are restricted to [0,100].";
+    }
+
+    /**
+     * Set the global blend parameter. On a model tuned from the blend grid
+     * the given setting replaces the tuned one until the model is built
+     * again.
+     *
+     * @param b the value for global blending
+     */
+    public void setGlobalBlend(int b) {
+        int old = blend();
+        m_GlobalBlend = b;
+        if (m_GlobalBlend > 100) {
+            m_GlobalBlend = 100;
+        }
+        if (m_GlobalBlend < 0) {
+            m_GlobalBlend = 0;
+        }
+        m_TunedBlends = null;
+        m_TunedErrors = null;
+        if (blend() != old) {
+            m_InitFlag = ON; // the cached parameters depend on it
+        }
+    }
+
+    /**
+     * Get the value of the global blend parameter
+     *
+     * @return the value of the global blend parameter
+     */
+    public int getGlobalBlend() {
+        return m_GlobalBlend;
+    }
+
+    /**
+     * Returns the global blend setting chosen from the blend grid when the
+     * model was built, which the model uses instead of the global blend
+     * option.
+     *
+     * @return the chosen setting, -1 if the model was not tuned
+     */
+    public int getTunedBlend() {
+        return m_TunedBlends != null ? m_TunedBlend : -1;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String entropicAutoBlendTipText() {
+        return "Whether entropy-based blending is to be used.";
+    }
+
+    /**
+     * Set whether entropic blending is to be used.
+     *
+     * @param e true if entropic blending is to be used
+     */
+    public void setEntropicAutoBlend(boolean e) {
+        int method = e ? B_ENTROPY : B_SPHERE;
+        if (method != m_BlendMethod) {
+            m_InitFlag = ON; // the cached parameters and the random class columns depend on it
+        }
+        m_BlendMethod = method;
+    }
+
+    /**
+     * Get whether entropic blending being used
+     *
+     * @return true if entropic blending is used
+     */
+    public boolean getEntropicAutoBlend() {
+        if (m_BlendMethod == B_ENTROPY) {
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String openCLModeTipText() {
+        return "Whether to run the computation on an OpenCL GPU or CPU device.";
+    }
+
+    /**
+     * Gets the OpenCL mode for Parallel computation.
+     *
+     * @return the method used for handling missing values.
+     */
+    public SelectedTag getOpenCLMode() {
+
+        return new SelectedTag(m_OpenCLMode, TAGS_OPENCL);
+    }
+
+    /**
+     * Sets if Parallel KStar should use OpenCL.
+     *
+     * @param newMode OpenCL computation mode.
+     */
+    public void setOpenCLMode(SelectedTag newMode) {
+
+        if (newMode.getTags() == TAGS_OPENCL) {
+            m_OpenCLMode = newMode.getSelectedTag().getID();
+        }
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String executionPlanTipText() {
+        return "How the predictions are executed: chosen per prediction from a cost estimate calibrated "
+                + "when the model is built, or always serial, split over the training data of each instance, "
+                + "or split over the instances of a batch.";
+    }
+
+    /**
+     * Gets the execution plan of the predictions.
+     *
+     * @return the execution plan
+     */
+    public SelectedTag getExecutionPlan() {
+        return new SelectedTag(m_ExecutionPlan, TAGS_PLAN);
+    }
+
+    /**
+     * Sets the execution plan of the predictions. The predictions are the
+     * same with every plan.
+     *
+     * @param newPlan the execution plan
+     */
+    public void setExecutionPlan(SelectedTag newPlan) {
+        if (newPlan.getTags() == TAGS_PLAN) {
+            m_ExecutionPlan = newPlan.getSelectedTag().getID();
+        }
+    }
+
+    /**
+     * Returns the plan the last prediction was executed with.
+     *
+     * @return PLAN_SERIAL, PLAN_INTRA or PLAN_BATCH, or PLAN_AUTO before the
+     * first prediction
+     */
+    public int getLastPlan() {
+        return m_LastPlan;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String numThreadsTipText() {
+        return "The number of simultaneous threads to use for computation, 0 for autodetect.";
+    }
+
+    /**
+     * Get the number of simultaneous threads used in training, 0 for autodetect.
+     *
+     * @return the maximum depth.
+     */
+    public int getNumThreads(){
+        return m_NumThreads;
+    }
+
+    /**
+     * Set the number of simultaneous threads used in training, 0 for autodetect.
+     *
+     * @param value the maximum depth.
+     */
+    public void setNumThreads(int value){
+        if (value != m_NumThreads) {
+            shutdownExecutorPool();
+        }
+        m_NumThreads = value;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String logSpaceTipText() {
+        return "Whether to accumulate the transformation probabilities in log space. This avoids underflow "
+                + "on data with many attributes; the missing value normalization is applied once per instance "
+                + "instead of after every attribute.";
+    }
+
+    /**
+     * Gets whether the transformation probabilities are accumulated in log space.
+     *
+     * @return true if log space accumulation is used
+     */
+    public boolean getLogSpace() {
+        return m_LogSpace;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String pruneToleranceTipText() {
+        return "Relative tolerance below which the smallest terms of the sphere size of numeric attributes "
+                + "are pruned when searching the scale factor over the sorted values, 0 for the exact scan "
+                + "of the training set.";
+    }
+
+    /**
+     * Gets the relative tolerance for pruning the sphere size sums.
+     *
+     * @return the tolerance, 0 for the exact sum
+     */
+    public double getPruneTolerance() {
+        return m_PruneTolerance;
+    }
+
+    /**
+     * Sets the relative tolerance for pruning the sphere size sums.
+     *
+     * @param value the tolerance, 0 for the exact sum
+     */
+    public void setPruneTolerance(double value) {
+        if (value != m_PruneTolerance) {
+            m_InitFlag = ON; // the cached scale factors depend on it
+        }
+        m_PruneTolerance = value;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String cacheCapacityTipText() {
+        return "The maximum number of attribute values whose scale factor or stop parameter is cached per "
+                + "attribute, 0 for unbounded. Each entry takes about 64 bytes; when a cache is full, the "
+                + "least recently used values are evicted (CLOCK policy).";
+    }
+
+    /**
+     * Gets the maximum number of values cached per attribute.
+     *
+     * @return the maximum number of values, 0 for unbounded
+     */
+    public int getCacheCapacity() {
+        return m_CacheCapacity;
+    }
+
+    /**
+     * Sets the maximum number of values cached per attribute.
+     *
+     * @param value the maximum number of values, 0 for unbounded
+     */
+    public void setCacheCapacity(int value) {
+        if (value != m_CacheCapacity) {
+            m_InitFlag = ON; // recreate the caches
+        }
+        m_CacheCapacity = value;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String quantizeResolutionTipText() {
+        return "The grid spacing for numeric attribute values, 0 to use the exact values. The scale factor "
+                + "is only computed at grid points and interpolated in between, which trades a small loss "
+                + "of accuracy for far fewer root finding runs.";
+    }
+
+    /**
+     * Gets the grid spacing for numeric attribute values.
+     *
+     * @return the grid spacing, 0 for exact values
+     */
+    public double getQuantizeResolution() {
+        return m_QuantizeResolution;
+    }
+
+    /**
+     * Sets the grid spacing for numeric attribute values.
+     *
+     * @param value the grid spacing, 0 for exact values
+     */
+    public void setQuantizeResolution(double value) {
+        if (value != m_QuantizeResolution) {
+            m_InitFlag = ON; // the caches hold grid points
+        }
+        m_QuantizeResolution = value;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String quantizeRelativeTipText() {
+        return "Whether the grid spacing is a fraction of the range of each numeric attribute.";
+    }
+
+    /**
+     * Gets whether the grid spacing is relative to the attribute range.
+     *
+     * @return true if the grid spacing is relative
+     */
+    public boolean getQuantizeRelative() {
+        return m_QuantizeRelative;
+    }
+
+    /**
+     * Sets whether the grid spacing is relative to the attribute range.
+     *
+     * @param value true if the grid spacing is relative
+     */
+    public void setQuantizeRelative(boolean value) {
+        if (value != m_QuantizeRelative) {
+            m_InitFlag = ON;
+        }
+        m_QuantizeRelative = value;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String singlePrecisionTipText() {
+        return "Whether to hold the training data in single precision, which halves the memory "
+                + "read when scoring at the cost of rounding the numeric values.";
+    }
+
+    /**
+     * Gets whether the training data is held in single precision.
+     *
+     * @return true if the values are held as floats
+     */
+    public boolean getSinglePrecision() {
+        return m_SinglePrecision;
+    }
+
+    /**
+     * Sets whether the training data is held in single precision.
+     *
+     * @param value true to hold the values as floats
+     */
+    public void setSinglePrecision(boolean value) {
+        if (value != m_SinglePrecision) {
+            m_TrainData = null; // copied again by initComputation
+        }
+        m_SinglePrecision = value;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String approximationToleranceTipText() {
+        return "The largest probability mass, relative to the sum, that the training instances left out "
+                + "by the nearest neighbour search may carry; 0 scores every training instance.";
+    }
+
+    /**
+     * Gets the tolerance of the approximate mode.
+     *
+     * @return the relative bound of the neglected mass, 0 if exact
+     */
+    public double getApproximationTolerance() {
+        return m_ApproximationTolerance;
+    }
+
+    /**
+     * Sets the tolerance of the approximate mode.
+     *
+     * @param value the relative bound of the neglected mass, 0 for exact scoring
+     */
+    public void setApproximationTolerance(double value) {
+        m_ApproximationTolerance = value;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String candidateSearchTipText() {
+        return "The nearest neighbour search used to find the training instances worth scoring in "
+                + "approximate mode; its distance function must normalize the attributes.";
     }
 
+    /**
+     * Gets the nearest neighbour search of the approximate mode.
+     *
+     * @return the nearest neighbour search
+     */
+    public NearestNeighbourSearch getCandidateSearch() {
+        return m_CandidateSearch;
+    }
 
-    private List<Instances> getInstancesForEachThread(int threads) {
-        ArrayList<Instances> threadInstances = new ArrayList<Instances>();
-        int splitInstancesIn = threads;
+    /**
+     * Sets the nearest neighbour search of the approximate mode.
+     *
+     * @param value the nearest neighbour search
+     */
+    public void setCandidateSearch(NearestNeighbourSearch value) {
+        m_CandidateSearch = value;
+        m_CandidateIndex = null;
+    }
 
-        int instancesForEachThread = m_Train.numInstances() / splitInstancesIn;
-        for(int i = 0; i < splitInstancesIn; i++) {
-            int offset = i * instancesForEachThread;
-            int numberOfInstances = instancesForEachThread;
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String shardEndpointsTipText() {
+        return "Comma separated host:port endpoints of the shard servers holding the training data, "
+                + "empty to hold it in this process.";
+    }
 
-            if(i == (splitInstancesIn - 1) ) { // last thread
-                numberOfInstances = numberOfInstances + (m_Train.numInstances() - (offset + numberOfInstances)); // add any remaining
-            }
+    /**
+     * Gets the endpoints of the shard servers.
+     *
+     * @return the comma separated host:port endpoints
+     */
+    public String getShardEndpoints() {
+        return m_ShardEndpoints;
+    }
 
-            threadInstances.add(new Instances(m_Train, offset, numberOfInstances));
+    /**
+     * Sets the endpoints of the shard servers. The classifier has to be built
+     * again.
+     *
+     * @param value the comma separated host:port endpoints, empty if not sharded
+     */
+    public void setShardEndpoints(String value) {
+        if (!value.equals(m_ShardEndpoints)) {
+            closeShards();
         }
+        m_ShardEndpoints = value;
+    }
 
-        return threadInstances;
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String cacheSidecarTipText() {
+        return "File with precomputed attribute parameters, written by writeCacheSidecar() for this "
+                + "model; it is memory-mapped so a restarted model starts with warm caches.";
     }
 
-    //// Parallel end
+    /**
+     * Gets the sidecar file of precomputed attribute parameters.
+     *
+     * @return the file name, empty if none
+     */
+    public String getCacheSidecar() {
+        return m_CacheSidecar;
+    }
 
     /**
-     * Calculate the probability of the first instance transforming into the
-     * second instance:
-     * the probability is the product of the transformation probabilities of
-     * the attributes normilized over the number of instances used.
+     * Sets the sidecar file of precomputed attribute parameters.
      *
-     * @param first  the test instance
-     * @param second the train instance
-     * @return transformation probability value
+     * @param value the file name, empty for none
      */
-    private double instanceTransformationProbability(Instance first,
-                                                     Instance second) {
-        String debug = "(KStar.instanceTransformationProbability) ";
-        double transProb = 1.0;
-        int numMissAttr = 0;
-        for (int i = 0; i < m_NumAttributes; i++) {
-            if (i == m_Train.classIndex()) {
-                continue; // ignore class attribute
-            }
-            if (first.isMissing(i)) { // test instance attribute value is missing
-                numMissAttr++;
-                continue;
-            }
-            transProb *= attrTransProb(first, second, i);
-            // normilize for missing values
-            if (numMissAttr != m_NumAttributes) {
-                transProb = Math.pow(transProb, (double) m_NumAttributes /
-                        (m_NumAttributes - numMissAttr));
-            } else { // weird case!
-                transProb = 0.0;
-            }
+    public void setCacheSidecar(String value) {
+        if (!value.equals(m_CacheSidecar)) {
+            m_InitFlag = ON; // mapped again by initComputation
         }
-        // normilize for the train dataset
-        return transProb / m_NumInstances;
+        m_CacheSidecar = value;
     }
 
     /**
-     * Calculates the transformation probability of the indexed test attribute
-     * to the indexed train attribute.
+     * Returns the number of parameter lookups answered by the sidecar file
+     * since it was mapped.
      *
-     * @param first  the test instance.
-     * @param second the train instance.
-     * @param col    the index of the attribute in the instance.
-     * @return the value of the transformation probability.
+     * @return the number of sidecar hits, 0 without a sidecar
      */
-    private double attrTransProb(Instance first, Instance second, int col) {
-        String debug = "(KStar.attrTransProb)";
-        double transProb = 0.0;
-        KStarNominalAttribute ksNominalAttr;
-        KStarNumericAttribute ksNumericAttr;
-        switch (m_Train.attribute(col).type()) {
-            case Attribute.NOMINAL:
-                ksNominalAttr = new KStarNominalAttribute(first, second, col, m_Train,
-                        m_RandClassCols,
-                        m_Cache[col]);
-                ksNominalAttr.setOptions(m_MissingMode, m_BlendMethod, m_GlobalBlend);
-                transProb = ksNominalAttr.transProb();
-                ksNominalAttr = null;
-                break;
-
-            case Attribute.NUMERIC:
-                ksNumericAttr = new KStarNumericAttribute(first, second, col,
-                        m_Train, m_RandClassCols,
-                        m_Cache[col]);
-                ksNumericAttr.setOptions(m_MissingMode, m_BlendMethod, m_GlobalBlend);
-                transProb = ksNumericAttr.transProb();
-                ksNumericAttr = null;
-                break;
-        }
-        return transProb;
+    public long getSidecarHits() {
+        KStarCacheSidecar sidecar = m_Sidecar;
+        return sidecar == null ? 0 : sidecar.getHits();
     }
 
     /**
@@ -568,62 +2551,80 @@ public class ParallelKStar
      * @return tip text for this property suitable for
      * displaying in the explorer/experimenter gui
      */
-    public String missingModeTipText() {
-        return "Determines how missing attribute values are treated.";
+    public String collectMetricsTipText() {
+        return "Collect the time of each phase of the predictions, the cache hits and misses and the busy "
+                + "time of the worker threads, and print them with the model.";
     }
 
     /**
-     * Gets the method to use for handling missing values. Will be one of
-     * M_NORMAL, M_AVERAGE, M_MAXDIFF or M_DELETE.
+     * Gets whether the timings and counters of the predictions are collected.
      *
-     * @return the method used for handling missing values.
+     * @return true if they are collected
      */
-    public SelectedTag getMissingMode() {
+    public boolean getCollectMetrics() {
+        return m_CollectMetrics;
+    }
 
-        return new SelectedTag(m_MissingMode, TAGS_MISSING);
+    /**
+     * Sets whether the timings and counters of the predictions are collected.
+     *
+     * @param value true to collect them
+     */
+    public void setCollectMetrics(boolean value) {
+        m_CollectMetrics = value;
     }
 
     /**
-     * Sets the method to use for handling missing values. Values other than
-     * M_NORMAL, M_AVERAGE, M_MAXDIFF and M_DELETE will be ignored.
+     * Returns the timings and counters collected since the metrics were
+     * created or reset.
      *
-     * @param newMode the method to use for handling missing values.
+     * @return the metrics, null if they are not collected
      */
-    public void setMissingMode(SelectedTag newMode) {
+    @ProgrammaticProperty
+    public KStarMetrics getMetrics() {
+        return metrics();
+    }
 
-        if (newMode.getTags() == TAGS_MISSING) {
-            m_MissingMode = newMode.getSelectedTag().getID();
-        }
+    /**
+     * Sets the metrics the predictions record into, e.g. a subclass that
+     * forwards them to a monitoring system or metrics shared by several
+     * models. Collects the metrics unless null is given.
+     *
+     * @param metrics the metrics, null to stop collecting
+     */
+    public synchronized void setMetrics(KStarMetrics metrics) {
+        m_Metrics = metrics;
+        m_CollectMetrics = metrics != null;
     }
 
     /**
-     * Returns an enumeration describing the available options.
+     * Returns the tip text for this property
      *
-     * @return an enumeration of all the available options.
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
      */
-    public Enumeration listOptions() {
+    public String windowSizeTipText() {
+        return "The number of most recent training instances kept; once the window is full each added "
+                + "instance replaces the oldest one. 0 keeps all instances.";
+    }
 
-        Vector optVector = new Vector(3);
-        optVector.addElement(new Option(
-                "\tManual blend setting (default 20%)\n",
-                "B", 1, "-B <num>"));
-        optVector.addElement(new Option(
-                "\tEnable entropic auto-blend setting (symbolic class only)\n",
-                "E", 0, "-E"));
-        optVector.addElement(new Option(
-                "\tSpecify the missing value treatment mode (default a)\n"
-                        + "\tValid options are: a(verage), d(elete), m(axdiff), n(ormal)\n",
-                "M", 1, "-M <char>"));
-        optVector.addElement(new Option(
-                "\tThe number of simultaneous threads to use for computation, 0 for autodetect.\n"
-                        + "\t(default 0)",
-                "threads", 1, "-threads <num>"));
-        optVector.addElement(new Option(
-                "\tUse of OpenCL Parallel computation mode. 0 = No OpenCL (defualt), 1 = OpenCL GPU, 2 = OpenCL CPU\n"
-                        + "\t(default 0)",
-                "opencl", 1, "-opencl <char>"));
+    /**
+     * Gets the number of most recent training instances kept.
+     *
+     * @return the size of the window, 0 for all instances
+     */
+    public int getWindowSize() {
+        return m_WindowSize;
+    }
 
-        return optVector.elements();
+    /**
+     * Sets the number of most recent training instances kept. Applies to
+     * the instances given to buildClassifier as well.
+     *
+     * @param value the size of the window, 0 for all instances
+     */
+    public void setWindowSize(int value) {
+        m_WindowSize = Math.max(0, value);
     }
 
     /**
@@ -632,32 +2633,32 @@ public class ParallelKStar
      * @return tip text for this property suitable for
      * displaying in the explorer/experimenter gui
      */
-    public String globalBlendTipText() {
-        return "The parameter for global blending. Values are restricted to [0,100].";
+    public String windowTimeAttributeTipText() {
+        return "The attribute holding the time of the instances (first, last or an index), for a window "
+                + "over the time span; empty for none.";
     }
 
     /**
-     * Set the global blend parameter
+     * Gets the attribute holding the time of the instances.
      *
-     * @param b the value for global blending
+     * @return the index, empty for none
      */
-    public void setGlobalBlend(int b) {
-        m_GlobalBlend = b;
-        if (m_GlobalBlend > 100) {
-            m_GlobalBlend = 100;
-        }
-        if (m_GlobalBlend < 0) {
-            m_GlobalBlend = 0;
-        }
+    public String getWindowTimeAttribute() {
+        return m_WindowTimeAttribute;
     }
 
     /**
-     * Get the value of the global blend parameter
+     * Sets the attribute holding the time of the instances. The instances
+     * are expected in time order; an instance without a time gets the time
+     * of the newest instance.
      *
-     * @return the value of the global blend parameter
+     * @param value first, last or a 1-based index, empty for none
      */
-    public int getGlobalBlend() {
-        return m_GlobalBlend;
+    public synchronized void setWindowTimeAttribute(String value) {
+        if (!value.equals(m_WindowTimeAttribute)) {
+            m_Window = null; // the times are read again
+        }
+        m_WindowTimeAttribute = value;
     }
 
     /**
@@ -666,74 +2667,128 @@ public class ParallelKStar
      * @return tip text for this property suitable for
      * displaying in the explorer/experimenter gui
      */
-    public String entropicAutoBlendTipText() {
-        return "Whether entropy-based blending is to be used.";
+    public String windowSpanTipText() {
+        return "The time span of the window: instances older than the newest one by this much are removed. "
+                + "In the units of the time attribute, milliseconds for dates; 0 for unlimited.";
     }
 
     /**
-     * Set whether entropic blending is to be used.
+     * Gets the time span of the window.
      *
-     * @param e true if entropic blending is to be used
+     * @return the span, 0 for unlimited
      */
-    public void setEntropicAutoBlend(boolean e) {
-        if (e) {
-            m_BlendMethod = B_ENTROPY;
-        } else {
-            m_BlendMethod = B_SPHERE;
-        }
+    public double getWindowSpan() {
+        return m_WindowSpan;
     }
 
     /**
-     * Get whether entropic blending being used
+     * Sets the time span of the window.
      *
-     * @return true if entropic blending is used
+     * @param value the span in the units of the time attribute, 0 for unlimited
      */
-    public boolean getEntropicAutoBlend() {
-        if (m_BlendMethod == B_ENTROPY) {
-            return true;
-        }
+    public void setWindowSpan(double value) {
+        m_WindowSpan = Math.max(0.0, value);
+    }
 
-        return false;
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String blendGridTipText() {
+        return "Comma separated global blend settings to choose from when the model is built, by the "
+                + "smallest leave-one-out error, instead of the global blend; empty to use the global blend. "
+                + "Sphere blend only.";
     }
 
     /**
-     * Gets the OpenCL mode for Parallel computation.
+     * Gets the global blend settings tuned by buildClassifier.
      *
-     * @return the method used for handling missing values.
+     * @return the comma separated settings, empty for none
      */
-    public SelectedTag getOpenCLMode() {
+    public String getBlendGrid() {
+        return m_BlendGrid;
+    }
 
-        return new SelectedTag(m_OpenCLMode, TAGS_OPENCL);
+    /**
+     * Sets the global blend settings tuned by buildClassifier. The model uses
+     * the best of them, see getTunedBlend(); the global blend option keeps
+     * its value. Setting the global blend of a tuned model discards the
+     * tuned setting.
+     *
+     * @param value the comma separated settings, e.g. 5,10,20,40, empty for none
+     */
+    public void setBlendGrid(String value) {
+        m_BlendGrid = value;
     }
 
     /**
-     * Sets if Parallel KStar should use OpenCL.
+     * Returns the largest bound of the neglected probability mass, relative
+     * to the sums, of the predictions made in approximate mode since the
+     * candidate search was built.
      *
-     * @param newMode OpenCL computation mode.
+     * @return the largest relative bound, 0 if no prediction was approximated
      */
-    public void setOpenCLMode(SelectedTag newMode) {
+    public double getMaxNeglectedMass() {
+        return m_MaxNeglectedMass;
+    }
 
-        if (newMode.getTags() == TAGS_OPENCL) {
-            m_OpenCLMode = newMode.getSelectedTag().getID();
+    /**
+     * Returns the number of parameter lookups that were answered by the
+     * caches since they were created, summed over the attributes.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHits() {
+        long hits = 0;
+        KStarConcurrentCache[] cache = m_Cache;
+        for (int i = 0; cache != null && i < cache.length; i++) {
+            hits += cache[i].getHits();
         }
+        return hits;
     }
 
     /**
-     * Get the number of simultaneous threads used in training, 0 for autodetect.
+     * Returns the number of parameter lookups that had to be computed since
+     * the caches were created, summed over the attributes.
      *
-     * @return the maximum depth.
+     * @return the number of cache misses
      */
-    public int getNumThreads(){
-        return m_NumThreads;
+    public long getCacheMisses() {
+        long misses = 0;
+        KStarConcurrentCache[] cache = m_Cache;
+        for (int i = 0; cache != null && i < cache.length; i++) {
+            misses += cache[i].getMisses();
+        }
+        return misses;
     }
 
     /**
-     * Set the number of simultaneous threads used in training, 0 for autodetect.
+     * Returns the number of values evicted from the caches since they were
+     * created, summed over the attributes.
      *
-     * @param value the maximum depth.
+     * @return the number of cache evictions
      */
-    public void setNumThreads(int value){
-        m_NumThreads = value;
+    public long getCacheEvictions() {
+        long evictions = 0;
+        KStarConcurrentCache[] cache = m_Cache;
+        for (int i = 0; cache != null && i < cache.length; i++) {
+            evictions += cache[i].getEvictions();
+        }
+        return evictions;
+    }
+
+    /**
+     * Sets whether the transformation probabilities are accumulated in log space.
+     *
+     * @param value true to use log space accumulation
+     */
+    public void setLogSpace(boolean value) {
+        if (value != m_LogSpace) {
+            m_InitFlag = ON;
+        }
+        m_LogSpace = value;
     }
     /**
      * Parses a given list of options. <p/>
@@ -768,6 +2823,78 @@ public class ParallelKStar
 
         setEntropicAutoBlend(Utils.getFlag('E', options));
 
+        setLogSpace(Utils.getFlag("log", options));
+
+        String cacheStr = Utils.getOption("cache", options);
+        if (cacheStr.length() != 0) {
+            setCacheCapacity(Integer.parseInt(cacheStr));
+        } else {
+            setCacheCapacity(0);
+        }
+
+        String quantizeStr = Utils.getOption("quantize", options);
+        if (quantizeStr.length() != 0) {
+            setQuantizeResolution(Double.parseDouble(quantizeStr));
+        } else {
+            setQuantizeResolution(0.0);
+        }
+
+        setQuantizeRelative(Utils.getFlag("quantize-relative", options));
+
+        setSinglePrecision(Utils.getFlag("float", options));
+
+        setShardEndpoints(Utils.getOption("shards", options));
+
+        setCacheSidecar(Utils.getOption("sidecar", options));
+
+        setCollectMetrics(Utils.getFlag("metrics", options));
+
+        String windowStr = Utils.getOption("window", options);
+        if (windowStr.length() != 0) {
+            setWindowSize(Integer.parseInt(windowStr));
+        } else {
+            setWindowSize(0);
+        }
+
+        setWindowTimeAttribute(Utils.getOption("window-time", options));
+
+        String spanStr = Utils.getOption("window-span", options);
+        if (spanStr.length() != 0) {
+            setWindowSpan(Double.parseDouble(spanStr));
+        } else {
+            setWindowSpan(0.0);
+        }
+
+        setBlendGrid(Utils.getOption("tune-blend", options));
+
+        String approxStr = Utils.getOption("approx", options);
+        if (approxStr.length() != 0) {
+            setApproximationTolerance(Double.parseDouble(approxStr));
+        } else {
+            setApproximationTolerance(0.0);
+        }
+
+        String searchStr = Utils.getOption("approx-search", options);
+        if (searchStr.length() != 0) {
+            String[] searchSpec = Utils.splitOptions(searchStr);
+            if (searchSpec.length == 0) {
+                throw new Exception("Invalid NearestNeighbourSearch algorithm specification string.");
+            }
+            String className = searchSpec[0];
+            searchSpec[0] = "";
+            setCandidateSearch((NearestNeighbourSearch) Utils.forName(NearestNeighbourSearch.class,
+                    className, searchSpec));
+        } else {
+            setCandidateSearch(new KDTree());
+        }
+
+        String pruneStr = Utils.getOption("prune", options);
+        if (pruneStr.length() != 0) {
+            setPruneTolerance(Double.parseDouble(pruneStr));
+        } else {
+            setPruneTolerance(0.0);
+        }
+
         String threadStr = Utils.getOption("threads", options);
         if (threadStr.length() != 0) {
             setNumThreads(Integer.parseInt(threadStr));
@@ -790,6 +2917,25 @@ public class ParallelKStar
             }
         }
 
+        String planStr = Utils.getOption("plan", options);
+        if (planStr.length() != 0) {
+            switch (planStr.charAt(0)) {
+                case 's':
+                    setExecutionPlan(new SelectedTag(PLAN_SERIAL, TAGS_PLAN));
+                    break;
+                case 'i':
+                    setExecutionPlan(new SelectedTag(PLAN_INTRA, TAGS_PLAN));
+                    break;
+                case 'b':
+                    setExecutionPlan(new SelectedTag(PLAN_BATCH, TAGS_PLAN));
+                    break;
+                default:
+                    setExecutionPlan(new SelectedTag(PLAN_AUTO, TAGS_PLAN));
+            }
+        } else {
+            setExecutionPlan(new SelectedTag(PLAN_AUTO, TAGS_PLAN));
+        }
+
         String missingModeStr = Utils.getOption('M', options);
         if (missingModeStr.length() != 0) {
             switch (missingModeStr.charAt(0)) {
@@ -819,36 +2965,105 @@ public class ParallelKStar
      * @return an array of strings suitable for passing to setOptions()
      */
     public String[] getOptions() {
-        // -B <num> -E -M <char>
-        String[] options = new String[7];
-        int itr = 0;
-        options[itr++] = "-B";
-        options[itr++] = "" + m_GlobalBlend;
+        Vector<String> options = new Vector<String>();
+        options.add("-B");
+        options.add("" + m_GlobalBlend);
 
         if (getEntropicAutoBlend()) {
-            options[itr++] = "-E";
+            options.add("-E");
         }
 
-        options[itr++] = "-M";
+        options.add("-M");
         if (m_MissingMode == M_AVERAGE) {
-            options[itr++] = "" + "a";
+            options.add("" + "a");
         } else if (m_MissingMode == M_DELETE) {
-            options[itr++] = "" + "d";
+            options.add("" + "d");
         } else if (m_MissingMode == M_MAXDIFF) {
-            options[itr++] = "" + "m";
+            options.add("" + "m");
         } else if (m_MissingMode == M_NORMAL) {
-            options[itr++] = "" + "n";
+            options.add("" + "n");
         }
 
         if(getNumThreads() > 0){
-            options[itr++] = "-threads";
-            options[itr++] = String.valueOf(getNumThreads());
+            options.add("-threads");
+            options.add(String.valueOf(getNumThreads()));
+        }
+
+        if (m_ExecutionPlan != PLAN_AUTO) {
+            options.add("-plan");
+            options.add(m_ExecutionPlan == PLAN_SERIAL ? "s" : m_ExecutionPlan == PLAN_INTRA ? "i" : "b");
+        }
+
+        if (getLogSpace()) {
+            options.add("-log");
+        }
+
+        if (getCacheCapacity() > 0) {
+            options.add("-cache");
+            options.add("" + getCacheCapacity());
+        }
+
+        if (getQuantizeResolution() > 0.0) {
+            options.add("-quantize");
+            options.add("" + getQuantizeResolution());
+        }
+
+        if (getQuantizeRelative()) {
+            options.add("-quantize-relative");
+        }
+
+        if (getSinglePrecision()) {
+            options.add("-float");
+        }
+
+        if (isSharded()) {
+            options.add("-shards");
+            options.add(getShardEndpoints());
+        }
+
+        if (getCacheSidecar().length() > 0) {
+            options.add("-sidecar");
+            options.add(getCacheSidecar());
+        }
+
+        if (getCollectMetrics()) {
+            options.add("-metrics");
+        }
+
+        if (getWindowSize() > 0) {
+            options.add("-window");
+            options.add("" + getWindowSize());
+        }
+
+        if (getWindowTimeAttribute().length() > 0) {
+            options.add("-window-time");
+            options.add(getWindowTimeAttribute());
+        }
+
+        if (getWindowSpan() > 0.0) {
+            options.add("-window-span");
+            options.add("" + getWindowSpan());
+        }
+
+        if (getBlendGrid().length() > 0) {
+            options.add("-tune-blend");
+            options.add(getBlendGrid());
+        }
+
+        if (getApproximationTolerance() > 0.0) {
+            options.add("-approx");
+            options.add("" + getApproximationTolerance());
+            options.add("-approx-search");
+            options.add(m_CandidateSearch.getClass().getName() + " "
+                    + Utils.joinOptions(m_CandidateSearch.getOptions()));
         }
 
-        while (itr < options.length) {
-            options[itr++] = "";
+        if (getPruneTolerance() > 0.0) {
+            options.add("-prune");
+            options.add("" + getPruneTolerance());
         }
-        return options;
+
+        return options.toArray(new String[options.size()]);
     }
 
     /**
@@ -866,6 +3081,21 @@ public class ParallelKStar
         for (int i = 0; i < ops.length; i++) {
             st.append(ops[i] + ' ');
         }
+        KStarExecutionPlanner planner = m_Planner;
+        if (planner != null) {
+            st.append("\n\nExecution plan calibration: " + planner);
+        }
+        if (m_TunedErrors != null) {
+            st.append("\n\nGlobal blend tuning, leave-one-out "
+                    + (m_ClassType == Attribute.NOMINAL ? "error rate" : "root mean squared error") + ":");
+            for (int b = 0; b < m_TunedBlends.length; b++) {
+                st.append(String.format("%n%5d%%  %.6f", m_TunedBlends[b], m_TunedErrors[b]));
+            }
+        }
+        KStarMetrics metrics = m_CollectMetrics ? m_Metrics : null;
+        if (metrics != null) {
+            st.append("\n\nMetrics:\n" + metrics);
+        }
         return st.toString();
     }
 
@@ -893,30 +3123,14 @@ public class ParallelKStar
         }
     }
 
-    /**
-     * Updates the m_attributes of the class.
-     */
-    private void update_m_Attributes() {
-        m_NumInstances = m_Train.numInstances();
-        m_InitFlag = ON;
-    }
-
     /**
      * Note: for Nominal Class Only!
      * Generates a set of random versions of the class colomn.
+     * The original colomn is preserved in colomn NUM_RAND_COLS.
      */
     private void generateRandomClassColomns() {
-        String debug = "(KStar.generateRandomClassColomns)";
-        Random generator = new Random(42);
-        //    Random generator = new Random();
-        m_RandClassCols = new int[NUM_RAND_COLS + 1][];
-        int[] classvals = classValues();
-        for (int i = 0; i < NUM_RAND_COLS; i++) {
-            // generate a randomized version of the class colomn
-            m_RandClassCols[i] = randomize(classvals, generator);
-        }
-        // original colomn is preserved in colomn NUM_RAND_COLS
-        m_RandClassCols[NUM_RAND_COLS] = classvals;
+        m_RandomColumns = new KStarRandomClassColumns(classValues(), NUM_RAND_COLS, new Random(42));
+        m_RandClassCols = m_RandomColumns.columns();
     }
 
     /**
@@ -938,28 +3152,6 @@ public class ParallelKStar
         return classval;
     }
 
-    /**
-     * Returns a copy of the array with its elements randomly redistributed.
-     *
-     * @param array     the array to randomize.
-     * @param generator the random number generator to use
-     * @return a copy of the array with its elements randomly redistributed.
-     */
-    private int[] randomize(int[] array, Random generator) {
-        String debug = "(KStar.randomize)";
-        int index;
-        int temp;
-        int[] newArray = new int[array.length];
-        System.arraycopy(array, 0, newArray, 0, array.length);
-        for (int j = newArray.length - 1; j > 0; j--) {
-            index = (int) (generator.nextDouble() * (double) j);
-            temp = newArray[j];
-            newArray[j] = newArray[index];
-            newArray[index] = temp;
-        }
-        return newArray;
-    }
-
     /**
      * Returns the revision string.
      *
@@ -0,0 +1,441 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ *    KStarAttributeDistribution.java
+ *    Copyright (C) 2015 University of Waikato
+ *
+ */
+
+package weka.classifiers.lazy.kstar;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * The distribution of the values of each nominal attribute in the training
+ * set, the sorted non-missing values of each numeric attribute, and the
+ * number of training instances with a non-missing value. It is computed once
+ * when the classifier is built and updated as instances are added, instead of
+ * being recounted whenever the stop parameter or scale factor of a new
+ * attribute value is computed. Instances can be removed again, e.g. when they
+ * leave a sliding window.
+ *
+ * @version $Revision$
+ */
+public class KStarAttributeDistribution implements Serializable,
+  RevisionHandler {
+
+  /** for serialization */
+  private static final long serialVersionUID = -4170378853283658164L;
+
+  /** The value counts of each nominal attribute, null for other attributes */
+  protected int[][] m_Counts;
+
+  /** The number of training instances with a non-missing value */
+  protected int[] m_TotalCounts;
+
+  /**
+   * The non-missing values of each numeric attribute in ascending order, null
+   * for other attributes. Only the first m_TotalCounts entries are used.
+   */
+  protected double[][] m_SortedValues;
+
+  /**
+   * Counts the attribute values of the training instances.
+   *
+   * @param train the training instances
+   */
+  public KStarAttributeDistribution(Instances train) {
+    m_Counts = new int[train.numAttributes()][];
+    m_TotalCounts = new int[train.numAttributes()];
+    m_SortedValues = new double[train.numAttributes()][];
+    for (int i = 0; i < train.numAttributes(); i++) {
+      if (train.attribute(i).type() == Attribute.NOMINAL) {
+        m_Counts[i] = new int[train.attribute(i).numValues()];
+      }
+    }
+    for (int j = 0; j < train.numInstances(); j++) {
+      Instance instance = train.instance(j);
+      for (int i = 0; i < m_Counts.length; i++) {
+        if (!instance.isMissing(i)) {
+          m_TotalCounts[i]++;
+          if (m_Counts[i] != null) {
+            m_Counts[i][(int) instance.value(i)]++;
+          }
+        }
+      }
+    }
+    for (int i = 0; i < train.numAttributes(); i++) {
+      if (train.attribute(i).type() == Attribute.NUMERIC) {
+        double[] values = new double[Math.max(m_TotalCounts[i], 16)];
+        int n = 0;
+        for (int j = 0; j < train.numInstances(); j++) {
+          if (!train.instance(j).isMissing(i)) {
+            values[n++] = train.instance(j).value(i);
+          }
+        }
+        Arrays.sort(values, 0, n);
+        m_SortedValues[i] = values;
+      }
+    }
+  }
+
+  /**
+   * Adds the attribute values of a training instance.
+   *
+   * @param instance the instance added to the training set
+   */
+  public void add(Instance instance) {
+    for (int i = 0; i < m_Counts.length; i++) {
+      if (!instance.isMissing(i)) {
+        if (m_Counts[i] != null) {
+          m_Counts[i][(int) instance.value(i)]++;
+        }
+        if (m_SortedValues[i] != null) {
+          insertSorted(i, instance.value(i));
+        }
+        m_TotalCounts[i]++;
+      }
+    }
+  }
+
+  /**
+   * Removes the attribute values of a training instance, e.g. one that left
+   * a sliding window.
+   *
+   * @param instance the instance removed from the training set
+   */
+  public void remove(Instance instance) {
+    for (int i = 0; i < m_Counts.length; i++) {
+      if (!instance.isMissing(i)) {
+        if (m_Counts[i] != null) {
+          m_Counts[i][(int) instance.value(i)]--;
+        }
+        if (m_SortedValues[i] != null) {
+          removeSorted(i, instance.value(i));
+        }
+        m_TotalCounts[i]--;
+      }
+    }
+  }
+
+  /**
+   * Adds the distributions of another part of the training set, e.g. of
+   * another shard. Both must describe the same attributes.
+   *
+   * @param other the distributions to add
+   */
+  public void merge(KStarAttributeDistribution other) {
+    for (int i = 0; i < m_Counts.length; i++) {
+      if (m_Counts[i] != null) {
+        for (int v = 0; v < m_Counts[i].length; v++) {
+          m_Counts[i][v] += other.m_Counts[i][v];
+        }
+      }
+      if (m_SortedValues[i] != null) {
+        double[] values = m_SortedValues[i];
+        double[] otherValues = other.m_SortedValues[i];
+        int n = m_TotalCounts[i];
+        int otherN = other.m_TotalCounts[i];
+        double[] merged = new double[Math.max(n + otherN, 16)];
+        int a = 0, b = 0, k = 0;
+        while (a < n && b < otherN) {
+          merged[k++] = values[a] <= otherValues[b] ? values[a++] : otherValues[b++];
+        }
+        while (a < n) {
+          merged[k++] = values[a++];
+        }
+        while (b < otherN) {
+          merged[k++] = otherValues[b++];
+        }
+        m_SortedValues[i] = merged;
+      }
+      m_TotalCounts[i] += other.m_TotalCounts[i];
+    }
+  }
+
+  /**
+   * Inserts a value into the sorted values of a numeric attribute.
+   *
+   * @param attrIndex the index of the attribute
+   * @param value the value to insert
+   */
+  protected void insertSorted(int attrIndex, double value) {
+    double[] values = m_SortedValues[attrIndex];
+    int n = m_TotalCounts[attrIndex];
+    if (n == values.length) {
+      values = Arrays.copyOf(values, 2 * n);
+      m_SortedValues[attrIndex] = values;
+    }
+    int pos = Arrays.binarySearch(values, 0, n, value);
+    if (pos < 0) {
+      pos = -pos - 1;
+    }
+    System.arraycopy(values, pos, values, pos + 1, n - pos);
+    values[pos] = value;
+  }
+
+  /**
+   * Removes a value from the sorted values of a numeric attribute.
+   *
+   * @param attrIndex the index of the attribute
+   * @param value the value to remove, which must be present
+   */
+  protected void removeSorted(int attrIndex, double value) {
+    double[] values = m_SortedValues[attrIndex];
+    int n = m_TotalCounts[attrIndex];
+    int pos = Arrays.binarySearch(values, 0, n, value);
+    if (pos < 0) {
+      throw new IllegalStateException("Value " + value
+        + " not in the distribution of attribute " + attrIndex);
+    }
+    System.arraycopy(values, pos + 1, values, pos, n - pos - 1);
+  }
+
+  /**
+   * Returns the value counts of a nominal attribute. The array is shared and
+   * must not be modified.
+   *
+   * @param attrIndex the index of the attribute
+   * @return the number of training instances having each value, null if the
+   *         attribute is not nominal
+   */
+  public int[] getCounts(int attrIndex) {
+    return m_Counts[attrIndex];
+  }
+
+  /**
+   * Returns the number of training instances with a non-missing value.
+   *
+   * @param attrIndex the index of the attribute
+   * @return the number of training instances
+   */
+  public int getTotalCount(int attrIndex) {
+    return m_TotalCounts[attrIndex];
+  }
+
+  /**
+   * Returns the distances between a value and the non-missing training values
+   * of a numeric attribute, in ascending order. They are obtained by locating
+   * the value in the sorted training values and walking outwards from there,
+   * only as far as they are read.
+   *
+   * @param attrIndex the index of the numeric attribute
+   * @param value the value to measure the distances from
+   * @return the sorted distances, one per training instance with a
+   *         non-missing value
+   */
+  public SortedDistances getSortedDistances(int attrIndex, double value) {
+    return new SortedDistances(m_SortedValues[attrIndex],
+      m_TotalCounts[attrIndex], value);
+  }
+
+  /**
+   * The distances between a value and sorted values in ascending order,
+   * merged lazily from the position of the value with two cursors, one
+   * walking down and one walking up. A reader that stops early, e.g. a
+   * pruned sphere size, only pays for the distances it has read.
+   */
+  public static class SortedDistances {
+
+    /** The sorted values */
+    protected double[] m_Values;
+
+    /** The number of values */
+    protected int m_Count;
+
+    /** The value the distances are measured from */
+    protected double m_Value;
+
+    /** The next value below the value not merged yet */
+    protected int m_Left;
+
+    /** The next value above the value not merged yet */
+    protected int m_Right;
+
+    /** The distances merged so far */
+    protected double[] m_Distances;
+
+    /** The number of distances merged so far */
+    protected int m_Size;
+
+    /**
+     * Locates a value in sorted values.
+     *
+     * @param values the sorted values
+     * @param count the number of values
+     * @param value the value to measure the distances from
+     */
+    protected SortedDistances(double[] values, int count, double value) {
+      m_Values = values;
+      m_Count = count;
+      m_Value = value;
+      m_Right = Arrays.binarySearch(values, 0, count, value);
+      if (m_Right < 0) {
+        m_Right = -m_Right - 1;
+      }
+      m_Left = m_Right - 1;
+      m_Distances = new double[Math.min(count, 64)];
+    }
+
+    /**
+     * Returns the number of distances.
+     *
+     * @return the number of values
+     */
+    public int count() {
+      return m_Count;
+    }
+
+    /**
+     * Returns a distance, merging the distances up to it if necessary.
+     *
+     * @param k the rank of the distance, below count()
+     * @return the k-th smallest distance
+     */
+    public double get(int k) {
+      while (m_Size <= k) {
+        merge();
+      }
+      return m_Distances[k];
+    }
+
+    /**
+     * Returns the largest distance without merging the others.
+     *
+     * @return the distance to the smallest or largest value, 0 if there are
+     *         no values
+     */
+    public double largest() {
+      if (m_Count == 0) {
+        return 0.0;
+      }
+      return Math.max(Math.abs(m_Values[0] - m_Value),
+        Math.abs(m_Values[m_Count - 1] - m_Value));
+    }
+
+    /**
+     * Merges the next distance.
+     */
+    private void merge() {
+      if (m_Size == m_Distances.length) {
+        m_Distances = Arrays.copyOf(m_Distances,
+          Math.min(m_Count, 2 * m_Distances.length));
+      }
+      if (m_Left < 0) {
+        m_Distances[m_Size] = Math.abs(m_Values[m_Right++] - m_Value);
+      } else if (m_Right >= m_Count) {
+        m_Distances[m_Size] = Math.abs(m_Values[m_Left--] - m_Value);
+      } else {
+        double leftDistance = Math.abs(m_Values[m_Left] - m_Value);
+        double rightDistance = Math.abs(m_Values[m_Right] - m_Value);
+        if (leftDistance <= rightDistance) {
+          m_Distances[m_Size] = leftDistance;
+          m_Left--;
+        } else {
+          m_Distances[m_Size] = rightDistance;
+          m_Right++;
+        }
+      }
+      m_Size++;
+    }
+  }
+
+  /**
+   * Returns the range of the values of a numeric attribute.
+   *
+   * @param attrIndex the index of the numeric attribute
+   * @return the largest minus the smallest training value, 0 if there are
+   *         fewer than two values
+   */
+  public double getRange(int attrIndex) {
+    int n = m_TotalCounts[attrIndex];
+    if (n < 2) {
+      return 0.0;
+    }
+    return m_SortedValues[attrIndex][n - 1] - m_SortedValues[attrIndex][0];
+  }
+
+  /**
+   * Returns the distinct non-missing values of a numeric attribute.
+   *
+   * @param attrIndex the index of the numeric attribute
+   * @return the distinct values in ascending order
+   */
+  public double[] getDistinctValues(int attrIndex) {
+    double[] values = m_SortedValues[attrIndex];
+    int n = m_TotalCounts[attrIndex];
+    double[] distinct = new double[n];
+    int count = 0;
+    for (int k = 0; k < n; k++) {
+      if (count == 0 || values[k] != distinct[count - 1]) {
+        distinct[count++] = values[k];
+      }
+    }
+    return Arrays.copyOf(distinct, count);
+  }
+
+  /**
+   * Computes a checksum of the distributions, which identifies the training
+   * data they were counted on as far as the attribute parameters are
+   * concerned.
+   *
+   * @return the checksum
+   */
+  public long checksum() {
+    long hash = 17;
+    for (int i = 0; i < m_TotalCounts.length; i++) {
+      hash = 31 * hash + m_TotalCounts[i];
+      if (m_Counts[i] != null) {
+        for (int count : m_Counts[i]) {
+          hash = 31 * hash + count;
+        }
+      }
+      if (m_SortedValues[i] != null) {
+        for (int k = 0; k < m_TotalCounts[i]; k++) {
+          hash = 31 * hash + Double.doubleToLongBits(m_SortedValues[i][k]);
+        }
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Checks whether the sorted values of an attribute are available.
+   *
+   * @param attrIndex the index of the attribute
+   * @return true if the attribute is numeric
+   */
+  public boolean hasSortedValues(int attrIndex) {
+    return m_SortedValues[attrIndex] != null;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ *    KStarCacheSidecar.java
+ *    Copyright (C) 2015 University of Waikato
+ *
+ */
+
+package weka.classifiers.lazy.kstar;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * A file holding precomputed scale factors or stop parameters, with their
+ * missing value probabilities, for the attribute values of a model, and its
+ * random class columns. It is written next to a serialized model so that a
+ * restarted JVM does not have to find the roots again.
+ * <p/>
+ * The file is memory-mapped when opened and nothing is read up front: the
+ * keys of each attribute are stored in ascending order and looked up by
+ * binary search in the mapped file. The layout, in big-endian order, is
+ * <pre>
+ * int magic, int version, long fingerprint, int numAttributes,
+ * int count[numAttributes],
+ * per attribute: double keys[count], double values[count], double pmiss[count],
+ * int numColumns, int columnLength, int columns[numColumns][columnLength]
+ * </pre>
+ * The fingerprint identifies the training data and options the values were
+ * computed with; a file with another fingerprint is rejected.
+ *
+ * @version $Revision$
+ */
+public class KStarCacheSidecar implements RevisionHandler {
+
+  /** Marks the start of the file ("KSTC") */
+  private static final int MAGIC = 0x4B535443;
+
+  /** The version of the layout */
+  private static final int VERSION = 1;
+
+  /** The keys of each attribute, in ascending order */
+  protected DoubleBuffer[] m_Keys;
+
+  /** The scale factor or stop parameter of each key */
+  protected DoubleBuffer[] m_Values;
+
+  /** The missing value probability of each key */
+  protected DoubleBuffer[] m_PMiss;
+
+  /** The random class columns, null if none were stored */
+  protected int[][] m_RandClassCols;
+
+  /** The number of lookups answered from the file */
+  protected AtomicLong m_Hits = new AtomicLong();
+
+  /**
+   * Maps a sidecar file.
+   *
+   * @param file the file to map
+   * @param fingerprint the fingerprint the file must have
+   * @throws IOException if the file cannot be read, is not a sidecar or has
+   *           another fingerprint
+   */
+  public KStarCacheSidecar(File file, long fingerprint) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    MappedByteBuffer buffer;
+    try {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+        raf.length());
+    } finally {
+      raf.close(); // the mapping stays valid
+    }
+    try {
+      read(buffer, fingerprint);
+    } catch (IOException e) {
+      throw new IOException(file + ": " + e.getMessage());
+    } catch (BufferUnderflowException e) {
+      throw new IOException(file + " is truncated");
+    } catch (IllegalArgumentException e) {
+      throw new IOException(file + " is truncated");
+    }
+  }
+
+  /**
+   * Reads the header of a mapped file and sets up the views of the tables.
+   *
+   * @param buffer the mapped file
+   * @param fingerprint the fingerprint the file must have
+   * @throws IOException if the file is not a sidecar or has another
+   *           fingerprint
+   */
+  private void read(ByteBuffer buffer, long fingerprint) throws IOException {
+    if (buffer.remaining() < 8 || buffer.getInt() != MAGIC
+      || buffer.getInt() != VERSION) {
+      throw new IOException("Not a KStar cache sidecar");
+    }
+    if (buffer.getLong() != fingerprint) {
+      throw new IOException(
+        "The sidecar was written for other training data or options");
+    }
+    int numAttributes = buffer.getInt();
+    int[] counts = new int[numAttributes];
+    for (int i = 0; i < numAttributes; i++) {
+      counts[i] = buffer.getInt();
+    }
+    m_Keys = new DoubleBuffer[numAttributes];
+    m_Values = new DoubleBuffer[numAttributes];
+    m_PMiss = new DoubleBuffer[numAttributes];
+    for (int i = 0; i < numAttributes; i++) {
+      m_Keys[i] = slice(buffer, counts[i]);
+      m_Values[i] = slice(buffer, counts[i]);
+      m_PMiss[i] = slice(buffer, counts[i]);
+    }
+    int numColumns = buffer.getInt();
+    int length = buffer.getInt();
+    if (numColumns > 0) {
+      IntBuffer ints = buffer.asIntBuffer();
+      m_RandClassCols = new int[numColumns][length];
+      for (int c = 0; c < numColumns; c++) {
+        ints.get(m_RandClassCols[c]);
+      }
+    }
+  }
+
+  /**
+   * Returns a view of the next doubles of a buffer and skips them.
+   *
+   * @param buffer the buffer
+   * @param count the number of doubles
+   * @return the view
+   */
+  private static DoubleBuffer slice(ByteBuffer buffer, int count) {
+    ByteBuffer view = buffer.slice();
+    view.limit(8 * count);
+    buffer.position(buffer.position() + 8 * count);
+    return view.asDoubleBuffer();
+  }
+
+  /**
+   * Looks up the parameters of an attribute value.
+   *
+   * @param attrIndex the index of the attribute
+   * @param key the attribute value
+   * @param result receives the parameter at KStarConcurrentCache.VALUE and
+   *          the missing value probability at KStarConcurrentCache.PMISS
+   * @return true if the value is in the file
+   */
+  public boolean lookup(int attrIndex, double key, double[] result) {
+    DoubleBuffer keys = m_Keys[attrIndex];
+    int low = 0;
+    int high = keys.limit() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      double midKey = keys.get(mid);
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        result[KStarConcurrentCache.VALUE] = m_Values[attrIndex].get(mid);
+        result[KStarConcurrentCache.PMISS] = m_PMiss[attrIndex].get(mid);
+        m_Hits.incrementAndGet();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of values stored for an attribute.
+   *
+   * @param attrIndex the index of the attribute
+   * @return the number of values
+   */
+  public int size(int attrIndex) {
+    return m_Keys[attrIndex].limit();
+  }
+
+  /**
+   * Returns the number of lookups answered from the file.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return m_Hits.get();
+  }
+
+  /**
+   * Returns the random class columns stored in the file.
+   *
+   * @return the columns, null if none were stored
+   */
+  public int[][] getRandClassCols() {
+    return m_RandClassCols;
+  }
+
+  /**
+   * Writes a sidecar file.
+   *
+   * @param file the file to write
+   * @param fingerprint identifies the training data and options
+   * @param keys the attribute values of each attribute, in ascending order;
+   *          null for attributes without parameters
+   * @param values the scale factor or stop parameter of each value
+   * @param pmiss the missing value probability of each value
+   * @param randClassCols the random class columns, may be null
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(File file, long fingerprint, double[][] keys,
+    double[][] values, double[][] pmiss, int[][] randClassCols)
+    throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(fingerprint);
+      out.writeInt(keys.length);
+      for (double[] attributeKeys : keys) {
+        out.writeInt(attributeKeys == null ? 0 : attributeKeys.length);
+      }
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != null) {
+          for (double key : keys[i]) {
+            out.writeDouble(key);
+          }
+          for (double value : values[i]) {
+            out.writeDouble(value);
+          }
+          for (double p : pmiss[i]) {
+            out.writeDouble(p);
+          }
+        }
+      }
+      if (randClassCols == null) {
+        out.writeInt(0);
+        out.writeInt(0);
+      } else {
+        out.writeInt(randClassCols.length);
+        out.writeInt(randClassCols[0].length);
+        for (int[] column : randClassCols) {
+          for (int value : column) {
+            out.writeInt(value);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
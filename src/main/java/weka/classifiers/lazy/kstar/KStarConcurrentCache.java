@@ -0,0 +1,444 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ *    KStarConcurrentCache.java
+ *    Copyright (C) 2015 University of Waikato
+ *
+ */
+
+package weka.classifiers.lazy.kstar;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * A thread-safe version of the caching system that keeps track of each
+ * attribute value and its corresponding scale factor or stop parameter.
+ * <p/>
+ * The entries are kept in parallel primitive arrays using open addressing
+ * with linear probing. An entry is published once: its key and values are
+ * written before the slot is marked as used, and never change afterwards.
+ * Lookups therefore need no locking; only stores are synchronized. When the
+ * table grows, a new table is built and published as a whole, so readers
+ * working on the old one still see consistent values.
+ * <p/>
+ * The number of entries can be bounded. When the bound is reached, entries
+ * are evicted with the CLOCK policy: lookups set a reference bit, and the
+ * clock hand sweeps the slots, clearing set bits and evicting entries whose
+ * bit is clear, until a quarter of the entries are gone. The survivors are
+ * copied into a new table, which is published like a grown one. Hits, misses
+ * and evictions are counted.
+ *
+ * @version $Revision$
+ */
+public class KStarConcurrentCache implements Serializable, RevisionHandler {
+
+  /** for serialization */
+  private static final long serialVersionUID = 2385163624379102583L;
+
+  /** Accuracy value for equality, as used by KStarCache */
+  private static final double EPSILON = 1.0E-5;
+
+  /** The default number of slots (a power of two) */
+  private static final int DEFAULT_CAPACITY = 128;
+
+  /** The table is grown when it is filled up to this fraction */
+  private static final float LOAD_FACTOR = 0.5f;
+
+  /** index of the scale factor or stop parameter in a lookup result */
+  public static final int VALUE = 0;
+
+  /** index of the missing value probability in a lookup result */
+  public static final int PMISS = 1;
+
+  /** The fraction of the maximum number of entries evicted at once */
+  private static final double EVICTION_FRACTION = 0.25;
+
+  /** The current table, replaced as a whole when it grows */
+  protected transient volatile Table m_Table = new Table(DEFAULT_CAPACITY);
+
+  /** The maximum number of entries, 0 for no limit */
+  protected int m_MaxEntries = 0;
+
+  /** The slot the CLOCK hand points at */
+  protected transient int m_ClockHand;
+
+  /** The number of lookups that found their key */
+  protected transient AtomicLong m_Hits = new AtomicLong();
+
+  /** The number of lookups that did not find their key */
+  protected transient AtomicLong m_Misses = new AtomicLong();
+
+  /** The number of evicted entries */
+  protected transient AtomicLong m_Evictions = new AtomicLong();
+
+  /**
+   * Creates a cache without a limit on the number of entries.
+   */
+  public KStarConcurrentCache() {
+  }
+
+  /**
+   * Creates a cache holding at most the given number of entries.
+   *
+   * @param maxEntries the maximum number of entries, 0 for no limit
+   */
+  public KStarConcurrentCache(int maxEntries) {
+    m_MaxEntries = Math.max(0, maxEntries);
+  }
+
+  /**
+   * Looks up the values stored for the specified key. This method does not
+   * lock and may be called concurrently with store().
+   *
+   * @param key the attribute value used as key
+   * @param result array of length 2 that receives the scale factor or stop
+   *          parameter (index VALUE) and the missing value probability
+   *          (index PMISS)
+   * @return true if the key was found
+   */
+  public boolean lookup(double key, double[] result) {
+    Table table = m_Table;
+    int slot = table.find(key);
+    if (slot < 0) {
+      m_Misses.incrementAndGet();
+      return false;
+    }
+    result[VALUE] = table.m_Values[slot];
+    result[PMISS] = table.m_MissingProbs[slot];
+    if (table.m_Referenced.get(slot) == 0) { // avoid writing shared memory
+      table.m_Referenced.set(slot, 1);
+    }
+    m_Hits.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Checks if the specified key maps with an entry in the cache table.
+   *
+   * @param key the attribute value used as key
+   * @return true if the key was found
+   */
+  public boolean containsKey(double key) {
+    return m_Table.find(key) >= 0;
+  }
+
+  /**
+   * Stores the specified values in the cache table. If the key already exists
+   * the existing entry is kept. If the cache is full, entries are evicted
+   * first.
+   *
+   * @param key attribute value used as key
+   * @param value attribute scale/stop parameter
+   * @param pmiss transformation probability to attribute with missing value
+   */
+  public synchronized void store(double key, double value, double pmiss) {
+    Table table = m_Table;
+    if (table.find(key) >= 0) {
+      return;
+    }
+    if (m_MaxEntries > 0 && table.m_Count >= m_MaxEntries) {
+      table = evict(table);
+    }
+    if (table.m_Count + 1 > table.m_Threshold) {
+      table = table.grow();
+    }
+    table.insert(key, value, pmiss);
+    m_Table = table;
+  }
+
+  /**
+   * Evicts entries with the CLOCK policy and returns a table holding the
+   * others. Must be called while holding the lock.
+   *
+   * @param table the current table
+   * @return the table of the surviving entries
+   */
+  protected Table evict(Table table) {
+    int capacity = table.m_Keys.length;
+    int mask = capacity - 1;
+    int target = Math.max(1, table.m_Count
+      - (int) (m_MaxEntries * (1.0 - EVICTION_FRACTION)));
+    boolean[] victims = new boolean[capacity];
+    int evicted = 0;
+    int slot = m_ClockHand & mask;
+    while (evicted < target) {
+      if (table.m_Used.get(slot) != 0 && !victims[slot]) {
+        if (table.m_Referenced.get(slot) != 0) {
+          table.m_Referenced.set(slot, 0); // second chance
+        } else {
+          victims[slot] = true;
+          evicted++;
+        }
+      }
+      slot = (slot + 1) & mask;
+    }
+    m_ClockHand = slot;
+
+    Table survivors = new Table(capacity);
+    for (int i = 0; i < capacity; i++) {
+      if (table.m_Used.get(i) != 0 && !victims[i]) {
+        int copy = survivors.insert(table.m_Keys[i], table.m_Values[i],
+          table.m_MissingProbs[i]);
+        survivors.m_Referenced.set(copy, table.m_Referenced.get(i));
+      }
+    }
+    m_Evictions.addAndGet(evicted);
+    return survivors;
+  }
+
+  /**
+   * Returns the maximum number of entries.
+   *
+   * @return the maximum number of entries, 0 if there is no limit
+   */
+  public int getMaxEntries() {
+    return m_MaxEntries;
+  }
+
+  /**
+   * Returns the number of lookups that found their key.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return m_Hits.get();
+  }
+
+  /**
+   * Returns the number of lookups that did not find their key.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return m_Misses.get();
+  }
+
+  /**
+   * Returns the number of entries evicted to respect the maximum number of
+   * entries.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return m_Evictions.get();
+  }
+
+  /**
+   * Returns the number of cached attribute values.
+   *
+   * @return the number of entries
+   */
+  public int size() {
+    return m_Table.m_Count;
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public synchronized void clear() {
+    m_Table = new Table(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Writes the entries of the table.
+   *
+   * @param out the stream to write to
+   * @throws IOException if writing fails
+   */
+  private synchronized void writeObject(ObjectOutputStream out)
+    throws IOException {
+    out.defaultWriteObject();
+    Table table = m_Table;
+    out.writeInt(table.m_Count);
+    for (int i = 0; i < table.m_Keys.length; i++) {
+      if (table.m_Used.get(i) != 0) {
+        out.writeDouble(table.m_Keys[i]);
+        out.writeDouble(table.m_Values[i]);
+        out.writeDouble(table.m_MissingProbs[i]);
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the table from the stored entries.
+   *
+   * @param in the stream to read from
+   * @throws IOException if reading fails
+   * @throws ClassNotFoundException never
+   */
+  private void readObject(ObjectInputStream in) throws IOException,
+    ClassNotFoundException {
+    in.defaultReadObject();
+    m_Hits = new AtomicLong();
+    m_Misses = new AtomicLong();
+    m_Evictions = new AtomicLong();
+    int count = in.readInt();
+    Table table = new Table(DEFAULT_CAPACITY);
+    for (int i = 0; i < count; i++) {
+      if (table.m_Count + 1 > table.m_Threshold) {
+        table = table.grow();
+      }
+      table.insert(in.readDouble(), in.readDouble(), in.readDouble());
+    }
+    m_Table = table;
+  }
+
+  /**
+   * Returns the hash code of the specified double, as used by KStarCache.
+   *
+   * @param key the value to hash
+   * @return the hash code
+   */
+  protected static int hashCode(double key) {
+    long bits = Double.doubleToLongBits(key);
+    return (int) (bits ^ (bits >> 32));
+  }
+
+  /**
+   * The open addressing table. Keys, values and missing value probabilities
+   * are stored in parallel arrays; the used flags are written last and read
+   * first, which safely publishes the other values of the slot.
+   */
+  protected static class Table {
+
+    /** the keys */
+    protected final double[] m_Keys;
+
+    /** the scale factors or stop parameters */
+    protected final double[] m_Values;
+
+    /** the probabilities of transforming into a missing value */
+    protected final double[] m_MissingProbs;
+
+    /** non-zero for slots holding an entry */
+    protected final AtomicIntegerArray m_Used;
+
+    /** the CLOCK reference bits, set when an entry is looked up */
+    protected final AtomicIntegerArray m_Referenced;
+
+    /** the number of entries */
+    protected volatile int m_Count;
+
+    /** the number of entries that triggers growing the table */
+    protected final int m_Threshold;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param capacity the number of slots, a power of two
+     */
+    protected Table(int capacity) {
+      m_Keys = new double[capacity];
+      m_Values = new double[capacity];
+      m_MissingProbs = new double[capacity];
+      m_Used = new AtomicIntegerArray(capacity);
+      m_Referenced = new AtomicIntegerArray(capacity);
+      m_Threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Returns the first slot to probe for the given hash code.
+     *
+     * @param hash the hash code of the key
+     * @return the slot index
+     */
+    protected int slotFor(int hash) {
+      // spread the bits, the low ones of doubles are often all zero
+      hash ^= (hash >>> 20) ^ (hash >>> 12);
+      hash ^= (hash >>> 7) ^ (hash >>> 4);
+      return hash & (m_Keys.length - 1);
+    }
+
+    /**
+     * Returns the slot holding the specified key.
+     *
+     * @param key the key to look for
+     * @return the slot index, -1 if the key is not in the table
+     */
+    protected int find(double key) {
+      int hash = KStarConcurrentCache.hashCode(key);
+      int mask = m_Keys.length - 1;
+      for (int slot = slotFor(hash);; slot = (slot + 1) & mask) {
+        if (m_Used.get(slot) == 0) {
+          return -1;
+        }
+        double other = m_Keys[slot];
+        if ((KStarConcurrentCache.hashCode(other) == hash)
+          && (Math.abs(other - key) < EPSILON)) {
+          return slot;
+        }
+      }
+    }
+
+    /**
+     * Adds an entry, the key must not be in the table yet and the table must
+     * have room for it.
+     *
+     * @param key the key
+     * @param value the scale factor or stop parameter
+     * @param pmiss the missing value probability
+     * @return the slot of the entry
+     */
+    protected int insert(double key, double value, double pmiss) {
+      int mask = m_Keys.length - 1;
+      int slot = slotFor(KStarConcurrentCache.hashCode(key));
+      while (m_Used.get(slot) != 0) {
+        slot = (slot + 1) & mask;
+      }
+      m_Keys[slot] = key;
+      m_Values[slot] = value;
+      m_MissingProbs[slot] = pmiss;
+      // publish the entry
+      m_Used.set(slot, 1);
+      m_Count++;
+      return slot;
+    }
+
+    /**
+     * Returns a table of twice the size holding the same entries.
+     *
+     * @return the new table
+     */
+    protected Table grow() {
+      Table table = new Table(m_Keys.length * 2);
+      for (int i = 0; i < m_Keys.length; i++) {
+        if (m_Used.get(i) != 0) {
+          int slot = table.insert(m_Keys[i], m_Values[i], m_MissingProbs[i]);
+          table.m_Referenced.set(slot, m_Referenced.get(i));
+        }
+      }
+      return table;
+    }
+  } // Table
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
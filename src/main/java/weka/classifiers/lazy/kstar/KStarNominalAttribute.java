@@ -76,6 +76,9 @@ public class KStarNominalAttribute implements KStarConstants, RevisionHandler {
   /** Distribution of the attribute value in the train dataset */
   protected int[] m_Distribution;
 
+  /** Precomputed distributions of the train dataset, may be null */
+  protected KStarAttributeDistribution m_AttributeDistribution;
+
   /**
    * Set of colomns: each colomn representing a randomised version of the train
    * dataset class colomn
@@ -148,9 +151,35 @@ public class KStarNominalAttribute implements KStarConstants, RevisionHandler {
    */
   public double transProb() {
     double transProb = 0.0;
+    computeParameters();
+    // we've got our m_Stop, then what?
+    if (m_Train.isMissing(m_AttrIndex)) {
+      transProb = m_MissingProb;
+    } else {
+      try {
+        transProb = (1.0 - m_Stop) / m_Test.attribute(m_AttrIndex).numValues();
+        if ((int) m_Test.value(m_AttrIndex) == (int) m_Train.value(m_AttrIndex)) {
+          transProb += m_Stop;
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    return transProb;
+  }
+
+  /**
+   * Sets the stop parameter and the probability of transforming into a
+   * missing value for the indexed nominal attribute of the test instance. The
+   * values are read from the cache if the attribute value has been encountered
+   * before, otherwise they are computed over the whole training set and stored
+   * in the cache. The train instance is not used, so it may be null. Without a
+   * cache the values are always computed.
+   */
+  public void computeParameters() {
     // check if the attribute value has been encountred before
     // in which case it should be in the nominal cache
-    if (m_Cache.containsKey(m_Test.value(m_AttrIndex))) {
+    if (m_Cache != null && m_Cache.containsKey(m_Test.value(m_AttrIndex))) {
       KStarCache.TableEntry te = m_Cache.getCacheValues(m_Test
         .value(m_AttrIndex));
       m_Stop = te.value;
@@ -164,22 +193,34 @@ public class KStarNominalAttribute implements KStarConstants, RevisionHandler {
         m_Stop = stopProbUsingBlend();
       }
       // store the values in cache
-      m_Cache.store(m_Test.value(m_AttrIndex), m_Stop, m_MissingProb);
-    }
-    // we've got our m_Stop, then what?
-    if (m_Train.isMissing(m_AttrIndex)) {
-      transProb = m_MissingProb;
-    } else {
-      try {
-        transProb = (1.0 - m_Stop) / m_Test.attribute(m_AttrIndex).numValues();
-        if ((int) m_Test.value(m_AttrIndex) == (int) m_Train.value(m_AttrIndex)) {
-          transProb += m_Stop;
-        }
-      } catch (Exception e) {
-        e.printStackTrace();
+      if (m_Cache != null) {
+        m_Cache.store(m_Test.value(m_AttrIndex), m_Stop, m_MissingProb);
       }
     }
-    return transProb;
+  }
+
+  /**
+   * Sets the stop parameters and the probabilities of transforming into a
+   * missing value of the indexed nominal attribute of the test instance for
+   * several global blending factors, with the sphere blend method. The
+   * distribution of the attribute values is taken once and shared by the
+   * root finding of every blending factor. The cache is not used.
+   * 
+   * @param blendFactors the blending factors, in percent
+   * @param stops receives the stop parameter of each blending factor
+   * @param missingProbs receives the probability of transforming into a
+   *          missing value of each blending factor
+   */
+  public void computeParameters(int[] blendFactors, double[] stops,
+    double[] missingProbs) {
+    int blendFactor = m_BlendFactor;
+    generateAttrDistribution();
+    for (int b = 0; b < blendFactors.length; b++) {
+      m_BlendFactor = blendFactors[b];
+      stops[b] = stopProbUsingBlend();
+      missingProbs[b] = m_MissingProb;
+    }
+    m_BlendFactor = blendFactor;
   }
 
   /**
@@ -549,9 +590,14 @@ public class KStarNominalAttribute implements KStarConstants, RevisionHandler {
    * Calculates the distribution, in the dataset, of the indexed nominal
    * attribute values. It also counts the actual number of training instances
    * that contributed (those with non-missing values) to calculate the
-   * distribution.
+   * distribution. Precomputed distributions are used if they were set.
    */
   private void generateAttrDistribution() {
+    if (m_AttributeDistribution != null) {
+      m_Distribution = m_AttributeDistribution.getCounts(m_AttrIndex);
+      m_TotalCount = m_AttributeDistribution.getTotalCount(m_AttrIndex);
+      return;
+    }
     m_Distribution = new int[m_TrainSet.attribute(m_AttrIndex).numValues()];
     int i;
     Instance train;
@@ -564,6 +610,36 @@ public class KStarNominalAttribute implements KStarConstants, RevisionHandler {
     }
   }
 
+  /**
+   * Sets the precomputed distributions of the training set, so that the
+   * distribution of the attribute values does not have to be counted again.
+   * 
+   * @param distribution the distributions of the training set, or null to
+   *          count them
+   */
+  public void setAttributeDistribution(KStarAttributeDistribution distribution) {
+    m_AttributeDistribution = distribution;
+  }
+
+  /**
+   * Returns the stop parameter set by computeParameters().
+   * 
+   * @return the stop parameter
+   */
+  public double getStop() {
+    return m_Stop;
+  }
+
+  /**
+   * Returns the probability of transforming into a missing value set by
+   * computeParameters().
+   * 
+   * @return the missing value probability
+   */
+  public double getMissingProb() {
+    return m_MissingProb;
+  }
+
   /**
    * Sets the options.
    * 
@@ -22,6 +22,9 @@
 
 package weka.classifiers.lazy.kstar;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -85,6 +88,37 @@ public class KStarNumericAttribute implements KStarConstants, RevisionHandler {
   /** The number of train instances with no missing attribute values */
   protected int m_ActualCount = 0;
 
+  /** Precomputed distributions of the train dataset, may be null */
+  protected KStarAttributeDistribution m_AttributeDistribution;
+
+  /**
+   * The distances to the train attributes in ascending order, used instead
+   * of m_Distances when the precomputed distributions are set
+   */
+  protected KStarAttributeDistribution.SortedDistances m_SortedDistances;
+
+  /** The smallest distance to a train attribute, -1 if there is none */
+  protected double m_Lowest = -1.0;
+
+  /** The next smallest distance to a train attribute, -1 if there is none */
+  protected double m_NextLowest = -1.0;
+
+  /** The number of train attributes at the smallest distance */
+  protected int m_LowestCount = 0;
+
+  /**
+   * The sphere sizes already computed for the current distances by scale
+   * factor, while the parameters of several blending factors are computed;
+   * the root finders of the blending factors start from the same brackets
+   */
+  protected Map<Double, KStarWrapper> m_SphereSizes;
+
+  /**
+   * Relative tolerance below which the remaining terms of the sphere size are
+   * pruned, 0 to sum all of them
+   */
+  protected double m_PruneTolerance = 0.0;
+
   /**
    * A cache for storing attribute values and their corresponding scale
    * parameters
@@ -149,9 +183,30 @@ public class KStarNumericAttribute implements KStarConstants, RevisionHandler {
    */
   public double transProb() {
     double transProb, distance;
+    computeParameters();
+    // now what???
+    if (m_Train.isMissing(m_AttrIndex)) {
+      transProb = m_MissingProb;
+    } else {
+      distance = Math.abs(m_Test.value(m_AttrIndex)
+        - m_Train.value(m_AttrIndex));
+      transProb = PStar(distance, m_Scale);
+    }
+    return transProb;
+  }
+
+  /**
+   * Sets the scale factor and the probability of transforming into a missing
+   * value for the attribute indexed "m_AttrIndex" in test instance "m_Test".
+   * The values are read from the cache if the attribute value has been
+   * encountered before, otherwise they are computed over the whole training
+   * set and stored in the cache. The train instance is not used, so it may be
+   * null. Without a cache the values are always computed.
+   */
+  public void computeParameters() {
     // check if the attribute value has been encountred before
     // in which case it should be in the numeric cache
-    if (m_Cache.containsKey(m_Test.value(m_AttrIndex))) {
+    if (m_Cache != null && m_Cache.containsKey(m_Test.value(m_AttrIndex))) {
       KStarCache.TableEntry te = m_Cache.getCacheValues(m_Test
         .value(m_AttrIndex));
       m_Scale = te.value;
@@ -162,17 +217,36 @@ public class KStarNumericAttribute implements KStarConstants, RevisionHandler {
       } else { // default is B_SPHERE
         m_Scale = scaleFactorUsingBlend();
       }
-      m_Cache.store(m_Test.value(m_AttrIndex), m_Scale, m_MissingProb);
+      if (m_Cache != null) {
+        m_Cache.store(m_Test.value(m_AttrIndex), m_Scale, m_MissingProb);
+      }
     }
-    // now what???
-    if (m_Train.isMissing(m_AttrIndex)) {
-      transProb = m_MissingProb;
-    } else {
-      distance = Math.abs(m_Test.value(m_AttrIndex)
-        - m_Train.value(m_AttrIndex));
-      transProb = PStar(distance, m_Scale);
+  }
+
+  /**
+   * Sets the scale factors and the probabilities of transforming into a
+   * missing value of the indexed numeric attribute of the test instance for
+   * several global blending factors, with the sphere blend method. The
+   * distances to the train attributes are computed once and shared by the
+   * root finding of every blending factor. The cache is not used.
+   * 
+   * @param blendFactors the blending factors, in percent
+   * @param scales receives the scale factor of each blending factor
+   * @param missingProbs receives the probability of transforming into a
+   *          missing value of each blending factor
+   */
+  public void computeParameters(int[] blendFactors, double[] scales,
+    double[] missingProbs) {
+    int blendFactor = m_BlendFactor;
+    findDistances();
+    m_SphereSizes = new HashMap<Double, KStarWrapper>();
+    for (int b = 0; b < blendFactors.length; b++) {
+      m_BlendFactor = blendFactors[b];
+      scales[b] = scaleFactorForBlend();
+      missingProbs[b] = m_MissingProb;
     }
-    return transProb;
+    m_SphereSizes = null;
+    m_BlendFactor = blendFactor;
   }
 
   /**
@@ -182,8 +256,81 @@ public class KStarNumericAttribute implements KStarConstants, RevisionHandler {
    * @return the scale factor value
    */
   private double scaleFactorUsingBlend() {
-    int i, j, lowestcount = 0;
+    findDistances();
+    return scaleFactorForBlend();
+  }
+
+  /**
+   * Computes the distances from the attribute indexed "m_AttrIndex" in test
+   * instance "m_Test" to the train attributes, the smallest and next smallest
+   * of them and the number of train attributes at the smallest distance.
+   */
+  private void findDistances() {
+    int j, lowestcount = 0;
     double lowest = -1.0, nextlowest = -1.0;
+
+    if (m_AttributeDistribution != null
+      && m_AttributeDistribution.hasSortedValues(m_AttrIndex)) {
+      // the distances come in ascending order, the closest ones first
+      m_SortedDistances = m_AttributeDistribution.getSortedDistances(
+        m_AttrIndex, m_Test.value(m_AttrIndex));
+      m_ActualCount = m_SortedDistances.count();
+      if (m_ActualCount > 0) {
+        lowest = m_SortedDistances.get(0);
+        lowestcount = 1;
+        while (lowestcount < m_ActualCount
+          && Math.abs(m_SortedDistances.get(lowestcount) - lowest) < 1e-5) {
+          lowestcount++;
+        }
+        if (lowestcount < m_ActualCount) {
+          nextlowest = m_SortedDistances.get(lowestcount);
+        }
+      }
+    } else {
+      m_Distances = new double[m_NumInstances];
+
+      for (j = 0; j < m_NumInstances; j++) {
+        if (m_TrainSet.instance(j).isMissing(m_AttrIndex)) {
+          // mark the train instance with a missing value by setting
+          // the distance to -1.0
+          m_Distances[j] = -1.0;
+        } else {
+          m_Distances[j] = Math.abs(m_TrainSet.instance(j).value(m_AttrIndex)
+            - m_Test.value(m_AttrIndex));
+          if ((m_Distances[j] + 1e-5) < nextlowest || nextlowest == -1.0) {
+            if ((m_Distances[j] + 1e-5) < lowest || lowest == -1.0) {
+              nextlowest = lowest;
+              lowest = m_Distances[j];
+              lowestcount = 1;
+            } else if (Math.abs(m_Distances[j] - lowest) < 1e-5) {
+              // record the number training instances (number n0) at
+              // the smallest distance from test instance
+              lowestcount++;
+            } else {
+              nextlowest = m_Distances[j];
+            }
+          }
+          // records the actual number of instances with no missing value
+          m_ActualCount++;
+        }
+      }
+    }
+
+    m_Lowest = lowest;
+    m_NextLowest = nextlowest;
+    m_LowestCount = lowestcount;
+  }
+
+  /**
+   * Finds the scale factor whose sphere of influence includes the share of
+   * the train attributes given by the blending factor, from the distances
+   * computed by findDistances().
+   * 
+   * @return the scale factor value
+   */
+  private double scaleFactorForBlend() {
+    int i, lowestcount = m_LowestCount;
+    double lowest = m_Lowest, nextlowest = m_NextLowest;
     double root, broot, up, bot;
     double aimfor, min_val = 9e300, scale = 1.0;
     double avgprob = 0.0, minprob = 0.0, min_pos = 0.0;
@@ -192,34 +339,6 @@ public class KStarNumericAttribute implements KStarConstants, RevisionHandler {
     KStarWrapper upvals = new KStarWrapper();
     KStarWrapper vals = new KStarWrapper();
 
-    m_Distances = new double[m_NumInstances];
-
-    for (j = 0; j < m_NumInstances; j++) {
-      if (m_TrainSet.instance(j).isMissing(m_AttrIndex)) {
-        // mark the train instance with a missing value by setting
-        // the distance to -1.0
-        m_Distances[j] = -1.0;
-      } else {
-        m_Distances[j] = Math.abs(m_TrainSet.instance(j).value(m_AttrIndex)
-          - m_Test.value(m_AttrIndex));
-        if ((m_Distances[j] + 1e-5) < nextlowest || nextlowest == -1.0) {
-          if ((m_Distances[j] + 1e-5) < lowest || lowest == -1.0) {
-            nextlowest = lowest;
-            lowest = m_Distances[j];
-            lowestcount = 1;
-          } else if (Math.abs(m_Distances[j] - lowest) < 1e-5) {
-            // record the number training instances (number n0) at
-            // the smallest distance from test instance
-            lowestcount++;
-          } else {
-            nextlowest = m_Distances[j];
-          }
-        }
-        // records the actual number of instances with no missing value
-        m_ActualCount++;
-      }
-    }
-
     if (nextlowest == -1 || lowest == -1) { // Data values are all the same
       scale = 1.0;
       m_SmallestProb = m_AverageProb = 1.0;
@@ -318,6 +437,25 @@ public class KStarNumericAttribute implements KStarConstants, RevisionHandler {
    * different training instances we multiply P(i) by 1/n.
    */
   private void calculateSphereSize(double scale, KStarWrapper params) {
+    if (m_SphereSizes != null) {
+      KStarWrapper known = m_SphereSizes.get(scale);
+      if (known == null) {
+        known = new KStarWrapper();
+        Map<Double, KStarWrapper> sphereSizes = m_SphereSizes;
+        m_SphereSizes = null;
+        calculateSphereSize(scale, known);
+        m_SphereSizes = sphereSizes;
+        m_SphereSizes.put(scale, known);
+      }
+      params.sphere = known.sphere;
+      params.avgProb = known.avgProb;
+      params.minProb = known.minProb;
+      return;
+    }
+    if (m_SortedDistances != null) {
+      calculateSphereSizeSorted(scale, params);
+      return;
+    }
     int i;
     double sphereSize, minprob = 1.0;
     double pstar; // P*(b|a)
@@ -346,6 +484,44 @@ public class KStarNumericAttribute implements KStarConstants, RevisionHandler {
     params.minProb = minprob;
   }
 
+  /**
+   * Calculates the size of the "sphere of influence" like
+   * calculateSphereSize(), walking the distances in ascending order. P(i)
+   * decreases with the distance, so once the remaining instances together
+   * cannot add more than m_PruneTolerance times the sum so far, they are
+   * skipped; the sum of the squares is then bounded by the same relative
+   * error. The distances are only merged as far as they are read, so a
+   * pruned sum costs the instances it visits. The smallest probability is
+   * the one of the largest distance.
+   */
+  private void calculateSphereSizeSorted(double scale, KStarWrapper params) {
+    double sphereSize;
+    double pstar; // P*(b|a)
+    double pstarSum = 0.0; // sum(P*)
+    double pstarSquareSum = 0.0; // sum(P*^2)
+    double rawSum = 0.0; // sum(P*) not divided by the count
+    double inc;
+    int count = m_SortedDistances.count();
+    for (int i = 0; i < count; i++) {
+      pstar = PStar(m_SortedDistances.get(i), scale);
+      if (m_PruneTolerance > 0.0
+        && (count - i) * pstar <= m_PruneTolerance * rawSum) {
+        break;
+      }
+      rawSum += pstar;
+      inc = pstar / m_ActualCount;
+      pstarSum += inc;
+      pstarSquareSum += inc * inc;
+    }
+    sphereSize = (pstarSquareSum == 0 ? 0 : pstarSum * pstarSum
+      / pstarSquareSum);
+    // return the values
+    params.sphere = sphereSize;
+    params.avgProb = pstarSum;
+    params.minProb = (count == 0) ? 1.0 : Math.min(1.0,
+      PStar(m_SortedDistances.largest(), scale));
+  }
+
   /**
    * Calculates the scale factor using entropy.
    * 
@@ -569,6 +745,50 @@ public class KStarNumericAttribute implements KStarConstants, RevisionHandler {
     return scale * Math.exp(-2.0 * x * scale);
   }
 
+  /**
+   * Sets the precomputed distributions of the training set. The scale factor
+   * of the sphere blend is then searched over the sorted attribute values
+   * instead of the whole training set; entropic blending is not affected.
+   * The sorted sums are added in another order and ties are grouped from the
+   * smallest distance, so the scale factors can differ slightly from those
+   * of the scan.
+   * 
+   * @param distribution the distributions of the training set, or null to
+   *          scan the training set
+   */
+  public void setAttributeDistribution(KStarAttributeDistribution distribution) {
+    m_AttributeDistribution = distribution;
+  }
+
+  /**
+   * Sets the relative tolerance below which the remaining terms of the sphere
+   * size are pruned. Only used with precomputed distributions.
+   * 
+   * @param tolerance the tolerance, 0 to sum all the terms
+   */
+  public void setPruneTolerance(double tolerance) {
+    m_PruneTolerance = tolerance;
+  }
+
+  /**
+   * Returns the scale factor set by computeParameters().
+   * 
+   * @return the scale factor
+   */
+  public double getScale() {
+    return m_Scale;
+  }
+
+  /**
+   * Returns the probability of transforming into a missing value set by
+   * computeParameters().
+   * 
+   * @return the missing value probability
+   */
+  public double getMissingProb() {
+    return m_MissingProb;
+  }
+
   /**
    * Set options.
    * 
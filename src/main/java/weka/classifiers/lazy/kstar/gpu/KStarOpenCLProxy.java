@@ -5,8 +5,10 @@ import com.nativelibs4java.opencl.*;
 import com.nativelibs4java.util.IOUtils;
 import org.bridj.Pointer;
 import weka.classifiers.lazy.ParallelKStar;
+import weka.classifiers.lazy.kstar.KStarAttributeDistribution;
 import weka.classifiers.lazy.kstar.parallel.KStarComputationResults;
 import weka.classifiers.lazy.kstar.parallel.KStarComputationUnit;
+import weka.classifiers.lazy.kstar.parallel.KStarMetrics;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -69,7 +71,7 @@ public class KStarOpenCLProxy {
 
 
 
-    public KStarOpenCLProxy(Instance instance, Instances train, int numberOfClasses, int numberOfAttributes, int numberOfInstances, KStarComputationUnit.KStarConfig threadConfig, int openCLMode) {
+    public KStarOpenCLProxy(Instance instance, Instances train, int numberOfClasses, int numberOfAttributes, int numberOfInstances, KStarComputationUnit.KStarConfig threadConfig, KStarAttributeDistribution distribution, int openCLMode) {
         this.numberOfInstances = numberOfInstances;
         this.numberOfAttributes = numberOfAttributes;
         this.numberOfClasses = numberOfClasses;
@@ -78,26 +80,25 @@ public class KStarOpenCLProxy {
         computationData = train;
         computationConfiguration = threadConfig;
         largestAttributeNumValues = defineLargestNominalNumberOfOptions();
-        buildAttributesDistribution();
+        m_Distribution = distribution;
 
 
 
     }
 
-    protected int[][] m_Distribution;
-    private void buildAttributesDistribution() {
-        m_Distribution = new int[largestAttributeNumValues][numberOfAttributes];
-        for(int column = 0; column < numberOfAttributes; column++) {
-            Attribute attribute = toCompare.attribute(column);
-            if(attribute.isNominal()) {
-                for (int i = 0; i < numberOfInstances; i++) {
-                    Instance train = computationData.instance(i);
-                    if (!train.isMissing(column)) {
-                        m_Distribution[(int) train.value(column)][column]++;
-                    }
-                }
-            }
-        }
+    /** the value counts of the nominal attributes, computed when the classifier was built */
+    protected KStarAttributeDistribution m_Distribution;
+
+    /** receives the time of each step of compute(), null if not collected */
+    protected KStarMetrics m_Metrics;
+
+    /**
+     * Sets the metrics the steps of compute() are recorded in.
+     *
+     * @param metrics the metrics, null to record nothing
+     */
+    public void setMetrics(KStarMetrics metrics) {
+        m_Metrics = metrics;
     }
 
     private int defineLargestNominalNumberOfOptions() {
@@ -116,26 +117,26 @@ public class KStarOpenCLProxy {
     public KStarComputationResults compute() throws Exception {
         KStarComputationResults results = new KStarComputationResults(numberOfClasses);
 
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
 
         initializeOpenClContext();
-        long contextTime = System.currentTimeMillis();
-
         buildKernel();
-        long buildingKernel = System.currentTimeMillis();
+        long buildingKernel = System.nanoTime();
 
         allocateMemoryForAttributes();
-
         moveInstancesIntoMemory();
-        long allocatingAndMovingMemory = System.currentTimeMillis();
-
         createBuffersInDevice();
-        long allocatingInDevice = System.currentTimeMillis();
+        long allocatingInDevice = System.nanoTime();
 
         callKernelAndWaitForResults();
-        long callingKernelAndWaiting = System.currentTimeMillis();
+        long callingKernelAndWaiting = System.nanoTime();
 
-        System.out.println("Initializing: " + (contextTime-startTime) + " | Building: " + (buildingKernel-contextTime) + "| Memory: " + (allocatingAndMovingMemory-buildingKernel) + "| Kernel:" + (callingKernelAndWaiting-allocatingAndMovingMemory));
+        if (m_Metrics != null) {
+            m_Metrics.record(KStarMetrics.OPENCL_SETUP, buildingKernel - startTime);
+            m_Metrics.record(KStarMetrics.OPENCL_TRANSFER, allocatingInDevice - buildingKernel);
+            m_Metrics.record(KStarMetrics.OPENCL_KERNEL, callingKernelAndWaiting - allocatingInDevice);
+            m_Metrics.count(KStarMetrics.PAIRS, numberOfInstances);
+        }
 
         for(int i = 0; i < numberOfInstances; i++) {
             Instance instance = computationData.instance(i);
@@ -280,7 +281,8 @@ public class KStarOpenCLProxy {
     private void moveAttributeDistributionIntoMemory(int attributeIndex) {
         for(int attributeValue = 0; attributeValue < largestAttributeNumValues; attributeValue++) {
             int flatIndex = numberOfAttributes * attributeValue + attributeIndex;
-            attributesDistribution.set(flatIndex, m_Distribution[attributeValue][attributeIndex]);
+            int[] counts = m_Distribution.getCounts(attributeIndex);
+            attributesDistribution.set(flatIndex, attributeValue < counts.length ? counts[attributeValue] : 0);
         }
 
     }
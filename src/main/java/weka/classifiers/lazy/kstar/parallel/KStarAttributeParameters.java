@@ -0,0 +1,53 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import java.io.Serializable;
+
+/**
+ * The per-attribute KStar parameters of one test instance: its attribute
+ * values, the scale factor (numeric attributes) or stop parameter (nominal
+ * attributes) and the probability of transforming into a missing value. They
+ * are computed once over the whole training set and only read by the
+ * computation units. For nominal attributes the transformation probability
+ * into every train value is tabulated as well.
+ */
+public class KStarAttributeParameters implements Serializable {
+    /** for serialization */
+    private static final long serialVersionUID = 5391804216739541087L;
+
+    /** the attribute values of the test instance */
+    public double[] testValue;
+    /** whether the attribute value of the test instance is missing */
+    public boolean[] testMissing;
+    /** scale factor or stop parameter of each attribute */
+    public double[] parameter;
+    /** probability of transforming into a missing value for each attribute */
+    public double[] missingProbability;
+    /**
+     * probability of transforming into each value of a nominal attribute,
+     * indexed [attribute][train value], null for other attributes
+     */
+    public double[][] nominalTransProb;
+    /** the logarithms of nominalTransProb, only filled in log space mode */
+    public double[][] nominalLogTransProb;
+    /**
+     * the reciprocal of the probability of transforming into a zero train
+     * value of each attribute, for the sparse kernel; null if the instance
+     * cannot be scored sparsely
+     */
+    public double[] inverseZeroTransProb;
+    /** the logarithm of the probability of transforming into a zero train value of each attribute */
+    public double[] logZeroTransProb;
+    /** the transformation probability into a train instance with all values zero */
+    public double zeroBaseline;
+    /** the logarithm of zeroBaseline, computed as a sum so that it does not underflow */
+    public double logZeroBaseline;
+
+    public KStarAttributeParameters(int numberOfAttributes) {
+        testValue = new double[numberOfAttributes];
+        testMissing = new boolean[numberOfAttributes];
+        parameter = new double[numberOfAttributes];
+        missingProbability = new double[numberOfAttributes];
+        nominalTransProb = new double[numberOfAttributes][];
+        nominalLogTransProb = new double[numberOfAttributes][];
+    }
+}
@@ -0,0 +1,109 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import weka.classifiers.lazy.kstar.KStarConstants;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Scores a tile of test instances against a range of the training data. The
+ * training range is walked block by block and each block is scored against
+ * every test instance of the tile before moving on, so the block is read from
+ * memory once per tile instead of once per test instance. Test instances
+ * prepared for the sparse kernel are scored over the sparse rows of the
+ * training data instead of its columns.
+ */
+public class KStarBatchComputationUnit implements Callable<KStarComputationResults[]>, KStarConstants {
+
+    KStarTrainingData m_Data;
+    int m_Start;
+    int m_End;
+    int m_ClassType;
+    int m_NumClasses;
+
+    KStarComputationUnit.KStarConfig m_Configuration;
+
+    /** the parameters of the test instances of the tile */
+    protected KStarAttributeParameters[] m_Parameters;
+
+    /** the training row left out of the sums of each test instance, -1 for none; null if none are */
+    protected int[] m_Excluded;
+
+    public KStarBatchComputationUnit(KStarTrainingData computationData, int start, int end, int classType,
+                                     int numClasses, KStarComputationUnit.KStarConfig configuration,
+                                     KStarAttributeParameters[] parameters) {
+        m_Data = computationData;
+        m_Start = start;
+        m_End = end;
+        m_ClassType = classType;
+        m_NumClasses = numClasses;
+        m_Configuration = configuration;
+        m_Parameters = parameters;
+    }
+
+    /**
+     * Creates a unit that leaves one training row out of the sums of each
+     * test instance, for leave-one-out evaluation.
+     *
+     * @param excluded the training row to leave out for each test instance of
+     *                 the tile, -1 to keep every row
+     */
+    public KStarBatchComputationUnit(KStarTrainingData computationData, int start, int end, int classType,
+                                     int numClasses, KStarComputationUnit.KStarConfig configuration,
+                                     KStarAttributeParameters[] parameters, int[] excluded) {
+        this(computationData, start, end, classType, numClasses, configuration, parameters);
+        m_Excluded = excluded;
+    }
+
+    /**
+     * Computes the partial sums of each test instance of the tile.
+     *
+     * @return the partial sums, in the order of the test instances
+     */
+    @Override
+    public KStarComputationResults[] call() throws Exception {
+        KStarComputationResults[] results = new KStarComputationResults[m_Parameters.length];
+        for (int t = 0; t < results.length; t++) {
+            results[t] = new KStarComputationResults(m_NumClasses, m_Configuration.m_LogSpace);
+        }
+        double[] transProb = new double[KStarComputationUnit.BLOCK_SIZE];
+        double[] classValues = m_Data.classValues;
+        boolean[] sparse = new boolean[m_Parameters.length];
+        for (int t = 0; t < sparse.length; t++) {
+            sparse[t] = KStarKernel.canScoreSparse(m_Configuration, m_Parameters[t], m_Data);
+        }
+
+        for (int start = m_Start; start < m_End; start += KStarComputationUnit.BLOCK_SIZE) {
+            int length = Math.min(KStarComputationUnit.BLOCK_SIZE, m_End - start);
+            for (int t = 0; t < m_Parameters.length; t++) {
+                int excluded = m_Excluded == null ? -1 : m_Excluded[t] - start;
+                if (m_Configuration.m_LogSpace) {
+                    if (sparse[t]) {
+                        KStarKernel.sparseBlockLogTransformationProbability(m_Configuration, m_Parameters[t],
+                                m_Data, start, length, transProb);
+                    } else {
+                        KStarKernel.blockLogTransformationProbability(m_Configuration, m_Parameters[t], m_Data,
+                                start, length, transProb);
+                    }
+                    if (excluded >= 0 && excluded < length) {
+                        transProb[excluded] = Double.NEGATIVE_INFINITY;
+                    }
+                    results[t].accumulateLog(m_ClassType, classValues, start, transProb, length);
+                } else {
+                    if (sparse[t]) {
+                        KStarKernel.sparseBlockTransformationProbability(m_Configuration, m_Parameters[t],
+                                m_Data, start, length, transProb);
+                    } else {
+                        KStarKernel.blockTransformationProbability(m_Configuration, m_Parameters[t], m_Data,
+                                start, length, transProb);
+                    }
+                    if (excluded >= 0 && excluded < length) {
+                        transProb[excluded] = 0.0;
+                    }
+                    results[t].accumulate(m_ClassType, classValues, start, transProb, length);
+                }
+            }
+        }
+
+        return results;
+    }
+}
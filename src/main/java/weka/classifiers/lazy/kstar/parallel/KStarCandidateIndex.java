@@ -0,0 +1,270 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import weka.classifiers.lazy.kstar.KStarAttributeDistribution;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Approximates the KStar sums with the training instances that can contribute
+ * noticeably to them. A nearest neighbour search is built over the numeric
+ * attributes of the training data, normalized by their ranges. The
+ * probability of a training instance is at most
+ * prod(scale_i) * prod(max nominal probability) * exp(-2 * s * D) / N, where
+ * s is the smallest scale factor times range of the numeric attributes and D
+ * the normalized distance, which is no larger than the sum of the normalized
+ * numeric differences. The nearest candidates are scored exactly, and more
+ * are fetched until the instances left out, being at least as far as the
+ * furthest candidate, cannot add more than the tolerance times the sum.
+ * <p>
+ * Test instances with missing values, and training data with missing numeric
+ * values, have contributions that are not bounded by the distance; they
+ * are left to the exact computation.
+ * <p>
+ * The searches keep state between calls, so each concurrent caller of
+ * score() takes a copy of the built search of its own; the copies are kept
+ * for the next callers.
+ */
+public class KStarCandidateIndex {
+
+    /** the number of candidates fetched first */
+    private static final int INITIAL_CANDIDATES = 64;
+
+    /**
+     * The largest fraction of the training data fetched as candidates. Beyond
+     * it the searches cost more than scoring every instance.
+     */
+    private static final int MAX_CANDIDATES_DIVISOR = 8;
+
+    /** the numeric attributes of the training instances, the weight of each holds its row */
+    protected Instances m_Projected;
+
+    /** the indices of the numeric attributes in the training data */
+    protected int[] m_NumericAttributes;
+
+    /** the range of each numeric attribute */
+    protected double[] m_Ranges;
+
+    /** the search over the projected instances, only copied once built */
+    protected NearestNeighbourSearch m_Search;
+
+    /** the copies of the search not in use */
+    protected ConcurrentLinkedQueue<NearestNeighbourSearch> m_IdleSearches =
+            new ConcurrentLinkedQueue<NearestNeighbourSearch>();
+
+    /** whether the training data allows the distances to bound the probabilities */
+    protected boolean m_Usable;
+
+    /**
+     * Builds the search over the numeric attributes of the training data.
+     *
+     * @param train           the training instances
+     * @param distribution    the distributions of the training instances
+     * @param search          the nearest neighbour search to use, its distance
+     *                        function must normalize the attributes
+     * @throws Exception if the search cannot be built
+     */
+    public KStarCandidateIndex(Instances train, KStarAttributeDistribution distribution,
+                               NearestNeighbourSearch search) throws Exception {
+        m_Search = search;
+
+        int count = 0;
+        for (int i = 0; i < train.numAttributes(); i++) {
+            if (i != train.classIndex() && train.attribute(i).type() == Attribute.NUMERIC) {
+                count++;
+            }
+        }
+        m_NumericAttributes = new int[count];
+        m_Ranges = new double[count];
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        m_Usable = false;
+        boolean missing = false;
+        for (int i = 0, j = 0; i < train.numAttributes(); i++) {
+            if (i != train.classIndex() && train.attribute(i).type() == Attribute.NUMERIC) {
+                m_NumericAttributes[j] = i;
+                m_Ranges[j] = distribution.getRange(i);
+                if (m_Ranges[j] > 0.0) {
+                    m_Usable = true;
+                }
+                if (distribution.getTotalCount(i) != train.numInstances()) {
+                    missing = true;
+                }
+                attributes.add(new Attribute(train.attribute(i).name()));
+                j++;
+            }
+        }
+        m_Usable &= !missing;
+        if (!m_Usable) {
+            return;
+        }
+
+        m_Projected = new Instances(train.relationName() + "-numeric", attributes, train.numInstances());
+        for (int row = 0; row < train.numInstances(); row++) {
+            m_Projected.add(project(train.instance(row), row));
+        }
+        m_Search.setInstances(m_Projected);
+    }
+
+    /**
+     * Copies the numeric attribute values of an instance.
+     *
+     * @param instance the instance to copy
+     * @param row      the row of the instance, kept as its weight since the
+     *                 searches return copies of the instances
+     * @return the projected instance
+     */
+    protected Instance project(Instance instance, int row) {
+        double[] values = new double[m_NumericAttributes.length];
+        for (int j = 0; j < values.length; j++) {
+            values[j] = instance.value(m_NumericAttributes[j]);
+        }
+        return new DenseInstance(row, values);
+    }
+
+    /**
+     * Checks whether a test instance can be approximated.
+     *
+     * @param parameters the parameters of the test instance
+     * @param classIndex the index of the class attribute
+     * @return true if the search can bound the neglected probabilities
+     */
+    public boolean canScore(KStarAttributeParameters parameters, int classIndex) {
+        if (!m_Usable) {
+            return false;
+        }
+        for (int i = 0; i < parameters.testMissing.length; i++) {
+            if (i != classIndex && parameters.testMissing[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sums the contributions of the nearest training instances.
+     *
+     * @param instance   the test instance
+     * @param parameters the parameters of the test instance
+     * @param data       the columnar training data
+     * @param config     the model configuration
+     * @param classType  the type of the class attribute
+     * @param tolerance  the largest neglected probability mass, relative to the sum
+     * @return the partial sums with the bound of the neglected mass, or null if
+     * too many instances would have to be scored
+     * @throws Exception if the search fails
+     */
+    public KStarComputationResults score(Instance instance, KStarAttributeParameters parameters,
+                                         KStarTrainingData data, KStarComputationUnit.KStarConfig config,
+                                         int classType, double tolerance) throws Exception {
+        NearestNeighbourSearch search = m_IdleSearches.poll();
+        if (search == null) {
+            synchronized (m_Search) {
+                search = (NearestNeighbourSearch) new SerializedObject(m_Search).getObject();
+            }
+        }
+        try {
+            return score(search, instance, parameters, data, config, classType, tolerance);
+        } finally {
+            m_IdleSearches.offer(search);
+        }
+    }
+
+    /**
+     * Sums the contributions of the nearest training instances with a search
+     * used by no other thread.
+     *
+     * @param search     the search
+     * @param instance   the test instance
+     * @param parameters the parameters of the test instance
+     * @param data       the columnar training data
+     * @param config     the model configuration
+     * @param classType  the type of the class attribute
+     * @param tolerance  the largest neglected probability mass, relative to the sum
+     * @return the partial sums with the bound of the neglected mass, or null if
+     * too many instances would have to be scored
+     * @throws Exception if the search fails
+     */
+    private KStarComputationResults score(NearestNeighbourSearch search, Instance instance,
+                                          KStarAttributeParameters parameters, KStarTrainingData data,
+                                          KStarComputationUnit.KStarConfig config, int classType,
+                                          double tolerance) throws Exception {
+        int numInstances = m_Projected.numInstances();
+
+        // the logarithm of the largest probability of a training instance, apart from the distance
+        double logMax = -Math.log(config.m_TotalInstances);
+        double minScale = Double.POSITIVE_INFINITY;
+        for (int i = 0, j = 0; i < config.m_AttributeTypes.length; i++) {
+            if (i == config.m_ClassIndex) {
+                continue;
+            }
+            switch (config.m_AttributeTypes[i]) {
+                case Attribute.NOMINAL:
+                    double max = parameters.missingProbability[i];
+                    for (double p : parameters.nominalTransProb[i]) {
+                        max = Math.max(max, p);
+                    }
+                    logMax += Math.log(max);
+                    break;
+                case Attribute.NUMERIC:
+                    logMax += Math.log(parameters.parameter[i]);
+                    if (m_Ranges[j] > 0.0) {
+                        minScale = Math.min(minScale, parameters.parameter[i] * m_Ranges[j]);
+                    }
+                    j++;
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        Instance target = project(instance, -1);
+        target.setDataset(m_Projected);
+        for (int k = INITIAL_CANDIDATES; k <= numInstances / MAX_CANDIDATES_DIVISOR; k *= 2) {
+            Instances neighbours = search.kNearestNeighbours(target, k);
+            int count = neighbours.numInstances();
+            if (count >= numInstances) {
+                return null;
+            }
+            double furthest = 0.0;
+            for (double distance : search.getDistances()) {
+                furthest = Math.max(furthest, distance);
+            }
+
+            int[] rows = new int[count];
+            for (int c = 0; c < count; c++) {
+                rows[c] = (int) neighbours.instance(c).weight();
+            }
+            KStarComputationResults results = new KStarComputationUnit(instance,
+                    new KStarTrainingData(data, rows, count), 0, count, config, parameters).call();
+
+            double sum = classType == Attribute.NOMINAL ? sum(results.classProbability) : results.temp;
+            double logSum = Math.log(sum) + results.logScale;
+            double logNeglected = Math.log(numInstances - count) + logMax - 2.0 * minScale * furthest;
+            if (sum > 0.0 && logNeglected - logSum <= Math.log(tolerance)) {
+                results.neglectedMass = Math.exp(logNeglected - logSum);
+                return results;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds up an array.
+     *
+     * @param values the values to add
+     * @return the sum
+     */
+    private static double sum(double[] values) {
+        double sum = 0.0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,110 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A worker that takes items from a KStarWorkQueue until it is empty and
+ * scores the tile of test instances of each item against its chunk of
+ * training data. The partial sums are stored per test instance and chunk, so
+ * the caller can add them up in chunk order whichever worker computed them.
+ */
+public class KStarChunkWorker implements Callable<Integer> {
+
+    KStarWorkQueue m_Queue;
+    KStarTrainingData m_Data;
+    int m_ClassType;
+    int m_NumClasses;
+
+    KStarComputationUnit.KStarConfig m_Configuration;
+
+    /** the parameters of the test instances, per tile */
+    protected KStarAttributeParameters[][] m_Tiles;
+
+    /** receives the partial sums, indexed [test instance][chunk] */
+    protected KStarComputationResults[][] m_Results;
+
+    /** the training row left out of the sums of each test instance, per tile; null if none are */
+    protected int[][] m_Excluded;
+
+    /** receives the time of each item and the busy time of the worker; null if not collected */
+    protected KStarMetrics m_Metrics;
+
+    public KStarChunkWorker(KStarWorkQueue queue, KStarTrainingData computationData, int classType,
+                            int numClasses, KStarComputationUnit.KStarConfig configuration,
+                            KStarAttributeParameters[][] tiles, KStarComputationResults[][] results) {
+        m_Queue = queue;
+        m_Data = computationData;
+        m_ClassType = classType;
+        m_NumClasses = numClasses;
+        m_Configuration = configuration;
+        m_Tiles = tiles;
+        m_Results = results;
+    }
+
+    /**
+     * Creates a worker that leaves one training row out of the sums of each
+     * test instance, for leave-one-out evaluation.
+     *
+     * @param excluded the training row to leave out for each test instance,
+     *                 per tile; -1 to keep every row
+     */
+    public KStarChunkWorker(KStarWorkQueue queue, KStarTrainingData computationData, int classType,
+                            int numClasses, KStarComputationUnit.KStarConfig configuration,
+                            KStarAttributeParameters[][] tiles, int[][] excluded,
+                            KStarComputationResults[][] results) {
+        this(queue, computationData, classType, numClasses, configuration, tiles, results);
+        m_Excluded = excluded;
+    }
+
+    /**
+     * Creates a worker that records the time of each item, and its own busy
+     * time, in the given metrics.
+     *
+     * @param excluded the training row to leave out for each test instance,
+     *                 per tile; null to keep every row
+     * @param metrics  receives the timings, null to record nothing
+     */
+    public KStarChunkWorker(KStarWorkQueue queue, KStarTrainingData computationData, int classType,
+                            int numClasses, KStarComputationUnit.KStarConfig configuration,
+                            KStarAttributeParameters[][] tiles, int[][] excluded,
+                            KStarComputationResults[][] results, KStarMetrics metrics) {
+        this(queue, computationData, classType, numClasses, configuration, tiles, excluded, results);
+        m_Metrics = metrics;
+    }
+
+    /**
+     * Processes items until the queue is empty.
+     *
+     * @return the number of items processed by this worker
+     */
+    @Override
+    public Integer call() throws Exception {
+        int items = 0;
+        long busy = 0;
+        for (int item = m_Queue.nextItem(); item >= 0; item = m_Queue.nextItem()) {
+            long start = m_Metrics == null ? 0 : System.nanoTime();
+            int tile = m_Queue.tileOf(item);
+            int chunk = m_Queue.chunkOf(item);
+            KStarComputationResults[] tileResults = new KStarBatchComputationUnit(m_Data,
+                    m_Queue.chunkStart(chunk), m_Queue.chunkEnd(chunk), m_ClassType, m_NumClasses,
+                    m_Configuration, m_Tiles[tile], m_Excluded == null ? null : m_Excluded[tile]).call();
+            int first = tile * m_Tiles[0].length;
+            for (int t = 0; t < tileResults.length; t++) {
+                m_Results[first + t][chunk] = tileResults[t];
+            }
+            items++;
+            if (m_Metrics != null) {
+                long nanos = System.nanoTime() - start;
+                m_Metrics.record(KStarMetrics.PAIR_LOOP, nanos);
+                m_Metrics.count(KStarMetrics.PAIRS,
+                        (long) tileResults.length * (m_Queue.chunkEnd(chunk) - m_Queue.chunkStart(chunk)));
+                busy += nanos;
+            }
+        }
+        if (m_Metrics != null) {
+            m_Metrics.count(KStarMetrics.WORK_ITEMS, items);
+            m_Metrics.busy(busy);
+        }
+        return items;
+    }
+}
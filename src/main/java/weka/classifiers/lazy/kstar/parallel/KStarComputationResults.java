@@ -1,12 +1,30 @@
 package weka.classifiers.lazy.kstar.parallel;
 
+import weka.core.Attribute;
+
+import java.io.Serializable;
+
 /**
  * Created by I824612 on 12/10/2015.
  */
-public class KStarComputationResults {
+public class KStarComputationResults implements Serializable {
+    /** for serialization */
+    private static final long serialVersionUID = -8062373719842275436L;
+
     public double[] classProbability;
     public double[] predictedValue;
     public double temp;
+    /**
+     * The sums are scaled by exp(-logScale). It stays 0 when the
+     * probabilities are accumulated directly; in log space it tracks the
+     * largest log probability seen, so the sums cannot underflow.
+     */
+    public double logScale;
+    /**
+     * A bound on the probability mass of the training instances that were
+     * not scored, relative to the sums; 0 when every instance was scored.
+     */
+    public double neglectedMass;
 
     public KStarComputationResults(int numberOfClasses) {
         classProbability = new double[numberOfClasses];
@@ -17,4 +35,109 @@ public class KStarComputationResults {
             classProbability[i] = 0.0;
         }
     }
+
+    public KStarComputationResults(int numberOfClasses, boolean logSpace) {
+        this(numberOfClasses);
+        if (logSpace) {
+            logScale = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Adds the weighted class values of a block of training instances.
+     *
+     * @param classType   the type of the class attribute
+     * @param classValues the class column of the training data
+     * @param start       the index of the first training instance of the block
+     * @param transProb   the transformation probability of each instance of the block
+     * @param length      the number of instances in the block
+     */
+    public void accumulate(int classType, double[] classValues, int start, double[] transProb, int length) {
+        switch (classType) {
+            case Attribute.NOMINAL:
+                for (int r = 0; r < length; r++) {
+                    classProbability[(int) classValues[start + r]] += transProb[r];
+                }
+                break;
+            case Attribute.NUMERIC:
+                for (int r = 0; r < length; r++) {
+                    predictedValue[0] += transProb[r] * classValues[start + r];
+                    temp += transProb[r];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Adds the weighted class values of a block of training instances, given
+     * the logarithms of their transformation probabilities (log-sum-exp).
+     *
+     * @param classType   the type of the class attribute
+     * @param classValues the class column of the training data
+     * @param start       the index of the first training instance of the block
+     * @param logProb     the log transformation probability of each instance of the block
+     * @param length      the number of instances in the block
+     */
+    public void accumulateLog(int classType, double[] classValues, int start, double[] logProb, int length) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int r = 0; r < length; r++) {
+            if (logProb[r] > max) {
+                max = logProb[r];
+            }
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            return; // nothing to add
+        }
+        if (max > logScale) {
+            rescale(max);
+        }
+        switch (classType) {
+            case Attribute.NOMINAL:
+                for (int r = 0; r < length; r++) {
+                    classProbability[(int) classValues[start + r]] += Math.exp(logProb[r] - logScale);
+                }
+                break;
+            case Attribute.NUMERIC:
+                for (int r = 0; r < length; r++) {
+                    double weight = Math.exp(logProb[r] - logScale);
+                    predictedValue[0] += weight * classValues[start + r];
+                    temp += weight;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Adds the partial sums of another part of the training data.
+     *
+     * @param other the results to add
+     */
+    public void add(KStarComputationResults other) {
+        double factor = 1.0;
+        if (other.logScale > logScale) {
+            rescale(other.logScale);
+        } else if (other.logScale < logScale) {
+            factor = Math.exp(other.logScale - logScale);
+        }
+        predictedValue[0] += factor * other.predictedValue[0];
+        temp += factor * other.temp;
+        for (int i = 0; i < classProbability.length; i++) {
+            classProbability[i] += factor * other.classProbability[i];
+        }
+    }
+
+    /**
+     * Changes the scale of the sums.
+     *
+     * @param newLogScale the new scale, larger than the current one
+     */
+    protected void rescale(double newLogScale) {
+        double factor = Math.exp(logScale - newLogScale);
+        predictedValue[0] *= factor;
+        temp *= factor;
+        for (int i = 0; i < classProbability.length; i++) {
+            classProbability[i] *= factor;
+        }
+        logScale = newLogScale;
+    }
 }
@@ -0,0 +1,236 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import weka.core.Attribute;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Chooses how a ParallelKStar prediction is executed from an estimate of its
+ * cost. The cost of scoring is the number of training instances times the
+ * number of attributes times the time of one attribute evaluation; the cost
+ * of the parameters is the expected number of cache misses times the number
+ * of training instances times the time of one root finding step. Both unit
+ * times, and the time of handing work to the worker pool and waiting for it,
+ * are measured by a short calibration run when the model is built; the
+ * root finding time is refined by every prediction that misses the cache.
+ * <p>
+ * Work that costs less than a few hand-overs runs serially in the calling
+ * thread. A batch with at least as many test instances as threads computes
+ * the parameters of its instances in parallel as well (BATCH), otherwise only
+ * the scoring of the training chunks is split across the workers (INTRA).
+ * Every plan adds up the same chunks in the same order, so the predictions do
+ * not depend on the plan.
+ */
+public class KStarExecutionPlanner {
+
+    /** run in the calling thread */
+    public static final int SERIAL = 1;
+
+    /** split the training data of each test instance across the workers */
+    public static final int INTRA = 2;
+
+    /** split the test instances across the workers, parameters included */
+    public static final int BATCH = 3;
+
+    /** the number of training instances scored by the calibration run */
+    private static final int CALIBRATION_ROWS = 2048;
+
+    /** the number of repetitions of each calibration measurement, the fastest is kept */
+    private static final int CALIBRATION_RUNS = 3;
+
+    /** the work, in hand-over times, below which parallel execution does not pay off */
+    private static final double MIN_PARALLEL_WORK = 8.0;
+
+    /** the work per worker, in hand-over times, below which fewer workers are used */
+    private static final double MIN_WORK_PER_WORKER = 4.0;
+
+    /**
+     * The number of root finding steps per cache miss assumed until a miss is
+     * measured, each costing about one attribute evaluation per training
+     * instance.
+     */
+    private static final double DEFAULT_STEPS_PER_MISS = 20.0;
+
+    /** the number of worker threads available */
+    protected int m_Threads;
+
+    /** the time of one attribute evaluation of one training instance, in nanoseconds */
+    protected double m_CellNanos;
+
+    /** the time of one cache miss per training instance, in nanoseconds */
+    protected volatile double m_MissNanos;
+
+    /** the time of handing work to the pool and waiting for it, in nanoseconds */
+    protected double m_HandOverNanos;
+
+    /**
+     * Creates a planner and calibrates it.
+     *
+     * @param data       the columnar training data
+     * @param config     the model configuration
+     * @param classType  the type of the class attribute
+     * @param numClasses the number of classes
+     * @param pool       the worker pool, null if there is a single thread
+     * @param threads    the number of worker threads of the pool
+     * @throws Exception if the calibration run fails
+     */
+    public KStarExecutionPlanner(KStarTrainingData data, KStarComputationUnit.KStarConfig config, int classType,
+                                 int numClasses, ExecutorService pool, int threads) throws Exception {
+        m_Threads = threads;
+        m_CellNanos = measureScoring(data, config, classType, numClasses);
+        m_MissNanos = DEFAULT_STEPS_PER_MISS * m_CellNanos;
+        m_HandOverNanos = pool == null || threads <= 1 ? Double.POSITIVE_INFINITY : measureHandOver(pool, threads);
+    }
+
+    /**
+     * Times the scoring of the first training instance against the first
+     * training instances, with neutral parameters.
+     *
+     * @return the time of one attribute evaluation of one training instance
+     */
+    private static double measureScoring(KStarTrainingData data, KStarComputationUnit.KStarConfig config,
+                                         int classType, int numClasses) throws Exception {
+        int numAttributes = config.m_AttributeTypes.length;
+        int rows = Math.min(CALIBRATION_ROWS, data.numInstances);
+        if (rows == 0) {
+            return 0.0;
+        }
+        KStarAttributeParameters parameters = new KStarAttributeParameters(numAttributes);
+        for (int i = 0; i < numAttributes; i++) {
+            parameters.testValue[i] = data.isMissing(i, 0) ? 0.0 : data.value(i, 0);
+            parameters.parameter[i] = 0.5;
+            parameters.missingProbability[i] = 0.1;
+            if (config.m_AttributeTypes[i] == Attribute.NOMINAL && i != config.m_ClassIndex) {
+                parameters.nominalTransProb[i] = KStarKernel.nominalTransProbTable(0.5, config.m_NumValues[i],
+                        parameters.testValue[i]);
+                if (config.m_LogSpace) {
+                    parameters.nominalLogTransProb[i] = KStarKernel.logTable(parameters.nominalTransProb[i]);
+                }
+            }
+        }
+        if (data.isSparse()) {
+            KStarKernel.sparseBaseline(config, parameters); // time the kernel the data is scored with
+        }
+        KStarBatchComputationUnit unit = new KStarBatchComputationUnit(data, 0, rows, classType, numClasses,
+                config, new KStarAttributeParameters[]{parameters});
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < CALIBRATION_RUNS; run++) {
+            long start = System.nanoTime();
+            unit.call();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return (double) fastest / ((double) rows * Math.max(1.0, data.valuesPerRow()));
+    }
+
+    /**
+     * Times handing one empty task to each thread of the pool and waiting for
+     * all of them.
+     *
+     * @return the time of a hand-over
+     */
+    private static double measureHandOver(ExecutorService pool, int threads) throws Exception {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < threads; i++) {
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return null;
+                }
+            });
+        }
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < CALIBRATION_RUNS; run++) {
+            long start = System.nanoTime();
+            for (Future<Object> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
+
+    /**
+     * Estimates the time of a prediction run serially.
+     *
+     * @param numTests      the number of test instances
+     * @param numInstances  the number of training instances
+     * @param numAttributes the number of attributes evaluated per pair
+     * @param hitRatio      the fraction of parameter lookups answered by the cache
+     * @return the estimated time in nanoseconds
+     */
+    public double estimate(int numTests, int numInstances, int numAttributes, double hitRatio) {
+        double pairs = (double) numTests * numInstances;
+        return pairs * numAttributes * (m_CellNanos + (1.0 - hitRatio) * m_MissNanos);
+    }
+
+    /**
+     * Chooses the plan of a prediction.
+     *
+     * @param numTests      the number of test instances
+     * @param numInstances  the number of training instances
+     * @param numAttributes the number of attributes evaluated per pair
+     * @param hitRatio      the fraction of parameter lookups answered by the cache
+     * @return SERIAL, INTRA or BATCH
+     */
+    public int plan(int numTests, int numInstances, int numAttributes, double hitRatio) {
+        if (m_Threads <= 1
+                || estimate(numTests, numInstances, numAttributes, hitRatio) < MIN_PARALLEL_WORK * m_HandOverNanos) {
+            return SERIAL;
+        }
+        return numTests >= m_Threads ? BATCH : INTRA;
+    }
+
+    /**
+     * Returns the number of workers worth starting for a prediction, so that
+     * each has a few hand-overs worth of work.
+     *
+     * @param numTests      the number of test instances
+     * @param numInstances  the number of training instances
+     * @param numAttributes the number of attributes evaluated per pair
+     * @param hitRatio      the fraction of parameter lookups answered by the cache
+     * @return the number of workers, between 1 and the number of threads
+     */
+    public int workers(int numTests, int numInstances, int numAttributes, double hitRatio) {
+        double work = estimate(numTests, numInstances, numAttributes, hitRatio) / (MIN_WORK_PER_WORKER * m_HandOverNanos);
+        return (int) Math.max(1, Math.min(m_Threads, work));
+    }
+
+    /**
+     * Refines the time of a cache miss from a measured computation of
+     * parameters.
+     *
+     * @param nanos        the time the parameters took
+     * @param misses       the number of cache misses during that time
+     * @param numInstances the number of training instances
+     */
+    public void observeMisses(long nanos, long misses, int numInstances) {
+        if (misses > 0 && numInstances > 0) {
+            double observed = (double) nanos / ((double) misses * numInstances);
+            m_MissNanos = 0.5 * (m_MissNanos + observed);
+        }
+    }
+
+    /**
+     * Returns the number of worker threads the planner plans for.
+     *
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return m_Threads;
+    }
+
+    /**
+     * Returns a description of the calibration.
+     *
+     * @return the measured unit times
+     */
+    @Override
+    public String toString() {
+        return String.format("%.2f ns per attribute evaluation, %.2f ns per cache miss and training instance, "
+                + "%.0f ns per hand-over, %d threads", m_CellNanos, m_MissNanos, m_HandOverNanos, m_Threads);
+    }
+}
@@ -0,0 +1,568 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import weka.core.Attribute;
+
+/**
+ * The KStar transformation probability functions used by the pair loop.
+ * The methods are static and keep no state: the scale factors and stop
+ * parameters are read from the KStarAttributeParameters of the test instance,
+ * the training values from the columnar KStarTrainingData, and nothing is
+ * allocated, so the loop over the training instances creates no garbage. The
+ * arithmetic is the same as in KStarNominalAttribute and
+ * KStarNumericAttribute, so the results are identical to the serial KStar.
+ */
+public final class KStarKernel {
+
+    private KStarKernel() {
+    }
+
+    /**
+     * Calculates the nominal probability function P(i|j) = (1-stop) * P(i) +
+     * ((i==j) ? stop : 0) of a test attribute value transforming into a train
+     * attribute value.
+     *
+     * @param stop       the stop parameter of the test attribute value
+     * @param numValues  the number of values of the attribute
+     * @param testValue  the test attribute value
+     * @param trainValue the train attribute value
+     * @return the transformation probability
+     */
+    public static double nominalTransProb(double stop, int numValues, double testValue, double trainValue) {
+        double transProb = (1.0 - stop) / numValues;
+        if ((int) testValue == (int) trainValue) {
+            transProb += stop;
+        }
+        return transProb;
+    }
+
+    /**
+     * Tabulates the nominal probability function of a test attribute value
+     * for every train attribute value, so the pair loop only looks it up.
+     *
+     * @param stop      the stop parameter of the test attribute value
+     * @param numValues the number of values of the attribute
+     * @param testValue the test attribute value
+     * @return the transformation probability indexed by train value
+     */
+    public static double[] nominalTransProbTable(double stop, int numValues, double testValue) {
+        double[] table = new double[numValues];
+        for (int v = 0; v < numValues; v++) {
+            table[v] = nominalTransProb(stop, numValues, testValue, v);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the logarithms of a table of transformation probabilities.
+     *
+     * @param table the transformation probabilities
+     * @return the log transformation probabilities
+     */
+    public static double[] logTable(double[] table) {
+        double[] logTable = new double[table.length];
+        for (int v = 0; v < table.length; v++) {
+            logTable[v] = Math.log(table[v]);
+        }
+        return logTable;
+    }
+
+    /**
+     * Calculates the numeric probability function P(x) = scale * exp(-2.0 * x *
+     * scale) where x is the distance between the test and train attribute
+     * values.
+     *
+     * @param scale      the scale factor of the test attribute value
+     * @param testValue  the test attribute value
+     * @param trainValue the train attribute value
+     * @return the transformation probability
+     */
+    public static double numericTransProb(double scale, double testValue, double trainValue) {
+        double distance = Math.abs(testValue - trainValue);
+        return scale * Math.exp(-2.0 * distance * scale);
+    }
+
+    /**
+     * Calculates the probabilities of the test instance transforming into a
+     * block of consecutive training instances: the product of the
+     * transformation probabilities of the attributes normalized over the
+     * number of training instances. The attributes are processed in the outer
+     * loop, so each training column is streamed once per block; the result is
+     * identical to multiplying the attributes of one instance after the other.
+     * Nominal attributes are read from the tables of the parameters. Single
+     * precision columns are widened as they are read, the products stay in
+     * double precision.
+     *
+     * @param config     the model configuration
+     * @param parameters the parameters of the test instance
+     * @param data       the columnar training data
+     * @param start      the index of the first training instance
+     * @param length     the number of training instances in the block
+     * @param transProb  receives the probability of each instance of the block
+     */
+    public static void blockTransformationProbability(KStarComputationUnit.KStarConfig config,
+                                                      KStarAttributeParameters parameters,
+                                                      KStarTrainingData data, int start, int length,
+                                                      double[] transProb) {
+        int numAttributes = config.m_AttributeTypes.length;
+        int numMissAttr = 0;
+        data.ensureDense();
+        for (int r = 0; r < length; r++) {
+            transProb[r] = 1.0;
+        }
+        for (int i = 0; i < numAttributes; i++) {
+            if (i == config.m_ClassIndex) {
+                continue; // ignore class attribute
+            }
+            if (parameters.testMissing[i]) { // test instance attribute value is missing
+                numMissAttr++;
+                continue;
+            }
+            double[] column = data.values != null ? data.values[i] : null;
+            float[] floatColumn = data.floatValues != null ? data.floatValues[i] : null;
+            long[] missing = data.missing[i];
+            double test = parameters.testValue[i];
+            double param = parameters.parameter[i];
+            double missingProb = parameters.missingProbability[i];
+            switch (config.m_AttributeTypes[i]) {
+                case Attribute.NOMINAL:
+                    double[] table = parameters.nominalTransProb[i];
+                    if (floatColumn != null) {
+                        for (int r = 0, row = start; r < length; r++, row++) {
+                            if ((missing[row >>> 6] & (1L << row)) != 0) {
+                                transProb[r] *= missingProb;
+                            } else {
+                                transProb[r] *= table[(int) floatColumn[row]];
+                            }
+                        }
+                        break;
+                    }
+                    for (int r = 0, row = start; r < length; r++, row++) {
+                        if ((missing[row >>> 6] & (1L << row)) != 0) {
+                            transProb[r] *= missingProb;
+                        } else {
+                            transProb[r] *= table[(int) column[row]];
+                        }
+                    }
+                    break;
+
+                case Attribute.NUMERIC:
+                    if (!data.hasMissing(i, start, length)) {
+                        if (floatColumn != null) {
+                            numericBlock(param, test, floatColumn, start, length, transProb);
+                        } else {
+                            numericBlock(param, test, column, start, length, transProb);
+                        }
+                        break;
+                    }
+                    if (floatColumn != null) {
+                        for (int r = 0, row = start; r < length; r++, row++) {
+                            if ((missing[row >>> 6] & (1L << row)) != 0) {
+                                transProb[r] *= missingProb;
+                            } else {
+                                transProb[r] *= numericTransProb(param, test, floatColumn[row]);
+                            }
+                        }
+                        break;
+                    }
+                    for (int r = 0, row = start; r < length; r++, row++) {
+                        if ((missing[row >>> 6] & (1L << row)) != 0) {
+                            transProb[r] *= missingProb;
+                        } else {
+                            transProb[r] *= numericTransProb(param, test, column[row]);
+                        }
+                    }
+                    break;
+
+                default:
+                    for (int r = 0; r < length; r++) {
+                        transProb[r] *= 0.0;
+                    }
+            }
+            // normilize for missing values
+            if (numMissAttr != numAttributes) {
+                double exponent = (double) numAttributes / (numAttributes - numMissAttr);
+                if (exponent != 1.0) { // Math.pow(x, 1.0) is x
+                    for (int r = 0; r < length; r++) {
+                        transProb[r] = Math.pow(transProb[r], exponent);
+                    }
+                }
+            } else { // weird case!
+                for (int r = 0; r < length; r++) {
+                    transProb[r] = 0.0;
+                }
+            }
+        }
+        // normilize for the train dataset
+        for (int r = 0; r < length; r++) {
+            transProb[r] = transProb[r] / config.m_TotalInstances;
+        }
+    }
+
+    /**
+     * Calculates the logarithms of the probabilities of the test instance
+     * transforming into a block of consecutive training instances. The log
+     * probabilities of the attributes are summed, so no product underflows on
+     * data with many attributes, and the numeric attributes need no exp().
+     * The missing value normalization is applied once per pair, as an
+     * exponent of the whole product, whereas blockTransformationProbability
+     * applies it after every attribute like KStar; with missing test values
+     * the two modes therefore differ.
+     *
+     * @param config     the model configuration
+     * @param parameters the parameters of the test instance, including the
+     *                   nominal log tables
+     * @param data       the columnar training data
+     * @param start      the index of the first training instance
+     * @param length     the number of training instances in the block
+     * @param logProb    receives the log probability of each instance of the block
+     */
+    public static void blockLogTransformationProbability(KStarComputationUnit.KStarConfig config,
+                                                         KStarAttributeParameters parameters,
+                                                         KStarTrainingData data, int start, int length,
+                                                         double[] logProb) {
+        int numAttributes = config.m_AttributeTypes.length;
+        int numMissAttr = 0;
+        data.ensureDense();
+        for (int r = 0; r < length; r++) {
+            logProb[r] = 0.0;
+        }
+        for (int i = 0; i < numAttributes; i++) {
+            if (i == config.m_ClassIndex) {
+                continue; // ignore class attribute
+            }
+            if (parameters.testMissing[i]) { // test instance attribute value is missing
+                numMissAttr++;
+                continue;
+            }
+            double[] column = data.values != null ? data.values[i] : null;
+            float[] floatColumn = data.floatValues != null ? data.floatValues[i] : null;
+            long[] missing = data.missing[i];
+            double test = parameters.testValue[i];
+            double logMissingProb = Math.log(parameters.missingProbability[i]);
+            switch (config.m_AttributeTypes[i]) {
+                case Attribute.NOMINAL:
+                    double[] table = parameters.nominalLogTransProb[i];
+                    if (floatColumn != null) {
+                        for (int r = 0, row = start; r < length; r++, row++) {
+                            if ((missing[row >>> 6] & (1L << row)) != 0) {
+                                logProb[r] += logMissingProb;
+                            } else {
+                                logProb[r] += table[(int) floatColumn[row]];
+                            }
+                        }
+                        break;
+                    }
+                    for (int r = 0, row = start; r < length; r++, row++) {
+                        if ((missing[row >>> 6] & (1L << row)) != 0) {
+                            logProb[r] += logMissingProb;
+                        } else {
+                            logProb[r] += table[(int) column[row]];
+                        }
+                    }
+                    break;
+
+                case Attribute.NUMERIC:
+                    double scale = parameters.parameter[i];
+                    double logScale = Math.log(scale);
+                    if (!data.hasMissing(i, start, length)) {
+                        if (floatColumn != null) {
+                            numericLogBlock(scale, logScale, test, floatColumn, start, length, logProb);
+                        } else {
+                            numericLogBlock(scale, logScale, test, column, start, length, logProb);
+                        }
+                        break;
+                    }
+                    if (floatColumn != null) {
+                        for (int r = 0, row = start; r < length; r++, row++) {
+                            if ((missing[row >>> 6] & (1L << row)) != 0) {
+                                logProb[r] += logMissingProb;
+                            } else {
+                                logProb[r] += logScale - 2.0 * Math.abs(test - floatColumn[row]) * scale;
+                            }
+                        }
+                        break;
+                    }
+                    for (int r = 0, row = start; r < length; r++, row++) {
+                        if ((missing[row >>> 6] & (1L << row)) != 0) {
+                            logProb[r] += logMissingProb;
+                        } else {
+                            logProb[r] += logScale - 2.0 * Math.abs(test - column[row]) * scale;
+                        }
+                    }
+                    break;
+
+                default:
+                    for (int r = 0; r < length; r++) {
+                        logProb[r] = Double.NEGATIVE_INFINITY;
+                    }
+            }
+        }
+        if (numMissAttr != numAttributes) {
+            // normilize for missing values and for the train dataset
+            double exponent = (double) numAttributes / (numAttributes - numMissAttr);
+            double logTotal = Math.log(config.m_TotalInstances);
+            for (int r = 0; r < length; r++) {
+                logProb[r] = logProb[r] * exponent - logTotal;
+            }
+        } else { // weird case!
+            for (int r = 0; r < length; r++) {
+                logProb[r] = Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
+    /**
+     * Prepares a test instance for the sparse kernel: tabulates the
+     * transformation probability of every attribute into a zero train value,
+     * and their product, the transformation probability into a train
+     * instance with all values zero. A test instance with missing values is
+     * left to the dense kernel, which normalizes for them after every
+     * attribute, and so is one with a zero transformation probability that
+     * the sparse kernel could not divide out.
+     *
+     * @param config     the model configuration
+     * @param parameters the parameters of the test instance, receive the tables
+     * @return true if the test instance can be scored by the sparse kernel
+     */
+    public static boolean sparseBaseline(KStarComputationUnit.KStarConfig config,
+                                         KStarAttributeParameters parameters) {
+        int numAttributes = config.m_AttributeTypes.length;
+        double[] inverse = new double[numAttributes];
+        double[] logZero = new double[numAttributes];
+        double baseline = 1.0;
+        double logBaseline = 0.0;
+        for (int i = 0; i < numAttributes; i++) {
+            if (i == config.m_ClassIndex) {
+                continue;
+            }
+            if (parameters.testMissing[i]) {
+                return false;
+            }
+            double zero;
+            switch (config.m_AttributeTypes[i]) {
+                case Attribute.NOMINAL:
+                    zero = parameters.nominalTransProb[i][0];
+                    break;
+                case Attribute.NUMERIC:
+                    zero = numericTransProb(parameters.parameter[i], parameters.testValue[i], 0.0);
+                    break;
+                default:
+                    zero = 0.0;
+            }
+            if (!(zero >= Double.MIN_NORMAL) || Double.isInfinite(zero)) {
+                return false;
+            }
+            inverse[i] = 1.0 / zero;
+            logZero[i] = Math.log(zero);
+            baseline *= zero;
+            logBaseline += logZero[i];
+        }
+        parameters.inverseZeroTransProb = inverse;
+        parameters.logZeroTransProb = logZero;
+        parameters.zeroBaseline = baseline;
+        parameters.logZeroBaseline = logBaseline;
+        return true;
+    }
+
+    /**
+     * Checks whether a test instance is scored by the sparse kernel. In
+     * linear space the all-zeros product must not have underflowed, or the
+     * corrections could not bring it back.
+     *
+     * @param config     the model configuration
+     * @param parameters the parameters of the test instance
+     * @param data       the columnar training data
+     * @return true to use the sparse kernel
+     */
+    public static boolean canScoreSparse(KStarComputationUnit.KStarConfig config,
+                                         KStarAttributeParameters parameters, KStarTrainingData data) {
+        if (parameters.inverseZeroTransProb == null || !data.isSparse()) {
+            return false;
+        }
+        return config.m_LogSpace
+                || (parameters.zeroBaseline >= Double.MIN_NORMAL && !Double.isInfinite(parameters.zeroBaseline));
+    }
+
+    /**
+     * Sparse variant of blockTransformationProbability(). Every training
+     * instance starts from the transformation probability into the all-zeros
+     * instance, which is corrected at the attributes it holds a non-zero or
+     * missing value for: the zero probability is divided out and the
+     * probability of the actual value multiplied in. A pair costs the number
+     * of non-zero values of the training instance rather than the number of
+     * attributes. The products are the same up to rounding.
+     *
+     * @param config     the model configuration
+     * @param parameters the parameters of the test instance, prepared by sparseBaseline()
+     * @param data       the columnar training data with its sparse rows
+     * @param start      the index of the first training instance
+     * @param length     the number of training instances in the block
+     * @param transProb  receives the probability of each instance of the block
+     */
+    public static void sparseBlockTransformationProbability(KStarComputationUnit.KStarConfig config,
+                                                            KStarAttributeParameters parameters,
+                                                            KStarTrainingData data, int start, int length,
+                                                            double[] transProb) {
+        int[] rowStart = data.rowStart;
+        int[] rowEnd = data.rowEnd;
+        int[] indices = data.sparseIndices;
+        double[] values = data.sparseValues;
+        double[] inverseZero = parameters.inverseZeroTransProb;
+        for (int r = 0, row = start; r < length; r++, row++) {
+            double prob = parameters.zeroBaseline;
+            for (int k = rowStart[row]; k < rowEnd[row]; k++) {
+                int i = indices[k];
+                double value = values[k];
+                double attrProb;
+                if (value != value) { // missing
+                    attrProb = parameters.missingProbability[i];
+                } else if (config.m_AttributeTypes[i] == Attribute.NOMINAL) {
+                    attrProb = parameters.nominalTransProb[i][(int) value];
+                } else {
+                    attrProb = numericTransProb(parameters.parameter[i], parameters.testValue[i], value);
+                }
+                prob *= attrProb * inverseZero[i];
+            }
+            transProb[r] = prob / config.m_TotalInstances;
+        }
+    }
+
+    /**
+     * Sparse variant of blockLogTransformationProbability(), see
+     * sparseBlockTransformationProbability().
+     *
+     * @param config     the model configuration
+     * @param parameters the parameters of the test instance, prepared by sparseBaseline()
+     * @param data       the columnar training data with its sparse rows
+     * @param start      the index of the first training instance
+     * @param length     the number of training instances in the block
+     * @param logProb    receives the log probability of each instance of the block
+     */
+    public static void sparseBlockLogTransformationProbability(KStarComputationUnit.KStarConfig config,
+                                                               KStarAttributeParameters parameters,
+                                                               KStarTrainingData data, int start, int length,
+                                                               double[] logProb) {
+        int[] rowStart = data.rowStart;
+        int[] rowEnd = data.rowEnd;
+        int[] indices = data.sparseIndices;
+        double[] values = data.sparseValues;
+        double[] logZero = parameters.logZeroTransProb;
+        double logBaseline = parameters.logZeroBaseline - Math.log(config.m_TotalInstances);
+        for (int r = 0, row = start; r < length; r++, row++) {
+            double sum = logBaseline;
+            for (int k = rowStart[row]; k < rowEnd[row]; k++) {
+                int i = indices[k];
+                double value = values[k];
+                if (value != value) { // missing
+                    sum += Math.log(parameters.missingProbability[i]) - logZero[i];
+                } else if (config.m_AttributeTypes[i] == Attribute.NOMINAL) {
+                    sum += parameters.nominalLogTransProb[i][(int) value] - logZero[i];
+                } else { // the log scale factors cancel out
+                    double test = parameters.testValue[i];
+                    sum -= 2.0 * (Math.abs(test - value) - Math.abs(test)) * parameters.parameter[i];
+                }
+            }
+            logProb[r] = sum;
+        }
+    }
+
+    /**
+     * Multiplies a block of probabilities by the transformation probabilities
+     * of a numeric attribute without missing values in the block. Without the
+     * test of the missing value bits the loop is straight-line code, unrolled
+     * four times so that the independent exp() calls overlap; each product is
+     * computed exactly as in the general loop.
+     *
+     * @param scale     the scale factor of the attribute
+     * @param test      the test value
+     * @param column    the training values of the attribute
+     * @param start     the index of the first training instance
+     * @param length    the number of training instances in the block
+     * @param transProb the probabilities to multiply
+     */
+    static void numericBlock(double scale, double test, double[] column, int start, int length,
+                             double[] transProb) {
+        int r = 0;
+        int row = start;
+        for (; r + 3 < length; r += 4, row += 4) {
+            double p0 = numericTransProb(scale, test, column[row]);
+            double p1 = numericTransProb(scale, test, column[row + 1]);
+            double p2 = numericTransProb(scale, test, column[row + 2]);
+            double p3 = numericTransProb(scale, test, column[row + 3]);
+            transProb[r] *= p0;
+            transProb[r + 1] *= p1;
+            transProb[r + 2] *= p2;
+            transProb[r + 3] *= p3;
+        }
+        for (; r < length; r++, row++) {
+            transProb[r] *= numericTransProb(scale, test, column[row]);
+        }
+    }
+
+    /**
+     * Single precision variant of numericBlock().
+     *
+     * @param scale     the scale factor of the attribute
+     * @param test      the test value
+     * @param column    the training values of the attribute
+     * @param start     the index of the first training instance
+     * @param length    the number of training instances in the block
+     * @param transProb the probabilities to multiply
+     */
+    static void numericBlock(double scale, double test, float[] column, int start, int length,
+                             double[] transProb) {
+        int r = 0;
+        int row = start;
+        for (; r + 3 < length; r += 4, row += 4) {
+            double p0 = numericTransProb(scale, test, column[row]);
+            double p1 = numericTransProb(scale, test, column[row + 1]);
+            double p2 = numericTransProb(scale, test, column[row + 2]);
+            double p3 = numericTransProb(scale, test, column[row + 3]);
+            transProb[r] *= p0;
+            transProb[r + 1] *= p1;
+            transProb[r + 2] *= p2;
+            transProb[r + 3] *= p3;
+        }
+        for (; r < length; r++, row++) {
+            transProb[r] *= numericTransProb(scale, test, column[row]);
+        }
+    }
+
+    /**
+     * Adds the log transformation probabilities of a numeric attribute
+     * without missing values in the block. This loop needs no exp() and has
+     * no branches, so the JIT compiler can vectorize it.
+     *
+     * @param scale    the scale factor of the attribute
+     * @param logScale the logarithm of the scale factor
+     * @param test     the test value
+     * @param column   the training values of the attribute
+     * @param start    the index of the first training instance
+     * @param length   the number of training instances in the block
+     * @param logProb  the log probabilities to add to
+     */
+    static void numericLogBlock(double scale, double logScale, double test, double[] column, int start,
+                                int length, double[] logProb) {
+        for (int r = 0, row = start; r < length; r++, row++) {
+            logProb[r] += logScale - 2.0 * Math.abs(test - column[row]) * scale;
+        }
+    }
+
+    /**
+     * Single precision variant of numericLogBlock().
+     *
+     * @param scale    the scale factor of the attribute
+     * @param logScale the logarithm of the scale factor
+     * @param test     the test value
+     * @param column   the training values of the attribute
+     * @param start    the index of the first training instance
+     * @param length   the number of training instances in the block
+     * @param logProb  the log probabilities to add to
+     */
+    static void numericLogBlock(double scale, double logScale, double test, float[] column, int start,
+                                int length, double[] logProb) {
+        for (int r = 0, row = start; r < length; r++, row++) {
+            logProb[r] += logScale - 2.0 * Math.abs(test - column[row]) * scale;
+        }
+    }
+}
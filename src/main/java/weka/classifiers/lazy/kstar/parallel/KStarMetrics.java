@@ -0,0 +1,287 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters of the predictions of a ParallelKStar model. The time
+ * of each phase is recorded in a histogram with one bucket per power of two
+ * nanoseconds, and the busy time of the threads that score training chunks is
+ * summed per thread. Recording is a few atomic increments, so the metrics can
+ * stay on in production.
+ * <p>
+ * The phases tell where a slow prediction spends its time: a large pair loop
+ * means it is compute-bound, large parameter times with many cache misses
+ * mean it is cache-bound, and a scatter/gather time well above the busy time
+ * of the workers means it is scheduling-bound. Subclasses may override the
+ * record methods to forward the values to a monitoring system.
+ */
+public class KStarMetrics {
+
+    /** setting up the columnar data, caches and the execution plan calibration */
+    public static final int INITIALISATION = 0;
+
+    /** computing the scale factors or stop parameters of one test instance */
+    public static final int PARAMETERS = 1;
+
+    /** scoring one tile of test instances against one chunk of training data */
+    public static final int PAIR_LOOP = 2;
+
+    /** handing the work items to the pool and waiting for the workers */
+    public static final int SCATTER_GATHER = 3;
+
+    /** adding up the partial sums of the chunks */
+    public static final int MERGE = 4;
+
+    /** creating the OpenCL context and building the kernel */
+    public static final int OPENCL_SETUP = 5;
+
+    /** moving the instances to the OpenCL device */
+    public static final int OPENCL_TRANSFER = 6;
+
+    /** running the OpenCL kernel and reading its results */
+    public static final int OPENCL_KERNEL = 7;
+
+    /** the names of the phases */
+    public static final String[] PHASES = {"initialisation", "parameters", "pair loop", "scatter/gather",
+            "merge", "OpenCL setup", "OpenCL transfer", "OpenCL kernel"};
+
+    /** parameter lookups answered by the caches */
+    public static final int CACHE_HITS = 0;
+
+    /** parameter lookups answered by the sidecar file */
+    public static final int SIDECAR_HITS = 1;
+
+    /** parameter lookups that had to find the root */
+    public static final int CACHE_MISSES = 2;
+
+    /** pairs of test and training instances scored */
+    public static final int PAIRS = 3;
+
+    /** work items, each a tile of test instances against a chunk of training data, scored */
+    public static final int WORK_ITEMS = 4;
+
+    /** the time the scoring workers were available, wall time times workers, in nanoseconds */
+    public static final int WORKER_NANOS = 5;
+
+    /** the names of the counters */
+    public static final String[] COUNTERS = {"cache hits", "sidecar hits", "cache misses", "pairs scored",
+            "work items", "worker time (ns)"};
+
+    /** the number of buckets of each histogram, one per bit of a long */
+    private static final int BUCKETS = 64;
+
+    /** the number of times each phase was recorded */
+    protected final AtomicLongArray m_Counts = new AtomicLongArray(PHASES.length);
+
+    /** the total time of each phase, in nanoseconds */
+    protected final AtomicLongArray m_Nanos = new AtomicLongArray(PHASES.length);
+
+    /** the histogram of each phase, bucket b counts times in [2^b, 2^(b+1)) ns */
+    protected final AtomicLongArray m_Histograms = new AtomicLongArray(PHASES.length * BUCKETS);
+
+    /** the counters */
+    protected final AtomicLongArray m_Counters = new AtomicLongArray(COUNTERS.length);
+
+    /** the busy time of each thread, in nanoseconds */
+    protected final ConcurrentMap<String, AtomicLong> m_Busy = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Records one execution of a phase.
+     *
+     * @param phase the phase, e.g. PAIR_LOOP
+     * @param nanos the time it took
+     */
+    public void record(int phase, long nanos) {
+        m_Counts.incrementAndGet(phase);
+        m_Nanos.addAndGet(phase, nanos);
+        m_Histograms.incrementAndGet(phase * BUCKETS + bucket(nanos));
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param counter the counter, e.g. CACHE_MISSES
+     * @param delta   the amount to add
+     */
+    public void count(int counter, long delta) {
+        m_Counters.addAndGet(counter, delta);
+    }
+
+    /**
+     * Adds to the busy time of the calling thread.
+     *
+     * @param nanos the time the thread was busy
+     */
+    public void busy(long nanos) {
+        String thread = Thread.currentThread().getName();
+        AtomicLong busy = m_Busy.get(thread);
+        if (busy == null) {
+            AtomicLong previous = m_Busy.putIfAbsent(thread, busy = new AtomicLong());
+            if (previous != null) {
+                busy = previous;
+            }
+        }
+        busy.addAndGet(nanos);
+    }
+
+    /**
+     * Returns the histogram bucket of a time.
+     *
+     * @param nanos the time
+     * @return the index of its highest bit, 0 for times below 2 ns
+     */
+    private static int bucket(long nanos) {
+        return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * Returns the number of times a phase was recorded.
+     *
+     * @param phase the phase
+     * @return the count
+     */
+    public long getCount(int phase) {
+        return m_Counts.get(phase);
+    }
+
+    /**
+     * Returns the total time of a phase.
+     *
+     * @param phase the phase
+     * @return the time in nanoseconds
+     */
+    public long getTotalNanos(int phase) {
+        return m_Nanos.get(phase);
+    }
+
+    /**
+     * Returns the histogram of the times of a phase.
+     *
+     * @param phase the phase
+     * @return element b counts the times in [2^b, 2^(b+1)) nanoseconds
+     */
+    public long[] getHistogram(int phase) {
+        long[] histogram = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            histogram[b] = m_Histograms.get(phase * BUCKETS + b);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns an upper bound of a quantile of the times of a phase, accurate
+     * to a factor of two.
+     *
+     * @param phase    the phase
+     * @param quantile the quantile, e.g. 0.99
+     * @return the upper end of the bucket holding the quantile in nanoseconds,
+     * 0 if the phase was not recorded
+     */
+    public long getQuantileNanos(int phase, double quantile) {
+        long[] histogram = getHistogram(phase);
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS && total > 0; b++) {
+            seen += histogram[b];
+            if (seen >= rank && histogram[b] > 0) {
+                return b == BUCKETS - 1 ? Long.MAX_VALUE : 1L << (b + 1);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the value of a counter.
+     *
+     * @param counter the counter
+     * @return its value
+     */
+    public long getCounter(int counter) {
+        return m_Counters.get(counter);
+    }
+
+    /**
+     * Returns the busy time of each thread that scored training chunks.
+     *
+     * @return the time in nanoseconds by thread name, in name order
+     */
+    public Map<String, Long> getBusyNanos() {
+        Map<String, Long> busy = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : m_Busy.entrySet()) {
+            busy.put(entry.getKey(), entry.getValue().get());
+        }
+        return busy;
+    }
+
+    /**
+     * Returns the fraction of the time the workers of the scatter/gathers
+     * were available that they spent scoring.
+     *
+     * @return the utilisation, 0 if nothing was handed to the pool
+     */
+    public double getWorkerUtilisation() {
+        long available = getCounter(WORKER_NANOS);
+        if (available == 0) {
+            return 0.0;
+        }
+        long busy = 0;
+        for (AtomicLong nanos : m_Busy.values()) {
+            busy += nanos.get();
+        }
+        return Math.min(1.0, (double) busy / available);
+    }
+
+    /**
+     * Clears all timings and counters.
+     */
+    public void reset() {
+        for (int i = 0; i < m_Counts.length(); i++) {
+            m_Counts.set(i, 0);
+            m_Nanos.set(i, 0);
+        }
+        for (int i = 0; i < m_Histograms.length(); i++) {
+            m_Histograms.set(i, 0);
+        }
+        for (int i = 0; i < m_Counters.length(); i++) {
+            m_Counters.set(i, 0);
+        }
+        m_Busy.clear();
+    }
+
+    /**
+     * Returns a table of the phases, counters and busy times.
+     *
+     * @return the metrics as text
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-16s %10s %12s %12s %12s%n", "phase", "count", "total ms", "p50 us", "p99 us"));
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            if (getCount(phase) > 0) {
+                text.append(String.format("%-16s %10d %12.3f %12.3f %12.3f%n", PHASES[phase], getCount(phase),
+                        getTotalNanos(phase) / 1e6, getQuantileNanos(phase, 0.5) / 1e3,
+                        getQuantileNanos(phase, 0.99) / 1e3));
+            }
+        }
+        for (int counter = 0; counter < COUNTERS.length; counter++) {
+            text.append(String.format("%-16s %10d%n", COUNTERS[counter], getCounter(counter)));
+        }
+        if (getCounter(WORKER_NANOS) > 0) {
+            text.append(String.format("%-16s %10.3f%n", "utilisation", getWorkerUtilisation()));
+        }
+        for (Map.Entry<String, Long> entry : getBusyNanos().entrySet()) {
+            text.append(String.format("busy %-25s %12.3f ms%n", entry.getKey(), entry.getValue() / 1e6));
+        }
+        return text.toString();
+    }
+}
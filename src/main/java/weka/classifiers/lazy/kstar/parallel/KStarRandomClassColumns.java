@@ -0,0 +1,264 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * The randomized class columns of the entropic blend, kept as permutations of
+ * the training rows so they can follow the training data as instances are
+ * added, overwritten and removed. Column k gives row i the class of row
+ * perm[k][i]; the last column holds the class values themselves.
+ * <p>
+ * The columns are generated with the same random draws as KStar, a random
+ * cyclic permutation per column (Sattolo's shuffle), so a model that was
+ * never updated has the same columns as before. An added row is inserted
+ * into each cycle at a random position and a removed row is spliced out of
+ * it, which keeps the permutations uniformly random cycles; each update takes
+ * time proportional to the number of columns.
+ */
+public class KStarRandomClassColumns implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = 4598023186725347712L;
+
+    /** the initial capacity of the columns */
+    private static final int MIN_CAPACITY = 64;
+
+    /** the number of randomized columns */
+    protected int m_NumRandom;
+
+    /** the number of rows */
+    protected int m_Size;
+
+    /** the row whose class each row of each randomized column holds */
+    protected int[][] m_Perm;
+
+    /** the inverse of each permutation */
+    protected int[][] m_Inverse;
+
+    /** the randomized columns followed by the class column */
+    protected int[][] m_Columns;
+
+    /** the generator of the positions of added rows */
+    protected Random m_Random;
+
+    /**
+     * Generates the randomized columns of some class values.
+     *
+     * @param classes   the class value of each row
+     * @param numRandom the number of randomized columns
+     * @param random    the generator, kept for the rows added later
+     */
+    public KStarRandomClassColumns(int[] classes, int numRandom, Random random) {
+        init(classes.length, numRandom, random);
+        for (int k = 0; k < numRandom; k++) {
+            int[] perm = m_Perm[k];
+            for (int i = 0; i < m_Size; i++) {
+                perm[i] = i;
+            }
+            for (int j = m_Size - 1; j > 0; j--) {
+                int index = (int) (random.nextDouble() * (double) j);
+                int temp = perm[j];
+                perm[j] = perm[index];
+                perm[index] = temp;
+            }
+            for (int i = 0; i < m_Size; i++) {
+                m_Inverse[k][perm[i]] = i;
+                m_Columns[k][i] = classes[perm[i]];
+            }
+        }
+        System.arraycopy(classes, 0, m_Columns[numRandom], 0, m_Size);
+    }
+
+    /**
+     * Recovers the permutations of given columns, e.g. read from a sidecar
+     * file or from a model serialized before the permutations were kept.
+     * Rows with the same class are assigned in order, which gives some
+     * permutation consistent with the columns.
+     *
+     * @param columns the randomized columns followed by the class column
+     * @param size    the number of rows
+     * @param random  the generator of the positions of added rows
+     */
+    public KStarRandomClassColumns(int[][] columns, int size, Random random) {
+        init(size, columns.length - 1, random);
+        int[] classes = columns[m_NumRandom];
+        int numClasses = 0;
+        for (int i = 0; i < size; i++) {
+            numClasses = Math.max(numClasses, classes[i] + 1);
+        }
+        int[] start = new int[numClasses + 1];
+        for (int i = 0; i < size; i++) {
+            start[classes[i] + 1]++;
+        }
+        for (int c = 0; c < numClasses; c++) {
+            start[c + 1] += start[c];
+        }
+        int[] rows = new int[size]; // the rows ordered by class
+        int[] next = start.clone();
+        for (int i = 0; i < size; i++) {
+            rows[next[classes[i]]++] = i;
+        }
+        for (int k = 0; k < m_NumRandom; k++) {
+            System.arraycopy(start, 0, next, 0, numClasses);
+            for (int i = 0; i < size; i++) {
+                int row = rows[next[columns[k][i]]++];
+                m_Perm[k][i] = row;
+                m_Inverse[k][row] = i;
+            }
+        }
+        for (int k = 0; k <= m_NumRandom; k++) {
+            System.arraycopy(columns[k], 0, m_Columns[k], 0, size);
+        }
+    }
+
+    /**
+     * Allocates the arrays.
+     */
+    private void init(int size, int numRandom, Random random) {
+        int capacity = Math.max(MIN_CAPACITY, size);
+        m_NumRandom = numRandom;
+        m_Size = size;
+        m_Perm = new int[numRandom][capacity];
+        m_Inverse = new int[numRandom][capacity];
+        m_Columns = new int[numRandom + 1][capacity];
+        m_Random = random;
+    }
+
+    /**
+     * Adds a row after the last one.
+     *
+     * @param classValue the class value of the row
+     */
+    public void add(int classValue) {
+        if (m_Size == m_Columns[0].length) {
+            grow(2 * m_Size);
+        }
+        int n = m_Size;
+        for (int k = 0; k < m_NumRandom; k++) {
+            int[] perm = m_Perm[k];
+            int[] inverse = m_Inverse[k];
+            int[] column = m_Columns[k];
+            if (n == 0) {
+                perm[0] = inverse[0] = 0;
+                column[0] = classValue;
+                continue;
+            }
+            int r = (int) (m_Random.nextDouble() * (double) n); // the new row follows r in the cycle
+            perm[n] = perm[r];
+            column[n] = column[r];
+            inverse[perm[n]] = n;
+            perm[r] = n;
+            column[r] = classValue;
+            inverse[n] = r;
+        }
+        m_Columns[m_NumRandom][n] = classValue;
+        m_Size++;
+    }
+
+    /**
+     * Changes the class value of a row, e.g. one overwritten by a new
+     * instance.
+     *
+     * @param row        the row
+     * @param classValue its new class value
+     */
+    public void setClass(int row, int classValue) {
+        for (int k = 0; k < m_NumRandom; k++) {
+            m_Columns[k][m_Inverse[k][row]] = classValue;
+        }
+        m_Columns[m_NumRandom][row] = classValue;
+    }
+
+    /**
+     * Removes a row; the last row takes its place, like the training data
+     * does when it fills the hole.
+     *
+     * @param row the row to remove
+     */
+    public void remove(int row) {
+        int last = m_Size - 1;
+        for (int k = 0; k < m_NumRandom; k++) {
+            int[] perm = m_Perm[k];
+            int[] inverse = m_Inverse[k];
+            int[] column = m_Columns[k];
+            if (last == 0) {
+                break;
+            }
+            int before = inverse[row]; // splice the row out of its cycle
+            int after = perm[row];
+            perm[before] = after;
+            column[before] = column[row];
+            inverse[after] = before;
+            if (row == last) {
+                continue;
+            }
+            int pointsToLast = inverse[last] == last ? row : inverse[last];
+            perm[row] = perm[last]; // the last row becomes the removed one
+            column[row] = column[last];
+            inverse[perm[row]] = row;
+            perm[pointsToLast] = row;
+            inverse[row] = pointsToLast;
+        }
+        m_Columns[m_NumRandom][row] = m_Columns[m_NumRandom][last];
+        m_Size--;
+    }
+
+    /**
+     * Enlarges the arrays.
+     *
+     * @param capacity the new number of rows
+     */
+    protected void grow(int capacity) {
+        for (int k = 0; k < m_NumRandom; k++) {
+            m_Perm[k] = copyOf(m_Perm[k], capacity);
+            m_Inverse[k] = copyOf(m_Inverse[k], capacity);
+        }
+        for (int k = 0; k <= m_NumRandom; k++) {
+            m_Columns[k] = copyOf(m_Columns[k], capacity);
+        }
+    }
+
+    /**
+     * Copies the used part of an array into a larger one.
+     */
+    private int[] copyOf(int[] array, int capacity) {
+        int[] copy = new int[capacity];
+        System.arraycopy(array, 0, copy, 0, m_Size);
+        return copy;
+    }
+
+    /**
+     * Returns the columns. The arrays are shared, may be longer than the
+     * number of rows and are replaced when they grow, so they must be fetched
+     * again after an update.
+     *
+     * @return the randomized columns followed by the class column
+     */
+    public int[][] columns() {
+        return m_Columns;
+    }
+
+    /**
+     * Returns a copy of the columns with one entry per row, e.g. to write
+     * them to a file.
+     *
+     * @return the randomized columns followed by the class column
+     */
+    public int[][] toArray() {
+        int[][] columns = new int[m_NumRandom + 1][m_Size];
+        for (int k = 0; k <= m_NumRandom; k++) {
+            System.arraycopy(m_Columns[k], 0, columns[k], 0, m_Size);
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return m_Size;
+    }
+}
@@ -0,0 +1,140 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import weka.classifiers.lazy.kstar.KStarAttributeDistribution;
+import weka.core.Instances;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+/**
+ * The connection of a ParallelKStar coordinator to a KStarShardServer.
+ * Sending a request and receiving its reply are separate calls, so the
+ * coordinator can send a request to every shard before waiting for the
+ * first reply, and the shards compute at the same time.
+ */
+public class KStarShardClient {
+
+    /** the connection */
+    protected Socket m_Socket;
+
+    /** the requests */
+    protected ObjectOutputStream m_Out;
+
+    /** the replies */
+    protected ObjectInputStream m_In;
+
+    /** the header of the shard */
+    protected Instances m_Header;
+
+    /** the attribute distributions of the shard */
+    protected KStarAttributeDistribution m_Distribution;
+
+    /** the number of training instances of the shard */
+    protected int m_NumInstances;
+
+    /**
+     * Connects to a shard and reads its description.
+     *
+     * @param endpoint the host and port of the shard, as host:port
+     * @throws Exception if the shard cannot be reached
+     */
+    public KStarShardClient(String endpoint) throws Exception {
+        int colon = endpoint.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Shard endpoint must be host:port: " + endpoint);
+        }
+        m_Socket = new Socket(endpoint.substring(0, colon).trim(),
+                Integer.parseInt(endpoint.substring(colon + 1).trim()));
+        m_Socket.setTcpNoDelay(true);
+        m_Out = new ObjectOutputStream(m_Socket.getOutputStream());
+        m_Out.flush();
+        m_In = new ObjectInputStream(m_Socket.getInputStream());
+
+        m_Out.writeInt(KStarShardServer.DESCRIBE);
+        m_Out.flush();
+        m_Header = (Instances) reply();
+        m_Distribution = (KStarAttributeDistribution) reply();
+        m_NumInstances = m_In.readInt();
+    }
+
+    /**
+     * Returns the header of the shard.
+     *
+     * @return the attributes and class of the shard, without instances
+     */
+    public Instances getHeader() {
+        return m_Header;
+    }
+
+    /**
+     * Returns the attribute distributions of the shard.
+     *
+     * @return the distributions
+     */
+    public KStarAttributeDistribution getDistribution() {
+        return m_Distribution;
+    }
+
+    /**
+     * Returns the number of training instances of the shard.
+     *
+     * @return the number of instances
+     */
+    public int getNumInstances() {
+        return m_NumInstances;
+    }
+
+    /**
+     * Sends test instances to score; the partial sums are read by
+     * receiveScore().
+     *
+     * @param config     the model configuration
+     * @param parameters the parameters of the test instances
+     * @throws IOException if the request cannot be sent
+     */
+    public void sendScore(KStarComputationUnit.KStarConfig config, KStarAttributeParameters[] parameters)
+            throws IOException {
+        m_Out.writeInt(KStarShardServer.SCORE);
+        m_Out.writeObject(config);
+        m_Out.writeObject(parameters);
+        m_Out.flush();
+        m_Out.reset(); // send the parameters again next time
+    }
+
+    /**
+     * Reads the partial sums of the test instances sent last.
+     *
+     * @return the partial sums of each test instance
+     * @throws Exception if the shard failed
+     */
+    public KStarComputationResults[] receiveScore() throws Exception {
+        return (KStarComputationResults[]) reply();
+    }
+
+    /**
+     * Reads a reply, throwing the exception the shard sent instead.
+     *
+     * @return the reply
+     * @throws Exception if the shard failed or the connection was lost
+     */
+    protected Object reply() throws Exception {
+        Object reply = m_In.readObject();
+        if (reply instanceof Exception) {
+            throw new Exception("Shard " + m_Socket.getRemoteSocketAddress() + " failed", (Exception) reply);
+        }
+        return reply;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public void close() {
+        try {
+            m_Socket.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import weka.classifiers.lazy.kstar.KStarAttributeDistribution;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Holds one shard of the KStar training data in its own process and scores
+ * test instances against it for a ParallelKStar coordinator. The coordinator
+ * first asks for the header, the attribute distributions and the size of the
+ * shard, from which it computes the scale factors over the whole training
+ * data; it then sends the parameters of the test instances and receives the
+ * partial sums of the shard, which it adds up in shard order.
+ * <p>
+ * The requests and replies are Java serialized objects over a socket; every
+ * connection is served by its own thread. An exception thrown while serving
+ * a request is sent back in place of the reply. The connections are not
+ * authenticated, so the server listens on the loopback interface unless
+ * another address is given, and only deserializes the classes a request is
+ * made of: the configuration, the parameters, strings and primitive arrays.
+ * <p>
+ * Usage: KStarShardServer -t shard.arff [-c class index] [-port port] [-bind address]
+ */
+public class KStarShardServer implements Runnable {
+
+    /** request for the header, distributions and size of the shard */
+    public static final int DESCRIBE = 1;
+
+    /** request for the partial sums of test instances */
+    public static final int SCORE = 2;
+
+    /** the training instances of the shard */
+    protected Instances m_Shard;
+
+    /** the shard in columnar form */
+    protected KStarTrainingData m_Data;
+
+    /** the distributions of the attribute values of the shard */
+    protected KStarAttributeDistribution m_Distribution;
+
+    /** the address the server listens on unless another one is given */
+    public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+
+    /** the length of the queue of incoming connections */
+    private static final int BACKLOG = 50;
+
+    /** the time to wait for a coordinator to close a refused connection, in milliseconds */
+    private static final int DISCARD_TIMEOUT = 1000;
+
+    /** the socket the coordinators connect to */
+    protected ServerSocket m_ServerSocket;
+
+    /**
+     * Serves a shard of training data.
+     *
+     * @param shard        the training instances, with the class set
+     * @param serverSocket the socket to accept connections on
+     */
+    public KStarShardServer(Instances shard, ServerSocket serverSocket) {
+        m_Shard = new Instances(shard);
+        m_Shard.deleteWithMissingClass();
+        m_Data = new KStarTrainingData(m_Shard);
+        m_Distribution = new KStarAttributeDistribution(m_Shard);
+        m_ServerSocket = serverSocket;
+    }
+
+    /**
+     * Returns the port the server accepts connections on.
+     *
+     * @return the local port
+     */
+    public int getPort() {
+        return m_ServerSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server socket is closed.
+     */
+    @Override
+    public void run() {
+        while (!m_ServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = m_ServerSocket.accept();
+            } catch (IOException e) {
+                break; // closed
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "KStarShardServer-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Answers the requests of one connection until it is closed.
+     *
+     * @param socket the connection
+     */
+    protected void serve(Socket socket) {
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new RequestInputStream(socket.getInputStream());
+            while (true) {
+                int request;
+                try {
+                    request = in.readInt();
+                } catch (EOFException e) {
+                    break; // the coordinator is done
+                }
+                try {
+                    switch (request) {
+                        case DESCRIBE:
+                            out.writeObject(new Instances(m_Shard, 0));
+                            out.writeObject(m_Distribution);
+                            out.writeInt(m_Shard.numInstances());
+                            break;
+                        case SCORE:
+                            KStarComputationUnit.KStarConfig config = (KStarComputationUnit.KStarConfig) in.readObject();
+                            KStarAttributeParameters[] parameters = (KStarAttributeParameters[]) in.readObject();
+                            out.writeObject(score(config, parameters));
+                            break;
+                        default:
+                            throw new IOException("Unknown request " + request);
+                    }
+                } catch (ObjectStreamException e) { // a refused class, the rest of the request is unread
+                    out.writeObject(e);
+                    out.flush();
+                    discard(socket);
+                    break;
+                } catch (Exception e) {
+                    out.writeObject(e);
+                }
+                out.flush();
+                out.reset(); // do not keep references to the replies
+            }
+        } catch (IOException e) {
+            // connection lost, nothing to answer
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Ends a connection whose requests can no longer be read: the reply
+     * already written is sent, then the input is skipped until the
+     * coordinator closes the connection, so that closing it does not reset
+     * the connection before the coordinator has read the reply.
+     *
+     * @param socket the connection
+     */
+    private static void discard(Socket socket) {
+        try {
+            socket.shutdownOutput();
+            socket.setSoTimeout(DISCARD_TIMEOUT);
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                // skipped
+            }
+        } catch (IOException e) {
+            // timed out or lost, closed anyway
+        }
+    }
+
+    /**
+     * Computes the partial sums of test instances over the shard.
+     *
+     * @param config     the configuration of the coordinator, with the size of
+     *                   the whole training data
+     * @param parameters the parameters of the test instances
+     * @return the partial sums of each test instance
+     * @throws Exception if the computation fails
+     */
+    protected KStarComputationResults[] score(KStarComputationUnit.KStarConfig config,
+                                              KStarAttributeParameters[] parameters) throws Exception {
+        if (m_Data.isSparse()) {
+            for (KStarAttributeParameters p : parameters) {
+                if (p.inverseZeroTransProb == null) {
+                    KStarKernel.sparseBaseline(config, p);
+                }
+            }
+        }
+        return new KStarBatchComputationUnit(m_Data, 0, m_Data.numInstances, m_Shard.classAttribute().type(),
+                m_Shard.numClasses(), config, parameters).call();
+    }
+
+    /**
+     * Reads the requests of a coordinator, refusing every class a request is
+     * not made of, so a peer cannot have other objects deserialized.
+     */
+    protected static class RequestInputStream extends ObjectInputStream {
+
+        /**
+         * Reads requests from a stream.
+         *
+         * @param in the stream of the connection
+         * @throws IOException if the stream header cannot be read
+         */
+        public RequestInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            int dimensions = 0;
+            while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+                dimensions++;
+            }
+            String element = name.substring(dimensions);
+            boolean allowed;
+            if (dimensions > 0 && element.length() == 1) {
+                allowed = true; // a primitive array
+            } else {
+                if (dimensions > 0) {
+                    element = element.substring(1, element.length() - 1); // Lname;
+                }
+                allowed = element.equals(KStarComputationUnit.KStarConfig.class.getName())
+                        || element.equals(KStarAttributeParameters.class.getName())
+                        || element.equals(String.class.getName());
+            }
+            if (!allowed) {
+                throw new InvalidClassException(name, "not part of a shard request");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("proxy", "not part of a shard request");
+        }
+    }
+
+    /**
+     * Stops accepting connections.
+     *
+     * @throws IOException if the socket cannot be closed
+     */
+    public void close() throws IOException {
+        m_ServerSocket.close();
+    }
+
+    /**
+     * Serves the shard read from a file.
+     *
+     * @param args -t file [-c class index] [-port port] [-bind address], the
+     *             address defaults to the loopback interface
+     * @throws Exception if the shard cannot be read or the port not bound
+     */
+    public static void main(String[] args) throws Exception {
+        String file = Utils.getOption('t', args);
+        if (file.length() == 0) {
+            throw new Exception("Usage: KStarShardServer -t shard.arff [-c class index] [-port port] "
+                    + "[-bind address]");
+        }
+        Instances shard = DataSource.read(file);
+        String classIndex = Utils.getOption('c', args);
+        if (classIndex.equals("first")) {
+            shard.setClassIndex(0);
+        } else if (classIndex.length() == 0 || classIndex.equals("last")) {
+            shard.setClassIndex(shard.numAttributes() - 1);
+        } else {
+            shard.setClassIndex(Integer.parseInt(classIndex) - 1);
+        }
+        String port = Utils.getOption("port", args);
+        String bind = Utils.getOption("bind", args);
+        InetAddress address = InetAddress.getByName(bind.length() == 0 ? DEFAULT_BIND_ADDRESS : bind);
+        KStarShardServer server = new KStarShardServer(shard,
+                new ServerSocket(port.length() == 0 ? 0 : Integer.parseInt(port), BACKLOG, address));
+        System.out.println("Serving " + shard.numInstances() + " instances on " + address.getHostAddress()
+                + " port " + server.getPort());
+        server.run();
+    }
+}
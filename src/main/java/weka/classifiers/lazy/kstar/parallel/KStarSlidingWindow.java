@@ -0,0 +1,121 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import java.io.Serializable;
+
+/**
+ * The arrival order of the training instances of a ParallelKStar model that
+ * keeps a sliding window over a stream. The rows of the training data are
+ * held in a ring from the oldest to the newest, with the time of each row,
+ * so the oldest row is found in constant time however the rows are
+ * overwritten and moved. The window itself only keeps the order; which rows
+ * leave it is decided by the classifier.
+ */
+public class KStarSlidingWindow implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = -2712436049957325560L;
+
+    /** the initial capacity of the ring */
+    private static final int MIN_CAPACITY = 64;
+
+    /** the rows in arrival order, a ring starting at m_Head */
+    protected int[] m_Ring = new int[MIN_CAPACITY];
+
+    /** the position of the oldest row in the ring */
+    protected int m_Head;
+
+    /** the number of rows in the ring */
+    protected int m_Size;
+
+    /** the position of each row in the ring */
+    protected int[] m_Position = new int[MIN_CAPACITY];
+
+    /** the time of each row */
+    protected double[] m_Times = new double[MIN_CAPACITY];
+
+    /**
+     * Appends a row as the newest one.
+     *
+     * @param row  the row of the training data
+     * @param time the time of the instance, ignored by windows without time
+     */
+    public void added(int row, double time) {
+        if (m_Size == m_Ring.length) {
+            int[] ring = new int[2 * m_Ring.length];
+            for (int k = 0; k < m_Size; k++) {
+                ring[k] = m_Ring[(m_Head + k) % m_Ring.length];
+                m_Position[ring[k]] = k;
+            }
+            m_Ring = ring;
+            m_Head = 0;
+        }
+        if (row >= m_Position.length) {
+            int capacity = Math.max(2 * m_Position.length, row + 1);
+            int[] position = new int[capacity];
+            double[] times = new double[capacity];
+            System.arraycopy(m_Position, 0, position, 0, m_Position.length);
+            System.arraycopy(m_Times, 0, times, 0, m_Times.length);
+            m_Position = position;
+            m_Times = times;
+        }
+        int position = (m_Head + m_Size) % m_Ring.length;
+        m_Ring[position] = row;
+        m_Position[row] = position;
+        m_Times[row] = time;
+        m_Size++;
+    }
+
+    /**
+     * Removes the oldest row.
+     *
+     * @return the row
+     */
+    public int removeOldest() {
+        int row = m_Ring[m_Head];
+        m_Head = (m_Head + 1) % m_Ring.length;
+        m_Size--;
+        return row;
+    }
+
+    /**
+     * Returns the oldest row.
+     *
+     * @return the row, -1 if the window is empty
+     */
+    public int oldest() {
+        return m_Size == 0 ? -1 : m_Ring[m_Head];
+    }
+
+    /**
+     * Returns the time of a row.
+     *
+     * @param row the row
+     * @return its time
+     */
+    public double time(int row) {
+        return m_Times[row];
+    }
+
+    /**
+     * Records that a row of the training data was copied over another one,
+     * e.g. the last row into the hole left by a removed row.
+     *
+     * @param from the row copied
+     * @param to   the row overwritten, which must not be in the window
+     */
+    public void moved(int from, int to) {
+        int position = m_Position[from];
+        m_Ring[position] = to;
+        m_Position[to] = position;
+        m_Times[to] = m_Times[from];
+    }
+
+    /**
+     * Returns the number of rows in the window.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return m_Size;
+    }
+}
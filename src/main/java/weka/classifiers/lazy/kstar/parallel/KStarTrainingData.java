@@ -0,0 +1,563 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+/**
+ * A columnar copy of the KStar training instances: one array of values per
+ * attribute, a bitset of missing values per attribute and the class column.
+ * The pair loop streams over these primitive arrays instead of calling
+ * value() and isMissing() on instance objects scattered over the heap. The
+ * arrays have spare capacity, so instances can be appended by
+ * updateClassifier. In single precision mode the attribute values are held
+ * as floats, like the OpenCL proxy does, which halves the memory read per
+ * block; the class column stays in double precision.
+ * <p>
+ * Data made of sparse instances is held row by row instead, in compressed
+ * sparse row form: for each instance the attributes whose value is non-zero
+ * or missing. The sparse kernel only visits these, so copying and scoring the
+ * data take time proportional to the number of non-zero values. The dense
+ * columns are only built from the rows when the dense kernel needs them, e.g.
+ * when too many values are non-zero; from then on both forms are kept.
+ * <p>
+ * In a sliding window rows are overwritten, moved and removed as well; each
+ * takes time proportional to the number of attributes held per row.
+ */
+public class KStarTrainingData {
+
+    /** the initial capacity of an empty data set */
+    private static final int MIN_CAPACITY = 64;
+
+    /**
+     * the largest fraction of non-zero values for which the sparse kernel is
+     * used; above it the dense columns are streamed faster
+     */
+    public static final double MAX_SPARSE_DENSITY = 0.2;
+
+    /**
+     * the values of each attribute, indexed [attribute][instance], null in
+     * single precision mode or until the dense columns are built
+     */
+    public double[][] values;
+
+    /** the single precision values of each attribute, null in double precision mode or until built */
+    public float[][] floatValues;
+
+    /** the missing value flags of each attribute, one bit per instance, null until built */
+    public long[][] missing;
+
+    /** whether the attribute values are held as floats */
+    protected boolean m_SinglePrecision;
+
+    /** whether the dense columns are held */
+    protected volatile boolean m_Dense;
+
+    /** the class value of each instance */
+    public double[] classValues;
+
+    /** the type of each attribute */
+    public int[] attributeTypes;
+
+    /** the index of the class attribute */
+    public int classIndex;
+
+    /** the number of instances held */
+    public int numInstances;
+
+    /**
+     * the start of each row in sparseIndices and sparseValues; null unless the
+     * data is made of sparse instances
+     */
+    public int[] rowStart;
+
+    /** the end of each row in sparseIndices and sparseValues, exclusive */
+    public int[] rowEnd;
+
+    /** the number of entries of sparseIndices written, including those of overwritten rows */
+    protected int m_SparseSize;
+
+    /** the number of entries of sparseIndices referenced by a row */
+    protected int m_NonZeros;
+
+    /** the attributes of the non-zero and missing values of each row, ascending, without the class */
+    public int[] sparseIndices;
+
+    /** the values at sparseIndices, NaN where missing; rounded to float in single precision mode */
+    public double[] sparseValues;
+
+    /**
+     * Copies the given instances into columns.
+     *
+     * @param data the training instances
+     */
+    public KStarTrainingData(Instances data) {
+        this(data, false);
+    }
+
+    /**
+     * Copies the given instances into columns.
+     *
+     * @param data            the training instances
+     * @param singlePrecision whether to hold the attribute values as floats
+     */
+    public KStarTrainingData(Instances data, boolean singlePrecision) {
+        int numAttributes = data.numAttributes();
+        int capacity = Math.max(MIN_CAPACITY, data.numInstances());
+        classIndex = data.classIndex();
+        attributeTypes = new int[numAttributes];
+        m_SinglePrecision = singlePrecision;
+        classValues = new double[capacity];
+        for (int i = 0; i < numAttributes; i++) {
+            attributeTypes[i] = data.attribute(i).type();
+        }
+        if (data.numInstances() > 0) {
+            if (data.instance(0) instanceof SparseInstance) {
+                initSparse(capacity, capacity);
+            } else {
+                ensureDense();
+            }
+        }
+        for (int row = 0; row < data.numInstances(); row++) {
+            set(row, data.instance(row));
+        }
+        numInstances = data.numInstances();
+    }
+
+    /**
+     * Copies some rows of another columnar data set.
+     *
+     * @param source the data to copy from
+     * @param rows   the rows to copy, in the order to hold them
+     * @param count  the number of rows to copy
+     */
+    public KStarTrainingData(KStarTrainingData source, int[] rows, int count) {
+        int numAttributes = source.attributeTypes.length;
+        int capacity = Math.max(MIN_CAPACITY, count);
+        classIndex = source.classIndex;
+        attributeTypes = source.attributeTypes;
+        m_SinglePrecision = source.m_SinglePrecision;
+        classValues = new double[capacity];
+        for (int row = 0; row < count; row++) {
+            classValues[row] = source.classValues[rows[row]];
+        }
+        if (source.rowStart == null) {
+            if (m_SinglePrecision) {
+                floatValues = new float[numAttributes][capacity];
+            } else {
+                values = new double[numAttributes][capacity];
+            }
+            missing = new long[numAttributes][words(capacity)];
+            for (int i = 0; i < numAttributes; i++) {
+                for (int row = 0; row < count; row++) {
+                    if (values != null) {
+                        values[i][row] = source.values[i][rows[row]];
+                    } else {
+                        floatValues[i][row] = source.floatValues[i][rows[row]];
+                    }
+                    if (source.isMissing(i, rows[row])) {
+                        missing[i][row >>> 6] |= 1L << row;
+                    }
+                }
+            }
+            m_Dense = true;
+        } else {
+            int nonZeros = 0;
+            for (int row = 0; row < count; row++) {
+                nonZeros += source.rowEnd[rows[row]] - source.rowStart[rows[row]];
+            }
+            initSparse(capacity, nonZeros);
+            for (int row = 0; row < count; row++) {
+                int from = source.rowStart[rows[row]];
+                int length = source.rowEnd[rows[row]] - from;
+                System.arraycopy(source.sparseIndices, from, sparseIndices, m_SparseSize, length);
+                System.arraycopy(source.sparseValues, from, sparseValues, m_SparseSize, length);
+                rowStart[row] = m_SparseSize;
+                m_SparseSize += length;
+                rowEnd[row] = m_SparseSize;
+            }
+            m_NonZeros = m_SparseSize;
+        }
+        numInstances = count;
+    }
+
+    /**
+     * Appends an instance, growing the columns if necessary.
+     *
+     * @param instance the instance to add
+     */
+    public void add(Instance instance) {
+        if (numInstances == classValues.length) {
+            grow(2 * classValues.length);
+        }
+        if (numInstances == 0 && rowStart == null && !m_Dense) {
+            if (instance instanceof SparseInstance) {
+                initSparse(classValues.length, classValues.length);
+            } else {
+                ensureDense();
+            }
+        }
+        set(numInstances, instance);
+        numInstances++;
+    }
+
+    /**
+     * Overwrites a row with another instance.
+     *
+     * @param row      the row to overwrite
+     * @param instance the instance to copy
+     */
+    public void replace(int row, Instance instance) {
+        if (rowStart != null) {
+            m_NonZeros -= rowEnd[row] - rowStart[row];
+        }
+        set(row, instance);
+    }
+
+    /**
+     * Copies a row over another one, e.g. to fill the hole left by a removed
+     * instance with the last row.
+     *
+     * @param from the row to copy
+     * @param to   the row to overwrite
+     */
+    public void move(int from, int to) {
+        for (int i = 0; m_Dense && i < attributeTypes.length; i++) {
+            if (values != null) {
+                values[i][to] = values[i][from];
+            } else {
+                floatValues[i][to] = floatValues[i][from];
+            }
+            if (isMissing(i, from)) {
+                missing[i][to >>> 6] |= 1L << to;
+            } else {
+                missing[i][to >>> 6] &= ~(1L << to);
+            }
+        }
+        classValues[to] = classValues[from];
+        if (rowStart != null) {
+            m_NonZeros -= rowEnd[to] - rowStart[to];
+            rowStart[to] = rowStart[from];
+            rowEnd[to] = rowEnd[from];
+            rowStart[from] = rowEnd[from] = 0; // the entries now belong to the other row
+        }
+    }
+
+    /**
+     * Removes the last row.
+     */
+    public void removeLast() {
+        numInstances--;
+        if (rowStart != null) {
+            m_NonZeros -= rowEnd[numInstances] - rowStart[numInstances];
+            rowStart[numInstances] = rowEnd[numInstances] = 0;
+        }
+    }
+
+    /**
+     * Checks whether the value of an attribute is missing.
+     *
+     * @param attribute the attribute index
+     * @param row       the instance index
+     * @return true if the value is missing
+     */
+    public boolean isMissing(int attribute, int row) {
+        if (!m_Dense) {
+            return Utils.isMissingValue(sparseValue(attribute, row));
+        }
+        return (missing[attribute][row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * Checks whether any value of an attribute is missing in a range of rows.
+     *
+     * @param attribute the attribute index
+     * @param start     the first row
+     * @param length    the number of rows
+     * @return true if at least one value is missing
+     */
+    public boolean hasMissing(int attribute, int start, int length) {
+        if (!m_Dense) {
+            for (int row = start; row < start + length; row++) {
+                if (isMissing(attribute, row)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long[] bits = missing[attribute];
+        int end = start + length;
+        for (int word = start >>> 6; word <= (end - 1) >>> 6; word++) {
+            long mask = -1L;
+            if (word == start >>> 6) {
+                mask &= -1L << start;
+            }
+            if (word == (end - 1) >>> 6) {
+                mask &= -1L >>> (63 - ((end - 1) & 63));
+            }
+            if ((bits[word] & mask) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the value of an attribute.
+     *
+     * @param attribute the attribute index
+     * @param row       the instance index
+     * @return the value held, 0 if it is missing
+     */
+    public double value(int attribute, int row) {
+        if (!m_Dense) {
+            double value = sparseValue(attribute, row);
+            return Utils.isMissingValue(value) ? 0.0 : value;
+        }
+        return values != null ? values[attribute][row] : floatValues[attribute][row];
+    }
+
+    /**
+     * Looks up a value in the sparse row of an instance.
+     *
+     * @param attribute the attribute index
+     * @param row       the instance index
+     * @return the value, NaN if it is missing
+     */
+    private double sparseValue(int attribute, int row) {
+        if (attribute == classIndex) {
+            return classValues[row];
+        }
+        for (int k = rowStart[row]; k < rowEnd[row] && sparseIndices[k] <= attribute; k++) {
+            if (sparseIndices[k] == attribute) {
+                return sparseValues[k];
+            }
+        }
+        return 0.0;
+    }
+
+    /**
+     * Builds the dense columns from the sparse rows if they are not held yet,
+     * for the dense kernel. Safe to call from several scoring threads.
+     */
+    public void ensureDense() {
+        if (m_Dense) {
+            return;
+        }
+        synchronized (this) {
+            if (m_Dense) {
+                return;
+            }
+            int numAttributes = attributeTypes.length;
+            int capacity = classValues.length;
+            double[][] doubles = m_SinglePrecision ? null : new double[numAttributes][capacity];
+            float[][] floats = m_SinglePrecision ? new float[numAttributes][capacity] : null;
+            long[][] bits = new long[numAttributes][words(capacity)];
+            for (int row = 0; rowStart != null && row < numInstances; row++) {
+                for (int k = rowStart[row]; k < rowEnd[row]; k++) {
+                    int i = sparseIndices[k];
+                    double value = sparseValues[k];
+                    if (Utils.isMissingValue(value)) {
+                        bits[i][row >>> 6] |= 1L << row;
+                    } else if (doubles != null) {
+                        doubles[i][row] = value;
+                    } else {
+                        floats[i][row] = (float) value;
+                    }
+                }
+                if (classIndex >= 0) {
+                    if (doubles != null) {
+                        doubles[classIndex][row] = classValues[row];
+                    } else {
+                        floats[classIndex][row] = (float) classValues[row];
+                    }
+                }
+            }
+            values = doubles;
+            floatValues = floats;
+            missing = bits;
+            m_Dense = true;
+        }
+    }
+
+    /**
+     * Checks whether the sparse kernel should be used: the data is made of
+     * sparse instances and few of its values are non-zero.
+     *
+     * @return true if the data is sparse
+     */
+    public boolean isSparse() {
+        return rowStart != null
+                && m_NonZeros <= MAX_SPARSE_DENSITY * numInstances * (attributeTypes.length - 1);
+    }
+
+    /**
+     * Returns the average number of non-zero or missing values per row.
+     *
+     * @return the number of values the sparse kernel visits per pair, the
+     * number of attributes without the class if the data is not sparse
+     */
+    public double valuesPerRow() {
+        if (!isSparse() || numInstances == 0) {
+            return attributeTypes.length - 1;
+        }
+        return (double) m_NonZeros / numInstances;
+    }
+
+    /**
+     * Checks whether the attribute values are held as floats.
+     *
+     * @return true in single precision mode
+     */
+    public boolean isSinglePrecision() {
+        return m_SinglePrecision;
+    }
+
+    /**
+     * Copies the values of an instance into a row.
+     *
+     * @param row      the row to write
+     * @param instance the instance to copy
+     */
+    protected void set(int row, Instance instance) {
+        for (int i = 0; m_Dense && i < attributeTypes.length; i++) {
+            double value = instance.isMissing(i) ? 0.0 : instance.value(i);
+            if (values != null) {
+                values[i][row] = value;
+            } else {
+                floatValues[i][row] = (float) value;
+            }
+            if (instance.isMissing(i)) {
+                missing[i][row >>> 6] |= 1L << row;
+            } else {
+                missing[i][row >>> 6] &= ~(1L << row);
+            }
+        }
+        classValues[row] = instance.classValue();
+        if (rowStart != null) {
+            setSparse(row, instance);
+        }
+    }
+
+    /**
+     * Appends the non-zero and missing values of an instance to the sparse
+     * entries and points a row at them. The entries of an overwritten row
+     * stay behind until they outnumber the live ones, then the rows are
+     * compacted.
+     *
+     * @param row      the row to write
+     * @param instance the instance to copy
+     */
+    private void setSparse(int row, Instance instance) {
+        if (m_SparseSize + instance.numValues() > sparseIndices.length) {
+            if (m_SparseSize > 2 * m_NonZeros) {
+                compactSparse(row);
+            }
+            int capacity = Math.max(sparseIndices.length, 2 * (m_NonZeros + instance.numValues()));
+            if (capacity > sparseIndices.length) {
+                int[] indices = new int[capacity];
+                double[] sparse = new double[capacity];
+                System.arraycopy(sparseIndices, 0, indices, 0, m_SparseSize);
+                System.arraycopy(sparseValues, 0, sparse, 0, m_SparseSize);
+                sparseIndices = indices;
+                sparseValues = sparse;
+            }
+        }
+        int end = m_SparseSize;
+        rowStart[row] = end;
+        for (int k = 0; k < instance.numValues(); k++) {
+            int i = instance.index(k);
+            double value = instance.valueSparse(k);
+            if (i == classIndex || value == 0.0) {
+                continue;
+            }
+            sparseIndices[end] = i;
+            sparseValues[end] = !m_SinglePrecision || Utils.isMissingValue(value) ? value : (float) value;
+            end++;
+        }
+        rowEnd[row] = end;
+        m_NonZeros += end - m_SparseSize;
+        m_SparseSize = end;
+    }
+
+    /**
+     * Moves the entries of the rows to the front of the sparse arrays, in row
+     * order, dropping those of overwritten rows.
+     *
+     * @param skip a row about to be overwritten, whose entries are dropped too
+     */
+    private void compactSparse(int skip) {
+        int[] indices = new int[sparseIndices.length];
+        double[] sparse = new double[sparseValues.length];
+        int size = 0;
+        for (int row = 0; row < numInstances; row++) {
+            int length = row == skip ? 0 : rowEnd[row] - rowStart[row];
+            System.arraycopy(sparseIndices, rowStart[row], indices, size, length);
+            System.arraycopy(sparseValues, rowStart[row], sparse, size, length);
+            rowStart[row] = size;
+            size += length;
+            rowEnd[row] = size;
+        }
+        sparseIndices = indices;
+        sparseValues = sparse;
+        m_SparseSize = size;
+        m_NonZeros = size;
+    }
+
+    /**
+     * Creates empty sparse rows.
+     *
+     * @param capacity  the number of rows
+     * @param nonZeros  the number of values
+     */
+    private void initSparse(int capacity, int nonZeros) {
+        rowStart = new int[capacity];
+        rowEnd = new int[capacity];
+        sparseIndices = new int[Math.max(MIN_CAPACITY, nonZeros)];
+        sparseValues = new double[sparseIndices.length];
+    }
+
+    /**
+     * Enlarges the columns.
+     *
+     * @param capacity the new number of rows
+     */
+    protected void grow(int capacity) {
+        for (int i = 0; m_Dense && i < attributeTypes.length; i++) {
+            if (values != null) {
+                double[] column = new double[capacity];
+                System.arraycopy(values[i], 0, column, 0, numInstances);
+                values[i] = column;
+            } else {
+                float[] column = new float[capacity];
+                System.arraycopy(floatValues[i], 0, column, 0, numInstances);
+                floatValues[i] = column;
+            }
+            long[] bits = new long[words(capacity)];
+            System.arraycopy(missing[i], 0, bits, 0, missing[i].length);
+            missing[i] = bits;
+        }
+        double[] column = new double[capacity];
+        System.arraycopy(classValues, 0, column, 0, numInstances);
+        classValues = column;
+        if (rowStart != null) {
+            int[] starts = new int[capacity];
+            int[] ends = new int[capacity];
+            System.arraycopy(rowStart, 0, starts, 0, numInstances);
+            System.arraycopy(rowEnd, 0, ends, 0, numInstances);
+            rowStart = starts;
+            rowEnd = ends;
+        }
+    }
+
+    /**
+     * Returns the number of longs needed for a bitset.
+     *
+     * @param bits the number of bits
+     * @return the number of longs
+     */
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+}
@@ -0,0 +1,130 @@
+package weka.classifiers.lazy.kstar.parallel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the work of scoring test instances against the training data in
+ * small items: the training data is split into chunks of consecutive
+ * instances, the test instances into tiles, and each item is one tile scored
+ * against one chunk. Workers take the next item from a shared counter until
+ * none are left, so a worker that finishes early simply takes more items and
+ * no worker waits on a straggler. The chunks are sized by their cost, not by
+ * the number of workers, hence the partial sums of every chunk, and their
+ * sum, do not depend on the scheduling.
+ */
+public class KStarWorkQueue {
+
+    /** The number of attribute evaluations aimed at for one chunk and test instance */
+    public static final int TARGET_CHUNK_COST = 1 << 15;
+
+    /** the number of training instances */
+    protected final int m_NumInstances;
+
+    /** the number of training instances in a chunk, a multiple of the block size */
+    protected final int m_ChunkSize;
+
+    /** the number of chunks */
+    protected final int m_NumChunks;
+
+    /** the number of items, tiles times chunks */
+    protected final int m_NumItems;
+
+    /** the next item to hand out */
+    protected final AtomicInteger m_Next = new AtomicInteger();
+
+    /**
+     * Creates the queue.
+     *
+     * @param numInstances  the number of training instances
+     * @param numAttributes the number of attributes evaluated per pair
+     * @param numTiles      the number of tiles of test instances
+     */
+    public KStarWorkQueue(int numInstances, int numAttributes, int numTiles) {
+        m_NumInstances = numInstances;
+        m_ChunkSize = chunkSize(numAttributes);
+        m_NumChunks = (numInstances + m_ChunkSize - 1) / m_ChunkSize;
+        m_NumItems = m_NumChunks * numTiles;
+    }
+
+    /**
+     * Returns the number of training instances per chunk for the given cost
+     * of a pair: about TARGET_CHUNK_COST attribute evaluations, rounded down
+     * to whole blocks.
+     *
+     * @param numAttributes the number of attributes evaluated per pair
+     * @return the chunk size
+     */
+    public static int chunkSize(int numAttributes) {
+        int rows = TARGET_CHUNK_COST / Math.max(1, numAttributes);
+        rows -= rows % KStarComputationUnit.BLOCK_SIZE;
+        return Math.max(KStarComputationUnit.BLOCK_SIZE, rows);
+    }
+
+    /**
+     * Takes the next item. Safe to call from several threads.
+     *
+     * @return the item, or -1 if all items have been handed out
+     */
+    public int nextItem() {
+        int item = m_Next.getAndIncrement();
+        return item < m_NumItems ? item : -1;
+    }
+
+    /**
+     * Returns the tile of test instances of an item.
+     *
+     * @param item the item
+     * @return the index of the tile
+     */
+    public int tileOf(int item) {
+        return item / m_NumChunks;
+    }
+
+    /**
+     * Returns the chunk of training instances of an item.
+     *
+     * @param item the item
+     * @return the index of the chunk
+     */
+    public int chunkOf(int item) {
+        return item % m_NumChunks;
+    }
+
+    /**
+     * Returns the first training instance of a chunk.
+     *
+     * @param chunk the index of the chunk
+     * @return the index of the first instance
+     */
+    public int chunkStart(int chunk) {
+        return chunk * m_ChunkSize;
+    }
+
+    /**
+     * Returns the end of a chunk.
+     *
+     * @param chunk the index of the chunk
+     * @return the index after the last instance
+     */
+    public int chunkEnd(int chunk) {
+        return Math.min(m_NumInstances, (chunk + 1) * m_ChunkSize);
+    }
+
+    /**
+     * Returns the number of chunks.
+     *
+     * @return the number of chunks
+     */
+    public int numChunks() {
+        return m_NumChunks;
+    }
+
+    /**
+     * Returns the number of items.
+     *
+     * @return the number of items
+     */
+    public int numItems() {
+        return m_NumItems;
+    }
+}
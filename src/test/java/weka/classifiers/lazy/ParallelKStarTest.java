@@ -0,0 +1,1201 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright 2015 University of Waikato
+ */
+
+package weka.classifiers.lazy;
+
+import weka.classifiers.AbstractClassifierTest;
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.kstar.parallel.KStarMetrics;
+import weka.classifiers.lazy.kstar.parallel.KStarShardServer;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.SerializedObject;
+import weka.core.TestInstances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.instance.NonSparseToSparse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Tests ParallelKStar. Run from the command line with:<p>
+ * java weka.classifiers.lazy.ParallelKStarTest
+ *
+ * @version $Revision$
+ */
+public class ParallelKStarTest extends AbstractClassifierTest {
+
+  public ParallelKStarTest(String name) { super(name);  }
+
+  /** Creates a default ParallelKStar */
+  public Classifier getClassifier() {
+    return new ParallelKStar();
+  }
+
+  /**
+   * Generates a dataset with nominal and numeric attributes and some missing
+   * values.
+   *
+   * @param classType the type of the class attribute
+   * @return the generated data
+   * @throws Exception if generation fails
+   */
+  protected Instances generateData(int classType) throws Exception {
+    TestInstances generator = new TestInstances();
+    generator.setClassType(classType);
+    generator.setNumClasses(3);
+    generator.setNumNominal(4);
+    generator.setNumNominalValues(3);
+    generator.setNumNumeric(4);
+    generator.setNumInstances(120);
+    generator.setClassIndex(TestInstances.CLASS_IS_LAST);
+    Instances data = generator.generate();
+    for (int i = 0; i < data.numInstances(); i += 7) {
+      data.instance(i).setMissing(i % (data.numAttributes() - 1));
+    }
+    return data;
+  }
+
+  /**
+   * Checks that ParallelKStar predicts the same distributions as KStar,
+   * apart from the rounding caused by summing the thread results.
+   *
+   * @param classType the type of the class attribute
+   * @param entropic whether to use the entropic blend setting
+   */
+  protected void checkSameAsKStar(int classType, boolean entropic) {
+    try {
+      Instances data = generateData(classType);
+      Instances train = new Instances(data, 0, 80);
+      Instances test = new Instances(data, 80, 40);
+
+      KStar serial = new KStar();
+      serial.setEntropicAutoBlend(entropic);
+      serial.buildClassifier(train);
+      ParallelKStar parallel = new ParallelKStar();
+      parallel.setEntropicAutoBlend(entropic);
+      parallel.setNumThreads(3);
+      parallel.buildClassifier(train);
+
+      for (int i = 0; i < test.numInstances(); i++) {
+        double[] expected = serial.distributionForInstance(test.instance(i));
+        double[] actual = parallel.distributionForInstance(test.instance(i));
+        assertEquals(expected.length, actual.length);
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals("instance " + i, expected[j], actual[j],
+            1e-12 * Math.max(1.0, Math.abs(expected[j])));
+        }
+      }
+      parallel.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Comparison with KStar failed: " + e);
+    }
+  }
+
+  public void testSameAsKStarNominalClass() {
+    checkSameAsKStar(Attribute.NOMINAL, false);
+  }
+
+  public void testSameAsKStarNumericClass() {
+    checkSameAsKStar(Attribute.NUMERIC, false);
+  }
+
+  public void testSameAsKStarEntropicBlend() {
+    checkSameAsKStar(Attribute.NOMINAL, true);
+  }
+
+  /**
+   * Checks that the predictions do not depend on the number of threads when
+   * the training data is split into several chunks.
+   */
+  public void testSameForAnyNumberOfThreads() {
+    try {
+      TestInstances generator = new TestInstances();
+      generator.setNumNominal(100);
+      generator.setNumNominalValues(3);
+      generator.setNumNumeric(0);
+      generator.setNumInstances(1020);
+      Instances data = generator.generate();
+      Instances train = new Instances(data, 0, 1000);
+      Instances test = new Instances(data, 1000, 20);
+
+      ParallelKStar serial = new ParallelKStar();
+      serial.setNumThreads(1);
+      serial.buildClassifier(train);
+      ParallelKStar parallel = new ParallelKStar();
+      parallel.setNumThreads(4);
+      parallel.buildClassifier(train);
+
+      double[][] expected = serial.distributionsForInstances(test);
+      double[][] actual = parallel.distributionsForInstances(test);
+      for (int i = 0; i < test.numInstances(); i++) {
+        for (int j = 0; j < expected[i].length; j++) {
+          assertEquals("instance " + i, expected[i][j], actual[i][j], 0.0);
+        }
+      }
+      serial.shutdownExecutorPool();
+      parallel.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that the leave-one-out predictions are those of KStar, and the
+   * same in log space for the instances without missing values, and that
+   * the evaluation covers every instance.
+   */
+  public void testLeaveOneOut() {
+    try {
+      for (int classType : new int[] {Attribute.NOMINAL, Attribute.NUMERIC}) {
+        Instances train = generateData(classType);
+        KStar serial = new KStar();
+        serial.buildClassifier(train);
+        double[][] expected = serial.leaveOneOutDistributions();
+
+        ParallelKStar parallel = new ParallelKStar();
+        parallel.setNumThreads(3);
+        parallel.buildClassifier(train);
+        double[][] actual = parallel.leaveOneOutDistributions();
+        ParallelKStar log = new ParallelKStar();
+        log.setNumThreads(3);
+        log.setLogSpace(true);
+        log.buildClassifier(train);
+        double[][] logActual = log.leaveOneOutDistributions();
+
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+          for (int j = 0; j < expected[i].length; j++) {
+            double tolerance = 1e-9 * Math.max(1.0, Math.abs(expected[i][j]));
+            assertEquals("instance " + i, expected[i][j], actual[i][j], tolerance);
+            if (!train.instance(i).hasMissingValue()) {
+              assertEquals("log space, instance " + i, expected[i][j], logActual[i][j], tolerance);
+            }
+          }
+        }
+        assertEquals(train.numInstances(), parallel.leaveOneOut().numInstances(), 0.0);
+        parallel.shutdownExecutorPool();
+        log.shutdownExecutorPool();
+      }
+    } catch (Exception e) {
+      fail("Leave-one-out failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that tuning the global blend evaluates each setting like a model
+   * built with it, answers every parameter lookup of the evaluations from
+   * the parameters shared by the settings, and keeps the best setting.
+   */
+  public void testTuneGlobalBlend() {
+    try {
+      for (int classType : new int[] {Attribute.NOMINAL, Attribute.NUMERIC}) {
+        Instances train = generateData(classType);
+        ParallelKStar tuned = new ParallelKStar();
+        tuned.setNumThreads(2);
+        tuned.setBlendGrid("5, 20, 60");
+        tuned.buildClassifier(train);
+        assertEquals(0, tuned.getCacheMisses());
+
+        int best = 0;
+        for (int b = 0; b < tuned.m_TunedBlends.length; b++) {
+          ParallelKStar given = new ParallelKStar();
+          given.setNumThreads(2);
+          given.setGlobalBlend(tuned.m_TunedBlends[b]);
+          given.buildClassifier(train);
+          assertEquals("blend " + tuned.m_TunedBlends[b], given.leaveOneOut().errorRate(),
+            tuned.m_TunedErrors[b], 1e-12);
+          if (tuned.m_TunedErrors[b] < tuned.m_TunedErrors[best]) {
+            best = b;
+          }
+          given.shutdownExecutorPool();
+        }
+        assertEquals(tuned.m_TunedBlends[best], tuned.getTunedBlend());
+        assertEquals("global blend option kept", 20, tuned.getGlobalBlend());
+        assertTrue(Utils.joinOptions(tuned.getOptions()).contains("-B 20"));
+
+        ParallelKStar given = new ParallelKStar();
+        given.setGlobalBlend(tuned.getTunedBlend());
+        given.buildClassifier(train);
+        for (int i = 0; i < 10; i++) {
+          double[] expected = given.distributionForInstance(train.instance(i));
+          double[] actual = tuned.distributionForInstance(train.instance(i));
+          for (int j = 0; j < expected.length; j++) {
+            assertEquals(expected[j], actual[j], 1e-12 * Math.max(1.0, Math.abs(expected[j])));
+          }
+        }
+        given.shutdownExecutorPool();
+
+        int other = tuned.getTunedBlend() == 60 ? 5 : 60;
+        tuned.setGlobalBlend(other);
+        assertEquals("tuned setting discarded", -1, tuned.getTunedBlend());
+        given = new ParallelKStar();
+        given.setGlobalBlend(other);
+        given.buildClassifier(train);
+        for (int i = 0; i < 10; i++) {
+          double[] expected = given.distributionForInstance(train.instance(i));
+          double[] actual = tuned.distributionForInstance(train.instance(i));
+          for (int j = 0; j < expected.length; j++) {
+            assertEquals(expected[j], actual[j], 1e-12 * Math.max(1.0, Math.abs(expected[j])));
+          }
+        }
+        given.shutdownExecutorPool();
+        tuned.shutdownExecutorPool();
+      }
+    } catch (Exception e) {
+      fail("Tuning the global blend failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that every execution plan gives the same predictions and that a
+   * tiny model is predicted serially in automatic mode.
+   */
+  public void testExecutionPlans() {
+    try {
+      TestInstances generator = new TestInstances();
+      generator.setNumNominal(100);
+      generator.setNumNominalValues(3);
+      generator.setNumNumeric(0);
+      generator.setNumInstances(1020);
+      Instances data = generator.generate();
+      Instances train = new Instances(data, 0, 1000);
+      Instances test = new Instances(data, 1000, 20);
+
+      ParallelKStar serial = new ParallelKStar();
+      serial.setNumThreads(4);
+      serial.setExecutionPlan(new SelectedTag(ParallelKStar.PLAN_SERIAL, ParallelKStar.TAGS_PLAN));
+      serial.buildClassifier(train);
+      double[][] expected = serial.distributionsForInstances(test);
+      assertEquals(ParallelKStar.PLAN_SERIAL, serial.getLastPlan());
+
+      int[] plans = {ParallelKStar.PLAN_AUTO, ParallelKStar.PLAN_INTRA, ParallelKStar.PLAN_BATCH};
+      for (int plan : plans) {
+        ParallelKStar planned = new ParallelKStar();
+        planned.setNumThreads(4);
+        planned.setExecutionPlan(new SelectedTag(plan, ParallelKStar.TAGS_PLAN));
+        planned.buildClassifier(train);
+        double[][] batch = planned.distributionsForInstances(test);
+        for (int i = 0; i < test.numInstances(); i++) {
+          double[] single = planned.distributionForInstance(test.instance(i));
+          for (int j = 0; j < expected[i].length; j++) {
+            assertEquals("plan " + plan + ", instance " + i, expected[i][j], batch[i][j], 0.0);
+            assertEquals("plan " + plan + ", instance " + i, expected[i][j], single[j], 0.0);
+          }
+        }
+        planned.shutdownExecutorPool();
+      }
+      serial.shutdownExecutorPool();
+
+      generator.setNumNominal(2);
+      generator.setNumInstances(10);
+      ParallelKStar tiny = new ParallelKStar();
+      tiny.setNumThreads(4);
+      Instances small = generator.generate();
+      tiny.buildClassifier(small);
+      tiny.distributionForInstance(small.instance(0));
+      assertEquals(ParallelKStar.PLAN_SERIAL, tiny.getLastPlan());
+      tiny.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that the metrics count the cache lookups and the scored pairs,
+   * time the phases and the workers, and are only collected on request.
+   */
+  public void testMetrics() {
+    try {
+      TestInstances generator = new TestInstances();
+      generator.setNumNominal(2);
+      generator.setNumNumeric(2);
+      generator.setNumInstances(220);
+      Instances data = generator.generate();
+      Instances train = new Instances(data, 0, 200);
+      Instances test = new Instances(data, 200, 20);
+
+      ParallelKStar plain = new ParallelKStar();
+      plain.setNumThreads(2);
+      plain.buildClassifier(train);
+      plain.distributionsForInstances(test);
+      assertNull(plain.getMetrics());
+      plain.shutdownExecutorPool();
+
+      ParallelKStar measured = new ParallelKStar();
+      measured.setOptions(new String[]{"-threads", "2", "-plan", "i", "-metrics"});
+      measured.buildClassifier(train);
+      measured.distributionsForInstances(test);
+      measured.distributionsForInstances(test);
+      KStarMetrics metrics = measured.getMetrics();
+      assertNotNull(metrics);
+      assertEquals(measured.getCacheHits(), metrics.getCounter(KStarMetrics.CACHE_HITS));
+      assertEquals(measured.getCacheMisses(), metrics.getCounter(KStarMetrics.CACHE_MISSES));
+      assertTrue(metrics.getCounter(KStarMetrics.CACHE_HITS) >= 4 * test.numInstances());
+      assertEquals(2L * test.numInstances() * train.numInstances(), metrics.getCounter(KStarMetrics.PAIRS));
+      assertEquals(2 * test.numInstances(), metrics.getCount(KStarMetrics.PARAMETERS));
+      assertEquals(1, metrics.getCount(KStarMetrics.INITIALISATION));
+      assertEquals(metrics.getCounter(KStarMetrics.WORK_ITEMS), metrics.getCount(KStarMetrics.PAIR_LOOP));
+      assertTrue(metrics.getCount(KStarMetrics.SCATTER_GATHER) > 0);
+      assertTrue(metrics.getQuantileNanos(KStarMetrics.PAIR_LOOP, 0.99) > 0);
+      assertFalse(metrics.getBusyNanos().isEmpty());
+      assertTrue(metrics.getWorkerUtilisation() > 0.0);
+      assertTrue(measured.toString().contains("pair loop"));
+
+      metrics.reset();
+      assertEquals(0, metrics.getCounter(KStarMetrics.PAIRS));
+      assertTrue(metrics.getBusyNanos().isEmpty());
+      measured.setMetrics(null);
+      measured.distributionsForInstances(test);
+      assertNull(measured.getMetrics());
+      assertEquals(0, metrics.getCounter(KStarMetrics.PAIRS));
+      measured.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that a bounded cache evicts values, counts its hits and misses and
+   * does not change the predictions.
+   */
+  public void testBoundedCache() {
+    try {
+      Instances data = generateData(Attribute.NOMINAL);
+      Instances train = new Instances(data, 0, 80);
+      Instances test = new Instances(data, 80, 40);
+
+      ParallelKStar unbounded = new ParallelKStar();
+      unbounded.setNumThreads(2);
+      unbounded.buildClassifier(train);
+      ParallelKStar bounded = new ParallelKStar();
+      bounded.setNumThreads(2);
+      bounded.setCacheCapacity(4);
+      bounded.buildClassifier(train);
+
+      for (int n = 0; n < 2; n++) {
+        for (int i = 0; i < test.numInstances(); i++) {
+          double[] expected = unbounded.distributionForInstance(test.instance(i));
+          double[] actual = bounded.distributionForInstance(test.instance(i));
+          for (int j = 0; j < expected.length; j++) {
+            assertEquals("instance " + i, expected[j], actual[j], 0.0);
+          }
+        }
+      }
+      assertTrue("no evictions", bounded.getCacheEvictions() > 0);
+      assertEquals(0, unbounded.getCacheEvictions());
+      assertTrue("no hits", unbounded.getCacheHits() > 0);
+      assertTrue("not more misses than unbounded",
+        bounded.getCacheMisses() > unbounded.getCacheMisses());
+      unbounded.shutdownExecutorPool();
+      bounded.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Bounded cache failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that quantizing the numeric values computes far fewer scale
+   * factors and changes the predictions only slightly.
+   */
+  public void testQuantizedNumericValues() {
+    try {
+      TestInstances generator = new TestInstances();
+      generator.setClassType(Attribute.NUMERIC);
+      generator.setNumNominal(0);
+      generator.setNumNumeric(4);
+      generator.setNumInstances(400);
+      Instances data = generator.generate();
+      Instances train = new Instances(data, 0, 200);
+      Instances test = new Instances(data, 200, 200);
+
+      ParallelKStar exact = new ParallelKStar();
+      exact.setNumThreads(2);
+      exact.buildClassifier(train);
+      ParallelKStar quantized = new ParallelKStar();
+      quantized.setNumThreads(2);
+      quantized.setQuantizeResolution(0.01);
+      quantized.setQuantizeRelative(true);
+      quantized.buildClassifier(train);
+
+      double[] expected = new double[test.numInstances()];
+      double[] actual = new double[test.numInstances()];
+      for (int i = 0; i < test.numInstances(); i++) {
+        expected[i] = exact.classifyInstance(test.instance(i));
+        actual[i] = quantized.classifyInstance(test.instance(i));
+      }
+      double range = expected[Utils.maxIndex(expected)] - expected[Utils.minIndex(expected)];
+      for (int i = 0; i < test.numInstances(); i++) {
+        assertEquals("instance " + i, expected[i], actual[i], 0.05 * range);
+      }
+      assertTrue("no fewer root findings",
+        2 * quantized.getCacheMisses() < exact.getCacheMisses());
+      exact.shutdownExecutorPool();
+      quantized.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Quantized prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that pruning the smallest terms of the sphere sizes changes the
+   * predictions by no more than a small fraction.
+   */
+  public void testPrunedSphereSize() {
+    try {
+      Instances data = generateData(Attribute.NUMERIC);
+      Instances train = new Instances(data, 0, 80);
+      Instances test = new Instances(data, 80, 40);
+
+      ParallelKStar exact = new ParallelKStar();
+      exact.setNumThreads(2);
+      exact.buildClassifier(train);
+      ParallelKStar pruned = new ParallelKStar();
+      pruned.setNumThreads(2);
+      pruned.setPruneTolerance(1e-9);
+      pruned.buildClassifier(train);
+
+      for (int i = 0; i < test.numInstances(); i++) {
+        double expected = exact.classifyInstance(test.instance(i));
+        double actual = pruned.classifyInstance(test.instance(i));
+        assertEquals("instance " + i, expected, actual,
+          1e-4 * Math.max(1.0, Math.abs(expected)));
+      }
+      exact.shutdownExecutorPool();
+      pruned.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Pruned prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that log space accumulation predicts the same as the direct
+   * products when no values are missing.
+   */
+  public void testLogSpaceSameAsLinear() {
+    try {
+      for (int classType : new int[] { Attribute.NOMINAL, Attribute.NUMERIC }) {
+        TestInstances generator = new TestInstances();
+        generator.setClassType(classType);
+        generator.setNumNominal(4);
+        generator.setNumNumeric(4);
+        generator.setNumInstances(120);
+        Instances data = generator.generate();
+        Instances train = new Instances(data, 0, 80);
+        Instances test = new Instances(data, 80, 40);
+
+        ParallelKStar linear = new ParallelKStar();
+        linear.setNumThreads(2);
+        linear.buildClassifier(train);
+        ParallelKStar log = new ParallelKStar();
+        log.setNumThreads(2);
+        log.setLogSpace(true);
+        log.buildClassifier(train);
+
+        for (int i = 0; i < test.numInstances(); i++) {
+          double[] expected = linear.distributionForInstance(test.instance(i));
+          double[] actual = log.distributionForInstance(test.instance(i));
+          for (int j = 0; j < expected.length; j++) {
+            assertEquals("instance " + i, expected[j], actual[j],
+              1e-9 * Math.max(1.0, Math.abs(expected[j])));
+          }
+        }
+        linear.shutdownExecutorPool();
+        log.shutdownExecutorPool();
+      }
+    } catch (Exception e) {
+      fail("Log space prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that a model saved before its caches were filled reads the
+   * parameters of the training values from the sidecar file and predicts the
+   * same as the original.
+   */
+  public void testCacheSidecar() {
+    try {
+      for (boolean entropic : new boolean[] { false, true }) {
+        Instances train = generateData(Attribute.NOMINAL);
+        File file = File.createTempFile("kstar", ".sidecar");
+        file.delete(); // only written by writeCacheSidecar
+        file.deleteOnExit();
+
+        ParallelKStar original = new ParallelKStar();
+        original.setEntropicAutoBlend(entropic);
+        original.setCacheSidecar(file.getPath());
+        original.buildClassifier(train);
+        ParallelKStar restored = (ParallelKStar) new SerializedObject(original).getObject();
+        original.writeCacheSidecar(file);
+
+        for (int i = 0; i < train.numInstances(); i++) {
+          double[] expected = original.distributionForInstance(train.instance(i));
+          double[] actual = restored.distributionForInstance(train.instance(i));
+          for (int j = 0; j < expected.length; j++) {
+            assertEquals("instance " + i, expected[j], actual[j], 0.0);
+          }
+        }
+        assertTrue("parameters read from the sidecar", restored.getSidecarHits() > 0);
+        original.shutdownExecutorPool();
+        restored.shutdownExecutorPool();
+        file.delete();
+      }
+    } catch (Exception e) {
+      fail("Sidecar prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that scoring on shard servers, each holding part of the training
+   * data, predicts the same as holding all of it.
+   */
+  public void testShardedSameAsLocal() {
+    for (int classType : new int[] { Attribute.NOMINAL, Attribute.NUMERIC }) {
+      KStarShardServer[] servers = new KStarShardServer[2];
+      try {
+        Instances data = generateData(classType);
+        Instances train = new Instances(data, 0, 80);
+        Instances test = new Instances(data, 80, 40);
+
+        String endpoints = "";
+        for (int s = 0; s < servers.length; s++) {
+          servers[s] = new KStarShardServer(new Instances(train, 40 * s, 40), new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")));
+          new Thread(servers[s]).start();
+          endpoints += (s > 0 ? "," : "") + "localhost:" + servers[s].getPort();
+        }
+
+        ParallelKStar local = new ParallelKStar();
+        local.buildClassifier(train);
+        ParallelKStar sharded = new ParallelKStar();
+        sharded.setShardEndpoints(endpoints);
+        sharded.buildClassifier(new Instances(train, 0));
+
+        double[][] batch = sharded.distributionsForInstances(test);
+        for (int i = 0; i < test.numInstances(); i++) {
+          double[] expected = local.distributionForInstance(test.instance(i));
+          double[] actual = sharded.distributionForInstance(test.instance(i));
+          for (int j = 0; j < expected.length; j++) {
+            double tolerance = 1e-12 * Math.max(1.0, Math.abs(expected[j]));
+            assertEquals("instance " + i, expected[j], actual[j], tolerance);
+            assertEquals("instance " + i, actual[j], batch[i][j], tolerance);
+          }
+        }
+        local.shutdownExecutorPool();
+        sharded.shutdownExecutorPool();
+      } catch (Exception e) {
+        fail("Sharded prediction failed: " + e);
+      } finally {
+        for (KStarShardServer server : servers) {
+          try {
+            if (server != null) {
+              server.close();
+            }
+          } catch (IOException e) {
+            // ignored
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks that a shard server refuses to deserialize objects a request is
+   * not made of.
+   */
+  public void testShardServerRefusesOtherClasses() {
+    KStarShardServer server = null;
+    try {
+      Instances train = generateData(Attribute.NOMINAL);
+      server = new KStarShardServer(train, new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")));
+      new Thread(server).start();
+      Socket socket = new Socket("127.0.0.1", server.getPort());
+      ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+      out.flush();
+      ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+      out.writeInt(KStarShardServer.SCORE);
+      out.writeObject(new ArrayList<String>());
+      out.flush();
+      Object reply = in.readObject();
+      assertTrue("refused: " + reply, reply instanceof InvalidClassException);
+      socket.close();
+    } catch (Exception e) {
+      fail("Shard server test failed: " + e);
+    } finally {
+      try {
+        if (server != null) {
+          server.close();
+        }
+      } catch (IOException e) {
+        // ignored
+      }
+    }
+  }
+
+  /**
+   * Checks that the approximate mode stays within its tolerance of the exact
+   * predictions, and that it scores instances with missing values exactly.
+   */
+  public void testApproximateCandidates() {
+    try {
+      TestInstances generator = new TestInstances();
+      generator.setClassType(Attribute.NOMINAL);
+      generator.setNumClasses(3);
+      generator.setNumNominal(0);
+      generator.setNumNumeric(2);
+      generator.setNumInstances(2100);
+      Instances data = generator.generate();
+      Instances train = new Instances(data, 0, 2000);
+      Instances test = new Instances(data, 2000, 100);
+      for (int i = 0; i < 10; i++) {
+        test.instance(i).setMissing(0);
+      }
+
+      ParallelKStar exact = new ParallelKStar();
+      exact.setGlobalBlend(1);
+      exact.buildClassifier(train);
+      ParallelKStar approximate = new ParallelKStar();
+      approximate.setGlobalBlend(1);
+      approximate.setApproximationTolerance(1e-3);
+      approximate.buildClassifier(train);
+
+      ParallelKStar batch = new ParallelKStar();
+      batch.setGlobalBlend(1);
+      batch.setApproximationTolerance(1e-3);
+      batch.setNumThreads(4);
+      batch.setExecutionPlan(new SelectedTag(ParallelKStar.PLAN_BATCH, ParallelKStar.TAGS_PLAN));
+      batch.buildClassifier(train);
+
+      double[][] expected = exact.distributionsForInstances(test);
+      double[][] batched = batch.distributionsForInstances(test);
+      for (int i = 0; i < test.numInstances(); i++) {
+        double[] actual = approximate.distributionForInstance(test.instance(i));
+        for (int j = 0; j < actual.length; j++) {
+          assertEquals("instance " + i, expected[i][j], actual[j], i < 10 ? 1e-12 : 2e-3);
+          assertEquals("batch instance " + i, actual[j], batched[i][j], 0.0);
+        }
+      }
+      batch.shutdownExecutorPool();
+      assertTrue("instances approximated", approximate.getMaxNeglectedMass() > 0.0);
+      assertTrue("neglected mass bounded", approximate.getMaxNeglectedMass() <= 1e-3);
+      exact.shutdownExecutorPool();
+      approximate.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Approximate prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that sparse training data is scored by the sparse kernel with the
+   * same predictions as its dense copy and as KStar, in linear and log space,
+   * and that test instances with missing values fall back to the dense
+   * kernel.
+   */
+  public void testSparseSameAsDense() {
+    try {
+      for (int classType : new int[] { Attribute.NOMINAL, Attribute.NUMERIC }) {
+        TestInstances generator = new TestInstances();
+        generator.setClassType(classType);
+        generator.setNumClasses(3);
+        generator.setNumNominal(8);
+        generator.setNumNominalValues(3);
+        generator.setNumNumeric(32);
+        generator.setNumInstances(160);
+        generator.setClassIndex(TestInstances.CLASS_IS_LAST);
+        Instances dense = generator.generate();
+        Random random = new Random(1);
+        for (int i = 0; i < dense.numInstances(); i++) {
+          for (int j = 0; j < dense.classIndex(); j++) {
+            if (random.nextDouble() < 0.9) {
+              dense.instance(i).setValue(j, 0.0);
+            } else if (random.nextDouble() < 0.1) {
+              dense.instance(i).setMissing(j);
+            }
+          }
+        }
+        NonSparseToSparse filter = new NonSparseToSparse();
+        filter.setInputFormat(dense);
+        Instances sparse = Filter.useFilter(dense, filter);
+        Instances denseTrain = new Instances(dense, 0, 120);
+        Instances sparseTrain = new Instances(sparse, 0, 120);
+
+        for (boolean logSpace : new boolean[] { false, true }) {
+          ParallelKStar denseModel = new ParallelKStar();
+          denseModel.setNumThreads(2);
+          denseModel.setLogSpace(logSpace);
+          denseModel.buildClassifier(denseTrain);
+          ParallelKStar sparseModel = new ParallelKStar();
+          sparseModel.setNumThreads(2);
+          sparseModel.setLogSpace(logSpace);
+          sparseModel.buildClassifier(sparseTrain);
+          assertFalse(denseModel.m_TrainData.isSparse());
+          assertTrue(sparseModel.m_TrainData.isSparse());
+          assertNull("no dense columns", sparseModel.m_TrainData.missing);
+          KStar serial = new KStar();
+          serial.buildClassifier(sparseTrain);
+
+          double[][] batch = sparseModel.distributionsForInstances(new Instances(sparse, 120, 40));
+          for (int i = 120; i < sparse.numInstances(); i++) {
+            double[] expected = denseModel.distributionForInstance(dense.instance(i));
+            double[] actual = sparseModel.distributionForInstance(sparse.instance(i));
+            double[] reference = serial.distributionForInstance(sparse.instance(i));
+            boolean missing = sparse.instance(i).hasMissingValue();
+            for (int j = 0; j < expected.length; j++) {
+              String message = "class type " + classType + ", log " + logSpace + ", instance " + i;
+              double tolerance = 1e-10 * Math.max(1.0, Math.abs(expected[j]));
+              assertEquals(message, expected[j], actual[j], tolerance);
+              assertEquals(message, actual[j], batch[i - 120][j], 0.0);
+              if (!logSpace || !missing) {
+                assertEquals(message, reference[j], actual[j], tolerance);
+              }
+            }
+          }
+          denseModel.shutdownExecutorPool();
+          sparseModel.shutdownExecutorPool();
+        }
+      }
+    } catch (Exception e) {
+      fail("Sparse prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Documents the accuracy lost by holding the training data in single
+   * precision: the numeric values are rounded to 24 bits, which moves the
+   * predicted distributions by less than 1e-6 relative to the double
+   * precision path.
+   */
+  public void testSinglePrecisionStorage() {
+    try {
+      for (int classType : new int[] { Attribute.NOMINAL, Attribute.NUMERIC }) {
+        Instances data = generateData(classType);
+        Instances train = new Instances(data, 0, 80);
+        Instances test = new Instances(data, 80, 40);
+
+        ParallelKStar exact = new ParallelKStar();
+        exact.setNumThreads(2);
+        exact.buildClassifier(train);
+        ParallelKStar single = new ParallelKStar();
+        single.setNumThreads(2);
+        single.setSinglePrecision(true);
+        single.buildClassifier(train);
+
+        double maxDelta = 0.0;
+        for (int i = 0; i < test.numInstances(); i++) {
+          double[] expected = exact.distributionForInstance(test.instance(i));
+          double[] actual = single.distributionForInstance(test.instance(i));
+          for (int j = 0; j < expected.length; j++) {
+            double delta = Math.abs(expected[j] - actual[j]) / Math.max(1.0, Math.abs(expected[j]));
+            maxDelta = Math.max(maxDelta, delta);
+          }
+        }
+        assertTrue("relative delta " + maxDelta, maxDelta < 1e-6);
+        exact.shutdownExecutorPool();
+        single.shutdownExecutorPool();
+      }
+    } catch (Exception e) {
+      fail("Single precision prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that on data with many attributes, where the products underflow
+   * and the direct computation falls back to a uniform distribution, log
+   * space accumulation still discriminates between the classes.
+   */
+  public void testLogSpaceAvoidsUnderflow() {
+    try {
+      TestInstances generator = new TestInstances();
+      generator.setNumClasses(2);
+      generator.setNumNominal(1000);
+      generator.setNumNominalValues(3);
+      generator.setNumNumeric(0);
+      generator.setNumInstances(40);
+      Instances data = generator.generate();
+      Instances train = new Instances(data, 0, 30);
+
+      ParallelKStar linear = new ParallelKStar();
+      linear.setNumThreads(2);
+      linear.buildClassifier(train);
+      ParallelKStar log = new ParallelKStar();
+      log.setNumThreads(2);
+      log.setLogSpace(true);
+      log.buildClassifier(train);
+
+      double[] underflow = linear.distributionForInstance(data.instance(35));
+      assertEquals(0.5, underflow[0], 0.0);
+      double[] dist = log.distributionForInstance(data.instance(35));
+      assertEquals(1.0, dist[0] + dist[1], 1e-12);
+      assertTrue("log space distribution is uniform", dist[0] != 0.5);
+      linear.shutdownExecutorPool();
+      log.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Log space prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that a model updated instance by instance, whose attribute
+   * distributions are maintained incrementally, predicts the same as a model
+   * built on all the instances at once.
+   */
+  public void testUpdateSameAsBuild() {
+    try {
+      Instances data = generateData(Attribute.NOMINAL);
+      Instances train = new Instances(data, 0, 80);
+      Instances test = new Instances(data, 80, 40);
+
+      ParallelKStar built = new ParallelKStar();
+      built.setNumThreads(2);
+      built.buildClassifier(train);
+      ParallelKStar updated = new ParallelKStar();
+      updated.setNumThreads(2);
+      updated.buildClassifier(new Instances(train, 0, 50));
+      updated.distributionForInstance(test.instance(0));
+      for (int i = 50; i < train.numInstances(); i++) {
+        updated.updateClassifier(train.instance(i));
+      }
+
+      for (int i = 0; i < test.numInstances(); i++) {
+        double[] expected = built.distributionForInstance(test.instance(i));
+        double[] actual = updated.distributionForInstance(test.instance(i));
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals("instance " + i, expected[j], actual[j], 1e-12);
+        }
+      }
+      built.shutdownExecutorPool();
+      updated.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Updated model differs: " + e);
+    }
+  }
+
+  /**
+   * Checks that a sliding window, by count and by time, predicts the same as
+   * a model built on the instances left in the window, on dense and sparse
+   * data. The window overwrites and removes rows, so the training instances
+   * are held in another order and the sums may differ by rounding.
+   */
+  public void testSlidingWindowSameAsBuild() {
+    try {
+      for (int classType : new int[] { Attribute.NOMINAL, Attribute.NUMERIC }) {
+        Instances dense = generateData(classType);
+        int time = 0;
+        while (!dense.attribute(time).isNumeric() || time == dense.classIndex()) {
+          time++;
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < dense.numInstances(); i++) {
+          for (int j = 0; j < dense.classIndex(); j++) {
+            if (random.nextDouble() < 0.95) {
+              dense.instance(i).setValue(j, 0.0);
+            }
+          }
+          dense.instance(i).setValue(time, i);
+        }
+        NonSparseToSparse filter = new NonSparseToSparse();
+        filter.setInputFormat(dense);
+        Instances sparse = Filter.useFilter(dense, filter);
+
+        for (Instances data : new Instances[] { dense, sparse }) {
+          for (boolean timed : new boolean[] { false, true }) {
+            ParallelKStar windowed = new ParallelKStar();
+            windowed.setNumThreads(2);
+            if (timed) {
+              windowed.setWindowSize(40);
+              windowed.setWindowTimeAttribute("" + (time + 1));
+              windowed.setWindowSpan(30);
+            } else {
+              windowed.setWindowSize(30);
+            }
+            windowed.buildClassifier(new Instances(data, 0, 20));
+            for (int i = 20; i < 80; i++) {
+              if (i % 10 == 0) {
+                windowed.distributionForInstance(data.instance(100));
+              }
+              windowed.updateClassifier(data.instance(i));
+            }
+            assertEquals(30, windowed.m_Train.numInstances());
+            assertEquals(data == sparse, windowed.m_TrainData.isSparse());
+            ParallelKStar built = new ParallelKStar();
+            built.setNumThreads(2);
+            built.buildClassifier(new Instances(data, 50, 30));
+
+            for (int i = 80; i < data.numInstances(); i++) {
+              double[] expected = built.distributionForInstance(data.instance(i));
+              double[] actual = windowed.distributionForInstance(data.instance(i));
+              for (int j = 0; j < expected.length; j++) {
+                assertEquals("class type " + classType + ", timed " + timed + ", instance " + i,
+                  expected[j], actual[j], 1e-10 * Math.max(1.0, Math.abs(expected[j])));
+              }
+            }
+            built.shutdownExecutorPool();
+            windowed.shutdownExecutorPool();
+          }
+        }
+      }
+    } catch (Exception e) {
+      fail("Sliding window differs: " + e);
+    }
+  }
+
+  /**
+   * Checks that overwriting the oldest instance of a full window only drops
+   * the cached parameters of the attribute whose value changed.
+   */
+  public void testSlidingWindowKeepsCaches() {
+    try {
+      Instances data = generateData(Attribute.NOMINAL);
+      Instances train = new Instances(data, 0, 80);
+      Instance test = data.instance(101);
+      int attribute = 0;
+      while (!train.attribute(attribute).isNumeric() || test.isMissing(attribute)
+        || train.instance(0).isMissing(attribute)) {
+        attribute++;
+      }
+
+      ParallelKStar windowed = new ParallelKStar();
+      windowed.setWindowSize(80);
+      windowed.buildClassifier(train);
+      windowed.distributionForInstance(test);
+      long misses = windowed.getCacheMisses();
+      Instance replacement = (Instance) train.instance(0).copy();
+      replacement.setValue(attribute, replacement.value(attribute) + 1.0);
+      windowed.updateClassifier(replacement);
+      double[] actual = windowed.distributionForInstance(test);
+      assertEquals(misses + 1, windowed.getCacheMisses());
+
+      train.instance(0).setValue(attribute, replacement.value(attribute));
+      ParallelKStar built = new ParallelKStar();
+      built.buildClassifier(train);
+      double[] expected = built.distributionForInstance(test);
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], actual[j], 1e-12);
+      }
+      built.shutdownExecutorPool();
+      windowed.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Sliding window update failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that an update of a time window drops the cache of every
+   * attribute the added or expired instances hold a value for: the exact
+   * parameters depend on every training value of the attribute.
+   */
+  public void testTimeWindowUpdateDropsCaches() {
+    try {
+      Instances data = generateData(Attribute.NOMINAL);
+      int time = 0;
+      while (!data.attribute(time).isNumeric()) {
+        time++;
+      }
+      for (int i = 0; i < data.numInstances(); i++) {
+        data.instance(i).setValue(time, i);
+      }
+      Instance test = data.instance(100);
+      Instance added = (Instance) data.instance(40).copy();
+      for (int i = 0; i < data.numAttributes(); i++) {
+        if (added.isMissing(i)) {
+          added.setValue(i, data.instance(41).isMissing(i) ? 0.0 : data.instance(41).value(i));
+        }
+      }
+
+      ParallelKStar windowed = new ParallelKStar();
+      windowed.setWindowTimeAttribute("" + (time + 1));
+      windowed.setWindowSpan(30);
+      windowed.buildClassifier(new Instances(data, 0, 40));
+      assertEquals(30, windowed.m_Train.numInstances());
+      windowed.distributionForInstance(test);
+      long misses = windowed.getCacheMisses();
+      windowed.distributionForInstance(test);
+      assertEquals("all cached", misses, windowed.getCacheMisses());
+
+      windowed.updateClassifier(added);
+      assertEquals("one expired", 30, windowed.m_Train.numInstances());
+      windowed.distributionForInstance(test);
+      int expected = 0;
+      for (int i = 0; i < data.numAttributes(); i++) {
+        if (i != data.classIndex() && !test.isMissing(i)) {
+          expected++;
+        }
+      }
+      assertEquals("every cache dropped", misses + expected, windowed.getCacheMisses());
+      windowed.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Time window update failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that the random class columns of the entropic blend stay
+   * permutations of the class values as a sliding window overwrites and
+   * removes instances.
+   */
+  public void testSlidingWindowRandomClassColumns() {
+    try {
+      Instances data = generateData(Attribute.NOMINAL);
+      int time = 0;
+      while (!data.attribute(time).isNumeric()) {
+        time++;
+      }
+      for (int i = 0; i < data.numInstances(); i++) {
+        data.instance(i).setValue(time, i);
+      }
+      ParallelKStar windowed = new ParallelKStar();
+      windowed.setEntropicAutoBlend(true);
+      windowed.setWindowSize(40);
+      windowed.setWindowTimeAttribute("" + (time + 1));
+      windowed.setWindowSpan(30);
+      windowed.buildClassifier(new Instances(data, 0, 20));
+      windowed.distributionForInstance(data.instance(100));
+      for (int i = 20; i < 100; i++) {
+        windowed.updateClassifier(data.instance(i));
+        int n = windowed.m_Train.numInstances();
+        int[][] columns = windowed.m_RandClassCols;
+        int[] classes = new int[n];
+        for (int row = 0; row < n; row++) {
+          classes[row] = (int) windowed.m_Train.instance(row).classValue();
+          assertEquals(classes[row], columns[columns.length - 1][row]);
+        }
+        int[] sorted = Arrays.copyOf(classes, n);
+        Arrays.sort(sorted);
+        for (int k = 0; k < columns.length - 1; k++) {
+          int[] column = Arrays.copyOf(columns[k], n);
+          Arrays.sort(column);
+          assertTrue("column " + k + " after " + i, Arrays.equals(sorted, column));
+        }
+      }
+      double[] dist = windowed.distributionForInstance(data.instance(100));
+      assertEquals(1.0, Utils.sum(dist), 1e-12);
+      windowed.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Sliding window in entropic blend mode failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that batch predictions, which span several test tiles, equal the
+   * predictions made one instance at a time.
+   */
+  public void testBatchSameAsSingle() {
+    try {
+      Instances data = generateData(Attribute.NUMERIC);
+      Instances train = new Instances(data, 0, 80);
+      Instances test = new Instances(data, 80, 40);
+
+      ParallelKStar parallel = new ParallelKStar();
+      parallel.setNumThreads(3);
+      parallel.buildClassifier(train);
+      assertTrue(parallel.implementsMoreEfficientBatchPrediction());
+
+      double[][] batch = parallel.distributionsForInstances(test);
+      assertEquals(test.numInstances(), batch.length);
+      for (int i = 0; i < test.numInstances(); i++) {
+        double[] single = parallel.distributionForInstance(test.instance(i));
+        assertEquals(single.length, batch[i].length);
+        for (int j = 0; j < single.length; j++) {
+          assertEquals("instance " + i, single[j], batch[i][j], 0.0);
+        }
+      }
+      parallel.shutdownExecutorPool();
+    } catch (Exception e) {
+      fail("Batch prediction failed: " + e);
+    }
+  }
+
+  /**
+   * Checks that predictions made concurrently on the same model, sharing its
+   * attribute caches, equal the ones made one after the other.
+   */
+  public void testConcurrentPredictions() {
+    try {
+      Instances data = generateData(Attribute.NOMINAL);
+      final Instances train = new Instances(data, 0, 80);
+      final Instances test = new Instances(data, 80, 40);
+
+      ParallelKStar reference = new ParallelKStar();
+      reference.buildClassifier(train);
+      final double[][] expected = new double[test.numInstances()][];
+      for (int i = 0; i < test.numInstances(); i++) {
+        expected[i] = reference.distributionForInstance(test.instance(i));
+      }
+      reference.shutdownExecutorPool();
+
+      final ParallelKStar shared = new ParallelKStar();
+      shared.setNumThreads(2);
+      shared.buildClassifier(train);
+      final String[] failure = new String[1];
+      Thread[] scorers = new Thread[4];
+      for (int t = 0; t < scorers.length; t++) {
+        final int offset = t;
+        scorers[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int n = 0; n < test.numInstances(); n++) {
+                int i = (n + offset * 10) % test.numInstances();
+                double[] actual = shared.distributionForInstance(test.instance(i));
+                for (int j = 0; j < actual.length; j++) {
+                  if (Math.abs(actual[j] - expected[i][j]) > 1e-12) {
+                    failure[0] = "instance " + i + " differs";
+                  }
+                }
+              }
+            } catch (Exception e) {
+              failure[0] = e.toString();
+            }
+          }
+        };
+        scorers[t].start();
+      }
+      for (Thread scorer : scorers) {
+        scorer.join();
+      }
+      shared.shutdownExecutorPool();
+      assertNull(failure[0], failure[0]);
+    } catch (Exception e) {
+      fail("Concurrent predictions failed: " + e);
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(ParallelKStarTest.class);
+  }
+
+  public static void main(String[] args){
+    junit.textui.TestRunner.run(suite());
+  }
+
+}